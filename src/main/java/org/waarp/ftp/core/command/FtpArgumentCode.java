@@ -152,7 +152,12 @@ public class FtpArgumentCode {
         /**
          * Compressed TransferMode
          */
-        COMPRESSED('C');
+        COMPRESSED('C'),
+        /**
+         * Deflate TransferMode (draft-preston-ftpext-deflate): Stream mode compressed through a
+         * zlib stream
+         */
+        ZLIB('Z');
         /**
          * TransferMode
          */
@@ -266,6 +271,9 @@ public class FtpArgumentCode {
             case 'S':
             case 's':
                 return FtpArgumentCode.TransferMode.STREAM;
+            case 'Z':
+            case 'z':
+                return FtpArgumentCode.TransferMode.ZLIB;
             default:
                 throw new InvalidArgumentException(
                         "Argument for TransferMode is not allowed: " + mode);
@@ -17,6 +17,8 @@
  */
 package org.waarp.ftp.core.command;
 
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.command.internal.ConnectionCommand;
 import org.waarp.ftp.core.command.internal.IncorrectCommand;
 import org.waarp.ftp.core.command.internal.UnimplementedCommand;
@@ -49,7 +51,12 @@ public enum FtpCommandCode {
     Connection(
             ConnectionCommand.class,
             null,
-            org.waarp.ftp.core.command.access.USER.class, org.waarp.ftp.core.command.rfc2389.FEAT.class),
+            org.waarp.ftp.core.command.access.USER.class, org.waarp.ftp.core.command.rfc2389.FEAT.class) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new ConnectionCommand();
+        }
+    },
     // XXX ACCESS CONTROL COMMAND
     /**
      * The argument field is a Telnet string identifying the user. The user identification is that
@@ -68,7 +75,12 @@ public enum FtpCommandCode {
      * 500, 501, 421<br>
      * 331, 332<br>
      */
-    USER(org.waarp.ftp.core.command.access.USER.class, ConnectionCommand.class),
+    USER(org.waarp.ftp.core.command.access.USER.class, ConnectionCommand.class) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.access.USER();
+        }
+    },
     /**
      * The argument field is a Telnet string specifying the user's password. This command must be
      * immediately preceded by the user name command, and, for some sites, completes the user's
@@ -84,7 +96,12 @@ public enum FtpCommandCode {
      * 500, 501, 503, 421<br>
      * 332<br>
      */
-    PASS(org.waarp.ftp.core.command.access.PASS.class, null),
+    PASS(org.waarp.ftp.core.command.access.PASS.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.access.PASS();
+        }
+    },
     /**
      * The argument field is a Telnet string identifying the user's account. The command is not
      * necessarily related to the USER command, as some sites may require an account for login and
@@ -106,7 +123,12 @@ public enum FtpCommandCode {
      * 530<br>
      * 500, 501, 503, 421<br>
      */
-    ACCT(org.waarp.ftp.core.command.access.ACCT.class, null),
+    ACCT(org.waarp.ftp.core.command.access.ACCT.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.access.ACCT();
+        }
+    },
     /**
      * This command allows the user to work with a different directory or dataset for file storage
      * or retrieval without altering his login or accounting information. Transfer parameters are
@@ -117,7 +139,12 @@ public enum FtpCommandCode {
      * 250<br>
      * 500, 501, 502, 421, 530, 550<br>
      */
-    CWD(org.waarp.ftp.core.command.directory.CWD.class, null),
+    CWD(org.waarp.ftp.core.command.directory.CWD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.directory.CWD();
+        }
+    },
     /**
      * This command is a special case of CWD, and is included to simplify the implementation of
      * programs for transferring directory trees between operating systems having different syntaxes
@@ -128,7 +155,12 @@ public enum FtpCommandCode {
      * 200<br>
      * 500, 501, 502, 421, 530, 550<br>
      */
-    CDUP(org.waarp.ftp.core.command.directory.CDUP.class, null),
+    CDUP(org.waarp.ftp.core.command.directory.CDUP.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.directory.CDUP();
+        }
+    },
     /**
      * This command allows the user to mount a different file system data structure without altering
      * his login or accounting information. Transfer parameters are similarly unchanged. The
@@ -142,7 +174,12 @@ public enum FtpCommandCode {
      * 500, 501, 502, 421, 530, 550<br>
      */
     // XXX 502
-    SMNT(org.waarp.ftp.core.command.directory.SMNT.class, null),
+    SMNT(org.waarp.ftp.core.command.directory.SMNT.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.directory.SMNT();
+        }
+    },
     /**
      * This command terminates a USER, flushing all I/O and account information, except to allow any
      * transfer in progress to be completed. All parameters are reset to the default settings and
@@ -158,7 +195,12 @@ public enum FtpCommandCode {
      * 500, 502<br>
      */
     REIN(org.waarp.ftp.core.command.access.REIN.class, null,
-            org.waarp.ftp.core.command.access.USER.class),
+            org.waarp.ftp.core.command.access.USER.class) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.access.REIN();
+        }
+    },
     /**
      * This command terminates a USER and if file transfer is not in progress, the server closes the
      * control connection. If file transfer is in progress, the connection will remain open for
@@ -174,7 +216,12 @@ public enum FtpCommandCode {
      * 221<br>
      * 500<br>
      */
-    QUIT(org.waarp.ftp.core.command.access.QUIT.class, null),
+    QUIT(org.waarp.ftp.core.command.access.QUIT.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.access.QUIT();
+        }
+    },
 
     // XXX TRANSFER PARAMETER COMMAND
     /**
@@ -198,7 +245,12 @@ public enum FtpCommandCode {
      * 200<br>
      * 500, 501, 421, 530<br>
      */
-    PORT(org.waarp.ftp.core.command.parameter.PORT.class, null),
+    PORT(org.waarp.ftp.core.command.parameter.PORT.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.parameter.PORT();
+        }
+    },
     /**
      * This command requests the server-DTP to "listen" on a data port (which is not its default
      * data port) and to wait for a connection rather than initiate one upon receipt of a transfer
@@ -210,7 +262,12 @@ public enum FtpCommandCode {
      * 227<br>
      * 500, 501, 502, 421, 530<br>
      */
-    PASV(org.waarp.ftp.core.command.parameter.PASV.class, null),
+    PASV(org.waarp.ftp.core.command.parameter.PASV.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.parameter.PASV();
+        }
+    },
     /**
      * The argument specifies the representation type as described in the Section on Data
      * Representation and Storage. Several types take a second parameter. The first parameter is
@@ -237,7 +294,12 @@ public enum FtpCommandCode {
      * 200<br>
      * 500, 501, 504, 421, 530<br>
      */
-    TYPE(org.waarp.ftp.core.command.parameter.TYPE.class, null),
+    TYPE(org.waarp.ftp.core.command.parameter.TYPE.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.parameter.TYPE();
+        }
+    },
     /**
      * The argument is a single Telnet character code specifying file structure described in the
      * Section on Data Representation and Storage.<br>
@@ -257,7 +319,12 @@ public enum FtpCommandCode {
      * 200<br>
      * 500, 501, 504, 421, 530<br>
      */
-    STRU(org.waarp.ftp.core.command.parameter.STRU.class, null),
+    STRU(org.waarp.ftp.core.command.parameter.STRU.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.parameter.STRU();
+        }
+    },
     /**
      * The argument is a single Telnet character code specifying the data transfer modes described
      * in the Section on Transmission Modes.<br>
@@ -277,7 +344,12 @@ public enum FtpCommandCode {
      * 200<br>
      * 500, 501, 504, 421, 530<br>
      */
-    MODE(org.waarp.ftp.core.command.parameter.MODE.class, null),
+    MODE(org.waarp.ftp.core.command.parameter.MODE.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.parameter.MODE();
+        }
+    },
 
     // XXX FTP SERVICE COMMAND
     /**
@@ -292,7 +364,12 @@ public enum FtpCommandCode {
      * 450, 550<br>
      * 500, 501, 421, 530<br>
      */
-    RETR(org.waarp.ftp.core.command.service.RETR.class, null),
+    RETR(org.waarp.ftp.core.command.service.RETR.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.RETR();
+        }
+    },
     /**
      * This command causes the server-DTP to accept the data transferred via the data connection and
      * to store the data as a file at the server site. If the file specified in the pathname exists
@@ -308,7 +385,12 @@ public enum FtpCommandCode {
      * 532, 450, 452, 553<br>
      * 500, 501, 421, 530<br>
      */
-    STOR(org.waarp.ftp.core.command.service.STOR.class, null),
+    STOR(org.waarp.ftp.core.command.service.STOR.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.STOR();
+        }
+    },
     /**
      * This command behaves like STOR except that the resultant file is to be created in the current
      * directory under a name unique to that directory. The 250 Transfer Started response must
@@ -322,7 +404,12 @@ public enum FtpCommandCode {
      * 532, 450, 452, 553<br>
      * 500, 501, 421, 530<br>
      */
-    STOU(org.waarp.ftp.core.command.service.STOU.class, null),
+    STOU(org.waarp.ftp.core.command.service.STOU.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.STOU();
+        }
+    },
     /**
      * This command causes the server-DTP to accept the data transferred via the data connection and
      * to store the data in a file at the server site. If the file specified in the pathname exists
@@ -337,7 +424,12 @@ public enum FtpCommandCode {
      * 532, 450, 452, 553<br>
      * 500, 501, 421, 530<br>
      */
-    APPE(org.waarp.ftp.core.command.service.APPE.class, null),
+    APPE(org.waarp.ftp.core.command.service.APPE.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.APPE();
+        }
+    },
     /**
      * This command may be required by some servers to reserve sufficient storage to accommodate the
      * new file to be transferred. The argument shall be a decimal integer representing the number
@@ -358,7 +450,12 @@ public enum FtpCommandCode {
      * 450<br>
      * 500, 501, 502, 421, 530<br>
      */
-    ALLO(org.waarp.ftp.core.command.service.ALLO.class, null),
+    ALLO(org.waarp.ftp.core.command.service.ALLO.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.ALLO();
+        }
+    },
     /**
      * The argument field represents the server marker at which file transfer is to be restarted.
      * This command does not cause file transfer but skips over the file to the specified data
@@ -387,7 +484,12 @@ public enum FtpCommandCode {
             org.waarp.ftp.core.command.parameter.PASV.class,
             org.waarp.ftp.core.command.parameter.TYPE.class,
             org.waarp.ftp.core.command.parameter.STRU.class,
-            org.waarp.ftp.core.command.parameter.MODE.class),
+            org.waarp.ftp.core.command.parameter.MODE.class) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.REST();
+        }
+    },
     /**
      * This command specifies the old pathname of the file which is to be renamed. This command must
      * be immediately followed by a "rename to" RNTO command specifying the new file pathname.<br>
@@ -400,7 +502,12 @@ public enum FtpCommandCode {
     RNFR(
             org.waarp.ftp.core.command.service.RNFR.class,
             null,
-            org.waarp.ftp.core.command.service.RNTO.class),
+            org.waarp.ftp.core.command.service.RNTO.class) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.RNFR();
+        }
+    },
     /**
      * This command specifies the new pathname of the file specified in the immediately preceding
      * "rename from" RNFR command. Together the two commands cause a file to be renamed. <br>
@@ -411,7 +518,12 @@ public enum FtpCommandCode {
      */
     RNTO(
             org.waarp.ftp.core.command.service.RNTO.class,
-            org.waarp.ftp.core.command.service.RNFR.class),
+            org.waarp.ftp.core.command.service.RNFR.class) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.RNTO();
+        }
+    },
     /**
      * This command tells the server to abort the previous FTP service command and any associated
      * transfer of data. The abort command may require "special action", as discussed in the Section
@@ -437,7 +549,12 @@ public enum FtpCommandCode {
      * 225, 226<br>
      * 500, 501, 502, 421<br>
      */
-    ABOR(org.waarp.ftp.core.command.service.ABOR.class, null),
+    ABOR(org.waarp.ftp.core.command.service.ABOR.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.ABOR();
+        }
+    },
     /**
      * This command causes the file specified in the pathname to be deleted at the server site. If
      * an extra level of protection is desired (such as the query, "Do you really wish to delete?"),
@@ -448,7 +565,12 @@ public enum FtpCommandCode {
      * 450, 550<br>
      * 500, 501, 502, 421, 530<br>
      */
-    DELE(org.waarp.ftp.core.command.service.DELE.class, null),
+    DELE(org.waarp.ftp.core.command.service.DELE.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.DELE();
+        }
+    },
     /**
      * This command causes the directory specified in the pathname to be removed as a directory (if
      * the pathname is absolute) or as a subdirectory of the current working directory (if the
@@ -458,7 +580,12 @@ public enum FtpCommandCode {
      * 250<br>
      * 500, 501, 502, 421, 530, 550<br>
      */
-    RMD(org.waarp.ftp.core.command.service.RMD.class, null),
+    RMD(org.waarp.ftp.core.command.service.RMD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.RMD();
+        }
+    },
     /**
      * This command causes the directory specified in the pathname to be created as a directory (if
      * the pathname is absolute) or as a subdirectory of the current working directory (if the
@@ -467,14 +594,24 @@ public enum FtpCommandCode {
      * 257<br>
      * 500, 501, 502, 421, 530, 550<br>
      */
-    MKD(org.waarp.ftp.core.command.service.MKD.class, null),
+    MKD(org.waarp.ftp.core.command.service.MKD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.MKD();
+        }
+    },
     /**
      * This command causes the name of the current working directory to be returned in the reply.<br>
      * 
      * 257<br>
      * 500, 501, 502, 421, 550<br>
      */
-    PWD(org.waarp.ftp.core.command.service.PWD.class, null),
+    PWD(org.waarp.ftp.core.command.service.PWD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.PWD();
+        }
+    },
     /**
      * This command causes a list to be sent from the server to the passive DTP. If the pathname
      * specifies a directory or other group of files, the server should transfer a list of files in
@@ -494,7 +631,12 @@ public enum FtpCommandCode {
      * 450<br>
      * 500, 501, 502, 421, 530<br>
      */
-    LIST(org.waarp.ftp.core.command.service.LIST.class, null),
+    LIST(org.waarp.ftp.core.command.service.LIST.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.LIST();
+        }
+    },
     /**
      * This command causes a directory listing to be sent from server to user site. The pathname
      * should specify a directory or other system-specific file group descriptor; a null argument
@@ -514,7 +656,12 @@ public enum FtpCommandCode {
      * 450<br>
      * 500, 501, 502, 421, 530<br>
      */
-    NLST(org.waarp.ftp.core.command.service.NLST.class, null),
+    NLST(org.waarp.ftp.core.command.service.NLST.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.service.NLST();
+        }
+    },
     /**
      * This command is used by the server to provide services specific to his system that are
      * essential to file transfer but not sufficiently universal to be included as commands in the
@@ -528,7 +675,12 @@ public enum FtpCommandCode {
      * 202<br>
      * 500, 501, 530<br>
      */
-    SITE(org.waarp.ftp.core.command.info.SITE.class, null),
+    SITE(org.waarp.ftp.core.command.info.SITE.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.info.SITE();
+        }
+    },
     /**
      * This command is used to find out the type of operating system at the server. The reply shall
      * have as its first word one of the system names listed in the current version of the Assigned
@@ -539,7 +691,12 @@ public enum FtpCommandCode {
      * 215<br>
      * 500, 501, 502, 421<br>
      */
-    SYST(org.waarp.ftp.core.command.info.SYST.class, null),
+    SYST(org.waarp.ftp.core.command.info.SYST.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.info.SYST();
+        }
+    },
     /**
      * This command shall cause a status response to be sent over the control connection in the form
      * of a reply. The command may be sent during a file transfer (along with the Telnet IP and
@@ -557,7 +714,12 @@ public enum FtpCommandCode {
      * 450<br>
      * 500, 501, 502, 421, 530<br>
      */
-    STAT(org.waarp.ftp.core.command.info.STAT.class, null),
+    STAT(org.waarp.ftp.core.command.info.STAT.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.info.STAT();
+        }
+    },
     /**
      * This command shall cause the server to send helpful information regarding its implementation
      * status over the control connection to the user. The command may take an argument (e.g., any
@@ -569,7 +731,12 @@ public enum FtpCommandCode {
      * 211, 214<br>
      * 500, 501, 502, 421<br>
      */
-    HELP(org.waarp.ftp.core.command.info.HELP.class, null),
+    HELP(org.waarp.ftp.core.command.info.HELP.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.info.HELP();
+        }
+    },
     /**
      * This command does not affect any parameters or previously entered commands. It specifies no
      * action other than that the server send an OK reply.<br>
@@ -578,7 +745,12 @@ public enum FtpCommandCode {
      * 200<br>
      * 500 421<br>
      */
-    NOOP(org.waarp.ftp.core.command.info.NOOP.class, null),
+    NOOP(org.waarp.ftp.core.command.info.NOOP.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.info.NOOP();
+        }
+    },
 
     // XXX RFC775
 
@@ -589,7 +761,12 @@ public enum FtpCommandCode {
      * 250<br>
      * 500, 501, 502, 421, 530, 550<br>
      */
-    XCWD(org.waarp.ftp.core.command.rfc775.XCWD.class, null),
+    XCWD(org.waarp.ftp.core.command.rfc775.XCWD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc775.XCWD();
+        }
+    },
     /**
      * Change to the parent of the current working directory. Same as CDUP.<br>
      * 
@@ -597,28 +774,48 @@ public enum FtpCommandCode {
      * 200<br>
      * 500, 501, 502, 421, 530, 550<br>
      */
-    XCUP(org.waarp.ftp.core.command.rfc775.XCUP.class, null),
+    XCUP(org.waarp.ftp.core.command.rfc775.XCUP.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc775.XCUP();
+        }
+    },
     /**
      * Remove the directory. Same as RMD.<br>
      * 
      * 250<br>
      * 500, 501, 502, 421, 530, 550<br>
      */
-    XRMD(org.waarp.ftp.core.command.rfc775.XRMD.class, null),
+    XRMD(org.waarp.ftp.core.command.rfc775.XRMD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc775.XRMD();
+        }
+    },
     /**
      * Make a directory. Same as MKD.<br>
      * 
      * 257<br>
      * 500, 501, 502, 421, 530, 550<br>
      */
-    XMKD(org.waarp.ftp.core.command.rfc775.XMKD.class, null),
+    XMKD(org.waarp.ftp.core.command.rfc775.XMKD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc775.XMKD();
+        }
+    },
     /**
      * Print the current working directory. Same as PWD.<br>
      * 
      * 257<br>
      * 500, 501, 502, 421, 550<br>
      */
-    XPWD(org.waarp.ftp.core.command.rfc775.XPWD.class, null),
+    XPWD(org.waarp.ftp.core.command.rfc775.XPWD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc775.XPWD();
+        }
+    },
 
     // XXX RFC3659
     /**
@@ -640,7 +837,12 @@ public enum FtpCommandCode {
      * 213<br>
      * 500, 501, 550<br>
      */
-    MDTM(org.waarp.ftp.core.command.rfc3659.MDTM.class, null),
+    MDTM(org.waarp.ftp.core.command.rfc3659.MDTM.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc3659.MDTM();
+        }
+    },
     /**
      * The FTP command, SIZE OF FILE (SIZE), is used to obtain the transfer size of a file from the
      * server-FTP process. This is the exact number of octets (8 bit bytes) that would be
@@ -662,7 +864,12 @@ public enum FtpCommandCode {
      * 213<br>
      * 500, 501, 550<br>
      */
-    SIZE(org.waarp.ftp.core.command.rfc3659.SIZE.class, null),
+    SIZE(org.waarp.ftp.core.command.rfc3659.SIZE.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc3659.SIZE();
+        }
+    },
     /**
      * The MLSD command is intended to standardize the file and directory information returned by
      * the server-FTP process. This command differs from the LIST command in that the format of the
@@ -680,7 +887,12 @@ public enum FtpCommandCode {
      * 450<br>
      * 500, 501, 502, 421, 530<br>
      */
-    MLSD(org.waarp.ftp.core.command.rfc3659.MLSD.class, null),
+    MLSD(org.waarp.ftp.core.command.rfc3659.MLSD.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc3659.MLSD();
+        }
+    },
     /**
      * The MLST command is intended to standardize the file and directory information returned by
      * the server-FTP process. This command differs from the LIST command in that the format of the
@@ -697,7 +909,12 @@ public enum FtpCommandCode {
      * 450<br>
      * 500, 501, 502, 421, 530<br>
      */
-    MLST(org.waarp.ftp.core.command.rfc3659.MLST.class, null),
+    MLST(org.waarp.ftp.core.command.rfc3659.MLST.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc3659.MLST();
+        }
+    },
 
     // XXX RFC2389
     /**
@@ -763,7 +980,12 @@ public enum FtpCommandCode {
      * 211<br>
      * 500, 501, 550<br>
      */
-    FEAT(org.waarp.ftp.core.command.rfc2389.FEAT.class, null),
+    FEAT(org.waarp.ftp.core.command.rfc2389.FEAT.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc2389.FEAT();
+        }
+    },
     /**
      * The OPTS (options) command allows a user-PI to specify the desired behavior of a server-FTP
      * process when another FTP command (the target command) is later issued. The exact behavior,
@@ -775,7 +997,12 @@ public enum FtpCommandCode {
      * 200<br>
      * 451, 500, 501, 550<br>
      */
-    OPTS(org.waarp.ftp.core.command.rfc2389.OPTS.class, null),
+    OPTS(org.waarp.ftp.core.command.rfc2389.OPTS.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc2389.OPTS();
+        }
+    },
 
     // XXX RFC2428
     /**
@@ -831,7 +1058,12 @@ public enum FtpCommandCode {
      * 200<br>
      * 500, 501, 522, 421, 530<br>
      */
-    EPRT(org.waarp.ftp.core.command.rfc2428.EPRT.class, null),
+    EPRT(org.waarp.ftp.core.command.rfc2428.EPRT.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc2428.EPRT();
+        }
+    },
     /**
      * The EPSV command requests that a server listen on a data port and wait for a connection. The
      * EPSV command takes an optional argument. The response to this command includes only the TCP
@@ -917,7 +1149,12 @@ public enum FtpCommandCode {
      * 229<br>
      * 500, 501, 502, 522, 421, 530<br>
      */
-    EPSV(org.waarp.ftp.core.command.rfc2428.EPSV.class, null),
+    EPSV(org.waarp.ftp.core.command.rfc2428.EPSV.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc2428.EPSV();
+        }
+    },
 
     // XXX EXTENSIONS
 
@@ -928,7 +1165,12 @@ public enum FtpCommandCode {
      * 250<br>
      * 500, 501, 502, 504, 421, 530<br>
      */
-    XCRC(org.waarp.ftp.core.command.extension.XCRC.class, null),
+    XCRC(org.waarp.ftp.core.command.extension.XCRC.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.extension.XCRC();
+        }
+    },
     /**
      * Compute MD5 on pathname given as argument. Return on control network as 250 "MD5" is MD5 of
      * file "pathname"<br>
@@ -936,7 +1178,12 @@ public enum FtpCommandCode {
      * 250<br>
      * 500, 501, 502, 504, 421, 530<br>
      */
-    XMD5(org.waarp.ftp.core.command.extension.XMD5.class, null),
+    XMD5(org.waarp.ftp.core.command.extension.XMD5.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.extension.XMD5();
+        }
+    },
     /**
      * Compute SHA-1 on pathname given as argument. Return on control network as 250 "SHA1" is SHA-1
      * of file "pathname"<br>
@@ -944,24 +1191,44 @@ public enum FtpCommandCode {
      * 250<br>
      * 500, 501, 502, 504, 421, 530<br>
      */
-    XSHA1(org.waarp.ftp.core.command.extension.XSHA1.class, null),
+    XSHA1(org.waarp.ftp.core.command.extension.XSHA1.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.extension.XSHA1();
+        }
+    },
 
     // XXX GLOBAL OPERATION
     /**
      * Unknown Command from control network<br>
      * Always return 500<br>
      */
-    Unknown(UnknownCommand.class, null),
+    Unknown(UnknownCommand.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new UnknownCommand();
+        }
+    },
     /**
      * Unimplemented command<br>
      * Always return 502<br>
      */
-    Unimplemented(UnimplementedCommand.class, null),
+    Unimplemented(UnimplementedCommand.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new UnimplementedCommand();
+        }
+    },
     /**
      * Bad sequence of commands<br>
      * Always return 503<br>
      */
-    IncorrectSequence(IncorrectCommand.class, null),
+    IncorrectSequence(IncorrectCommand.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new IncorrectCommand();
+        }
+    },
 
     // XXX INTERNAL FUNCTION
 
@@ -971,7 +1238,12 @@ public enum FtpCommandCode {
      */
     INTERNALSHUTDOWN(
             org.waarp.ftp.core.command.internal.INTERNALSHUTDOWN.class,
-            null),
+            null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.internal.INTERNALSHUTDOWN();
+        }
+    },
     /**
      * Change the Limit of the global bandwidth.<br>
      * No argument reset to default, 1 argument change both write and read to same value, 2
@@ -982,7 +1254,12 @@ public enum FtpCommandCode {
      */
     LIMITBANDWIDTH(
             org.waarp.ftp.core.command.internal.LIMITBANDWIDTH.class,
-            null),
+            null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.internal.LIMITBANDWIDTH();
+        }
+    },
 
     // XXX RFC 4217 on SSL/TLS support through commands
     /**
@@ -1020,14 +1297,24 @@ public enum FtpCommandCode {
     AUTH(org.waarp.ftp.core.command.rfc4217.AUTH.class, null,
             org.waarp.ftp.core.command.rfc4217.PROT.class,
             org.waarp.ftp.core.command.rfc4217.PBSZ.class,
-            org.waarp.ftp.core.command.access.USER.class),
+            org.waarp.ftp.core.command.access.USER.class) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc4217.AUTH();
+        }
+    },
     /**
      * Security Association Setup<br>
      * CCC (Control SSL Off)<br>
      * 200<br>
      * 500, 533*, 534*
      */
-    CCC(org.waarp.ftp.core.command.rfc4217.CCC.class, null),
+    CCC(org.waarp.ftp.core.command.rfc4217.CCC.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc4217.CCC();
+        }
+    },
     /**
      * Data protection negotiation commands<br>
      * PROT P (Data)<br>
@@ -1035,14 +1322,24 @@ public enum FtpCommandCode {
      * 200<br>
      * 504, 536*, 503, 534*, 431* 500, 501, 421, 530
      */
-    PROT(org.waarp.ftp.core.command.rfc4217.PROT.class, null),
+    PROT(org.waarp.ftp.core.command.rfc4217.PROT.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc4217.PROT();
+        }
+    },
     /**
      * Data protection negotiation commands<br>
      * PBSZ 0<br>
      * 200<br>
      * 503, 500, 501, 421, 530
      */
-    PBSZ(org.waarp.ftp.core.command.rfc4217.PBSZ.class, null);
+    PBSZ(org.waarp.ftp.core.command.rfc4217.PBSZ.class, null) {
+        @Override
+        AbstractCommand newDefaultCommand() {
+            return new org.waarp.ftp.core.command.rfc4217.PBSZ();
+        }
+    };
 
     /**
      * The Class that implements this command
@@ -1059,14 +1356,155 @@ public enum FtpCommandCode {
      */
     public Class<?>[] nextValids;
 
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpCommandCode.class);
+
+    /**
+     * The Class that implements this command by default, created by {@link #newDefaultCommand()}
+     */
+    private final Class<? extends AbstractCommand> defaultCommand;
+
     private FtpCommandCode(Class<? extends AbstractCommand> command,
             Class<? extends AbstractCommand> previousValid,
             Class<?>... nextValids) {
         this.command = command;
+        this.defaultCommand = command;
         this.previousValid = previousValid;
         this.nextValids = nextValids;
     }
 
+    /**
+     * 
+     * @return a new instance of the Class that implements this command by default (without
+     *         reflection)
+     */
+    abstract AbstractCommand newDefaultCommand();
+
+    /**
+     * Size of the lookup table of the verbs (power of 2, more than twice the number of verbs)
+     */
+    private static final int LOOKUP_SIZE = 256;
+
+    /**
+     * Longest verb
+     */
+    private static final int MAX_VERB_LENGTH = 16;
+
+    /**
+     * Open addressing table of the verbs a client can send (upper case names only, as valueOf
+     * did on the upper cased verb)
+     */
+    private static final FtpCommandCode[] LOOKUP = new FtpCommandCode[LOOKUP_SIZE];
+
+    static {
+        for (FtpCommandCode code : values()) {
+            String name = code.name();
+            if (!name.equals(name.toUpperCase()) || name.length() > MAX_VERB_LENGTH) {
+                continue;
+            }
+            int index = hashVerb(name, 0, name.length()) & (LOOKUP_SIZE - 1);
+            while (LOOKUP[index] != null) {
+                index = (index + 1) & (LOOKUP_SIZE - 1);
+            }
+            LOOKUP[index] = code;
+        }
+    }
+
+    /**
+     * Case insensitive hash of a verb
+     * 
+     * @param line
+     * @param start
+     * @param end
+     * @return the hash of the verb
+     */
+    private static int hashVerb(CharSequence line, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            hash = hash * 31 + c;
+        }
+        return hash ^ (hash >>> 8) ^ (hash >>> 16);
+    }
+
+    /**
+     * 
+     * @param name
+     *            the upper case name of the command
+     * @param line
+     * @param start
+     * @param end
+     * @return True if the verb is the name, case insensitively
+     */
+    private static boolean matchVerb(String name, CharSequence line, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            if (c != name.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the FtpCommandCode of the verb, without any allocation
+     * 
+     * @param line
+     * @param start
+     *            index of the first char of the verb
+     * @param end
+     *            index after the last char of the verb
+     * @return the FtpCommandCode of this verb, Unknown if none
+     */
+    public static FtpCommandCode getFromVerb(CharSequence line, int start, int end) {
+        if (end - start <= 0 || end - start > MAX_VERB_LENGTH) {
+            return Unknown;
+        }
+        int index = hashVerb(line, start, end) & (LOOKUP_SIZE - 1);
+        FtpCommandCode code;
+        while ((code = LOOKUP[index]) != null) {
+            if (matchVerb(code.name(), line, start, end)) {
+                return code;
+            }
+            index = (index + 1) & (LOOKUP_SIZE - 1);
+        }
+        return Unknown;
+    }
+
+    /**
+     * Create a new instance of the command implementing this code, without reflection unless the
+     * implementing class was changed
+     * 
+     * @param ftpCommandCode
+     * @return the new AbstractCommand, or null if it cannot be instantiated
+     */
+    private static AbstractCommand newCommand(FtpCommandCode ftpCommandCode) {
+        if (ftpCommandCode.command == ftpCommandCode.defaultCommand) {
+            return ftpCommandCode.newDefaultCommand();
+        }
+        try {
+            return ftpCommandCode.command.newInstance();
+        } catch (InstantiationException e) {
+            logger.error("Cannot create the command " + ftpCommandCode.command.getName(), e);
+            return null;
+        } catch (IllegalAccessException e) {
+            logger.error("Cannot create the command " + ftpCommandCode.command.getName(), e);
+            return null;
+        }
+    }
+
     /**
      * Get the corresponding AbstractCommand object from the line received from the client
      * associated with the handler
@@ -1076,38 +1514,24 @@ public enum FtpCommandCode {
      * @return the AbstractCommand from the line received from the client
      */
     public static AbstractCommand getFromLine(FtpSession session, String line) {
-        FtpCommandCode ftpCommandCode = null;
-        String newline = line;
-        if (newline == null) {
-            ftpCommandCode = FtpCommandCode.Unknown;
-            newline = "";
+        if (line == null) {
+            line = "";
         }
-        String command = null;
+        int space = line.indexOf(' ');
+        int verbEnd = space == -1 ? line.length() : space;
         String arg = null;
-        if (newline.indexOf(' ') == -1) {
-            command = newline;
-            arg = null;
-        } else {
-            command = newline.substring(0, newline.indexOf(' '));
-            arg = newline.substring(newline.indexOf(' ') + 1);
-            if (arg.length() == 0) {
-                arg = null;
-            }
+        if (space != -1 && space + 1 < line.length()) {
+            arg = line.substring(space + 1);
         }
-        String COMMAND = command.toUpperCase();
-        try {
-            ftpCommandCode = FtpCommandCode.valueOf(COMMAND);
-        } catch (IllegalArgumentException e) {
-            ftpCommandCode = FtpCommandCode.Unknown;
+        FtpCommandCode ftpCommandCode = getFromVerb(line, 0, verbEnd);
+        String COMMAND;
+        if (ftpCommandCode == Unknown) {
+            COMMAND = line.substring(0, verbEnd).toUpperCase();
+        } else {
+            COMMAND = ftpCommandCode.name();
         }
-        AbstractCommand abstractCommand;
-        try {
-            abstractCommand = ftpCommandCode.command.newInstance();
-        } catch (InstantiationException e) {
-            abstractCommand = new UnknownCommand();
-            abstractCommand.setArgs(session, COMMAND, arg, Unknown);
-            return abstractCommand;
-        } catch (IllegalAccessException e) {
+        AbstractCommand abstractCommand = newCommand(ftpCommandCode);
+        if (abstractCommand == null) {
             abstractCommand = new UnknownCommand();
             abstractCommand.setArgs(session, COMMAND, arg, Unknown);
             return abstractCommand;
@@ -62,7 +62,22 @@ public class STAT extends AbstractCommand {
                     FtpChannelUtils.nbDataChannels(getConfiguration()) +
                     " Binded: " +
                     getConfiguration().getFtpInternalConfiguration()
-                            .getNbBindedPassive();
+                            .getNbBindedPassive() +
+                    " Pre-bound: " +
+                    getConfiguration().getFtpInternalConfiguration()
+                            .getNbPrebindPassive();
+            message += "\n" + getConfiguration().getFtpInternalConfiguration()
+                    .getTransferScheduler().getStatus();
+            message += "\n" + getConfiguration().getFtpInternalConfiguration()
+                    .getFtpSessionReferenceStatus();
+            message += "\n" + getConfiguration().getFtpInternalConfiguration()
+                    .getGlobalMemory().getStatus();
+            message += "\n" + getConfiguration().getRangePortStatus();
+            if (getConfiguration().getFtpInternalConfiguration().isUsingNativeSsl() ||
+                    getConfiguration().getFtpInternalConfiguration().isAcceptAuthProt()) {
+                message += "\n" + getConfiguration().getFtpInternalConfiguration()
+                        .getDataSslHandshakeStatus();
+            }
             message += "\nEnd of Status";
             getSession().setReplyCode(ReplyCode.REPLY_211_SYSTEM_STATUS_REPLY,
                     message);
@@ -17,10 +17,11 @@
  */
 package org.waarp.ftp.core.command.rfc3659;
 
-import java.util.List;
-
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply425Exception;
 import org.waarp.ftp.core.command.AbstractCommand;
+import org.waarp.ftp.core.file.FtpDirListing;
+import org.waarp.ftp.core.file.FtpDirListingList;
 
 /**
  * MLSD command
@@ -37,8 +38,14 @@ public class MLSD extends AbstractCommand {
         } else {
             path = getArg();
         }
-        List<String> filesInfo = getSession().getDir().listFull(path, false);
-        getSession().openDataConnection();
+        FtpDirListing filesInfo = FtpDirListingList.openListing(getSession().getDir(),
+                path, true, false);
+        try {
+            getSession().openDataConnection();
+        } catch (Reply425Exception e) {
+            filesInfo.close();
+            throw e;
+        }
         getSession().getDataConn().getFtpTransferControl().setNewFtpTransfer(
                 getCode(), filesInfo, path);
     }
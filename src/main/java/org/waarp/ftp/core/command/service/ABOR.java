@@ -43,8 +43,11 @@ public class ABOR extends AbstractCommand {
                         ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION, null);
                 return;
             }
+            // The aborted command gets its own 426 answer
             getSession().getDataConn().getFtpTransferControl()
                     .setTransferAbortedFromInternal(false);
+            getSession().setReplyCode(
+                    ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION, null);
             return;
         }
         getSession().setReplyCode(ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION,
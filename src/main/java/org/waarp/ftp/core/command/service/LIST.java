@@ -17,10 +17,11 @@
  */
 package org.waarp.ftp.core.command.service;
 
-import java.util.List;
-
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply425Exception;
 import org.waarp.ftp.core.command.AbstractCommand;
+import org.waarp.ftp.core.file.FtpDirListing;
+import org.waarp.ftp.core.file.FtpDirListingList;
 
 /**
  * LIST command
@@ -37,8 +38,14 @@ public class LIST extends AbstractCommand {
         } else {
             path = getArg();
         }
-        List<String> filesInfo = getSession().getDir().listFull(path, true);
-        getSession().openDataConnection();
+        FtpDirListing filesInfo = FtpDirListingList.openListing(getSession().getDir(),
+                path, true, true);
+        try {
+            getSession().openDataConnection();
+        } catch (Reply425Exception e) {
+            filesInfo.close();
+            throw e;
+        }
         getSession().getDataConn().getFtpTransferControl().setNewFtpTransfer(
                 getCode(), filesInfo, path);
     }
@@ -17,10 +17,12 @@
  */
 package org.waarp.ftp.core.command.service;
 
-import java.util.List;
-
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply425Exception;
 import org.waarp.ftp.core.command.AbstractCommand;
+import org.waarp.ftp.core.file.FtpDir;
+import org.waarp.ftp.core.file.FtpDirListing;
+import org.waarp.ftp.core.file.FtpDirListingList;
 
 /**
  * NLST command
@@ -32,26 +34,31 @@ public class NLST extends AbstractCommand {
     @Override
     public void exec() throws CommandAbstractException {
         String path = null;
-        List<String> files = null;
+        FtpDirListing files = null;
+        FtpDir dir = getSession().getDir();
         if (!hasArg()) {
-            path = getSession().getDir().getPwd();
-            files = getSession().getDir().list(path);
+            path = dir.getPwd();
+            files = FtpDirListingList.openListing(dir, path, false, true);
         } else {
             path = getArg();
             if (path.startsWith("-l") || path.startsWith("-L")) {
                 // This should be a LIST command
                 String[] paths = getArgs();
                 if (paths.length > 1) {
-                    files = getSession().getDir().listFull(paths[1], true);
+                    files = FtpDirListingList.openListing(dir, paths[1], true, true);
                 } else {
-                    files = getSession().getDir().listFull(
-                            getSession().getDir().getPwd(), true);
+                    files = FtpDirListingList.openListing(dir, dir.getPwd(), true, true);
                 }
             } else {
-                files = getSession().getDir().list(path);
+                files = FtpDirListingList.openListing(dir, path, false, true);
             }
         }
-        getSession().openDataConnection();
+        try {
+            getSession().openDataConnection();
+        } catch (Reply425Exception e) {
+            files.close();
+            throw e;
+        }
         getSession().getDataConn().getFtpTransferControl().setNewFtpTransfer(
                 getCode(), files, path);
     }
@@ -19,6 +19,7 @@ package org.waarp.ftp.core.config;
 
 import org.waarp.common.file.DataBlock;
 
+import io.netty.channel.FileRegion;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
 
 /**
@@ -67,6 +68,9 @@ public class FtpChannelTrafficShapingHandler extends ChannelTrafficShapingHandle
         if (msg instanceof DataBlock) {
             return ((DataBlock) msg).getByteCount();
         }
+        if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
         return super.calculateSize(msg);
     }
 
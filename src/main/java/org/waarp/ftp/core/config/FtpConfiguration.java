@@ -26,6 +26,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import io.netty.channel.Channel;
 import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.util.concurrent.Future;
 
 import org.waarp.common.file.FileParameterInterface;
 import org.waarp.common.utility.WaarpShutdownHook.ShutdownConfiguration;
@@ -34,6 +35,7 @@ import org.waarp.ftp.core.data.handler.DataBusinessHandler;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.exception.FtpUnknownFieldException;
 import org.waarp.ftp.core.session.FtpSession;
+import org.waarp.ftp.core.utils.FtpNettyTransport;
 
 /**
  * Abstract class for configuration
@@ -136,6 +138,48 @@ public abstract class FtpConfiguration {
      */
     private int BLOCKSIZE = 0x10000; // 64K
 
+    /**
+     * Number of blocks that could be written on a data connection but not yet sent to the network
+     * (this keeps the network busy during a retrieve while the next blocks are read)
+     */
+    private int blocksInFlight = 8;
+
+    /**
+     * Number of threads running transfers for the whole server (0 means CLIENT_THREAD)
+     */
+    private int transferThreads = 0;
+
+    /**
+     * Maximum number of transfers waiting for a thread for the whole server
+     */
+    private int transferQueueSize = 1000;
+
+    /**
+     * Should waiting transfers be served by user in a round robin way
+     */
+    private boolean transferFairness = true;
+
+    /**
+     * Should ASCII and EBCDIC transfers convert end of lines (network CRLF to local LF on store, and
+     * local LF to network CRLF on retrieve)
+     */
+    private boolean asciiEndOfLineConversion = false;
+
+    /**
+     * Idle timeout in ms of a control connection before the user is identified (0 for none)
+     */
+    private long loginIdleTimeout = 60000;
+
+    /**
+     * Idle timeout in ms of a control connection once the user is identified (0 for none)
+     */
+    private long controlIdleTimeout = 900000;
+
+    /**
+     * Idle timeout in ms of a data connection (0 for none)
+     */
+    private long dataIdleTimeout = 300000;
+
     /**
      * Limit in Write byte/s to apply globally to the FTP Server
      */
@@ -167,10 +211,44 @@ public abstract class FtpConfiguration {
     private boolean deleteOnAbort = false;
 
     /**
-     * Max global memory limit: default is 4GB
+     * Max global memory limit for data blocks of all transfers (see
+     * {@link org.waarp.ftp.core.data.FtpGlobalMemory}): default is 4GB
      */
     private long maxGlobalMemory = 0x100000000L;
 
+    /**
+     * Netty transport: native epoll on Linux when available, else NIO
+     */
+    private FtpNettyTransport.Transport transport = FtpNettyTransport.Transport.AUTO;
+
+    /**
+     * Number of acceptor channels binded on the control port and each passive address when epoll
+     * is used (0 means as many as the server threads)
+     */
+    private int acceptors = 0;
+
+    /**
+     * Thread topology profile (see {@link FtpThreadTopology})
+     */
+    private FtpThreadTopology.Profile threadProfile = FtpThreadTopology.Profile.LEGACY;
+
+    /**
+     * Number of I/O threads for SHARED and ISOLATED profiles (0 means available processors)
+     */
+    private int ioThreads = 0;
+
+    /**
+     * Number of threads for blocking handlers for SHARED and ISOLATED profiles (0 means twice
+     * the available processors)
+     */
+    private int blockingThreads = 0;
+
+    /**
+     * Should TLS data connections be refused if they do not resume a TLS session (as the one of
+     * the control connection)
+     */
+    private boolean requireSslSessionReuse = false;
+
     /**
      * General Configuration Object
      */
@@ -338,6 +416,33 @@ public abstract class FtpConfiguration {
      */
     public abstract int getNextRangePort();
 
+    /**
+     * Give back a port obtained from {@link #getNextRangePort()} once the passive address is no
+     * more binded. Default implementation does nothing.
+     * 
+     * @param port
+     */
+    public void releaseRangePort(int port) {
+    }
+
+    /**
+     * Ports of the passive range to bind once at startup, such that PASV/EPSV only lease an
+     * already listening port. Default implementation returns none.
+     * 
+     * @return the ports to bind at startup
+     */
+    public int[] getPrebindPassivePorts() {
+        return new int[0];
+    }
+
+    /**
+     * 
+     * @return the status of the range of ports for passive connections
+     */
+    public String getRangePortStatus() {
+        return "Passive ports: no status";
+    }
+
     /**
      * 
      * @return the Base Directory of this Ftp Server
@@ -541,6 +646,18 @@ public abstract class FtpConfiguration {
         return internalConfiguration.getFtpSession(channel, active, false);
     }
 
+    /**
+     * Return (and remove if asked) the FtpSession, possibly once it is registered
+     * 
+     * @param channel
+     * @param active
+     * @param remove
+     * @return the future of the FtpSession (null as result if not found)
+     */
+    public Future<FtpSession> getFtpSessionFuture(Channel channel, boolean active, boolean remove) {
+        return internalConfiguration.getFtpSessionFuture(channel, active, remove);
+    }
+
     /**
      * Remove the FtpSession
      * 
@@ -656,6 +773,124 @@ public abstract class FtpConfiguration {
         BLOCKSIZE = bLOCKSIZE;
     }
 
+    /**
+     * @return the number of blocks allowed to be in flight on a data connection
+     */
+    public int getBlocksInFlight() {
+        return blocksInFlight;
+    }
+
+    /**
+     * @param blocksInFlight the number of blocks allowed to be in flight on a data connection (at least 1)
+     */
+    public void setBlocksInFlight(int blocksInFlight) {
+        this.blocksInFlight = blocksInFlight < 1 ? 1 : blocksInFlight;
+    }
+
+    /**
+     * @return the number of threads running transfers
+     */
+    public int getTransferThreads() {
+        if (transferThreads <= 0) {
+            return getCLIENT_THREAD();
+        }
+        return transferThreads;
+    }
+
+    /**
+     * @param transferThreads the number of threads running transfers (0 means CLIENT_THREAD)
+     */
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+    }
+
+    /**
+     * @return the maximum number of transfers waiting for a thread
+     */
+    public int getTransferQueueSize() {
+        return transferQueueSize;
+    }
+
+    /**
+     * @param transferQueueSize the maximum number of transfers waiting for a thread
+     */
+    public void setTransferQueueSize(int transferQueueSize) {
+        this.transferQueueSize = transferQueueSize;
+    }
+
+    /**
+     * @return True if waiting transfers are served by user in a round robin way
+     */
+    public boolean isTransferFairness() {
+        return transferFairness;
+    }
+
+    /**
+     * @param transferFairness True if waiting transfers are served by user in a round robin way
+     */
+    public void setTransferFairness(boolean transferFairness) {
+        this.transferFairness = transferFairness;
+    }
+
+    /**
+     * @return True if ASCII and EBCDIC transfers convert end of lines between CRLF and LF
+     */
+    public boolean isAsciiEndOfLineConversion() {
+        return asciiEndOfLineConversion;
+    }
+
+    /**
+     * @param asciiEndOfLineConversion True if ASCII and EBCDIC transfers convert end of lines
+     *            between CRLF and LF
+     */
+    public void setAsciiEndOfLineConversion(boolean asciiEndOfLineConversion) {
+        this.asciiEndOfLineConversion = asciiEndOfLineConversion;
+    }
+
+    /**
+     * @return the idle timeout in ms of a control connection before login (0 for none)
+     */
+    public long getLoginIdleTimeout() {
+        return loginIdleTimeout;
+    }
+
+    /**
+     * @param loginIdleTimeout the idle timeout in ms of a control connection before login (0 for
+     *            none)
+     */
+    public void setLoginIdleTimeout(long loginIdleTimeout) {
+        this.loginIdleTimeout = loginIdleTimeout < 0 ? 0 : loginIdleTimeout;
+    }
+
+    /**
+     * @return the idle timeout in ms of a control connection after login (0 for none)
+     */
+    public long getControlIdleTimeout() {
+        return controlIdleTimeout;
+    }
+
+    /**
+     * @param controlIdleTimeout the idle timeout in ms of a control connection after login (0 for
+     *            none)
+     */
+    public void setControlIdleTimeout(long controlIdleTimeout) {
+        this.controlIdleTimeout = controlIdleTimeout < 0 ? 0 : controlIdleTimeout;
+    }
+
+    /**
+     * @return the idle timeout in ms of a data connection (0 for none)
+     */
+    public long getDataIdleTimeout() {
+        return dataIdleTimeout;
+    }
+
+    /**
+     * @param dataIdleTimeout the idle timeout in ms of a data connection (0 for none)
+     */
+    public void setDataIdleTimeout(long dataIdleTimeout) {
+        this.dataIdleTimeout = dataIdleTimeout < 0 ? 0 : dataIdleTimeout;
+    }
+
     /**
      * @return the deleteOnAbort
      */
@@ -698,6 +933,96 @@ public abstract class FtpConfiguration {
         this.maxGlobalMemory = maxGlobalMemory;
     }
 
+    /**
+     * @return the Netty transport asked
+     */
+    public FtpNettyTransport.Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @param transport the Netty transport to use (AUTO, NIO or EPOLL)
+     */
+    public void setTransport(FtpNettyTransport.Transport transport) {
+        this.transport = transport == null ? FtpNettyTransport.Transport.AUTO : transport;
+    }
+
+    /**
+     * @return the number of acceptor channels by listening address (0 for the server threads)
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * @param acceptors the number of acceptor channels by listening address when epoll is used
+     *            (0 for as many as the server threads)
+     */
+    public void setAcceptors(int acceptors) {
+        this.acceptors = acceptors < 0 ? 0 : acceptors;
+    }
+
+    /**
+     * @return the thread topology profile
+     */
+    public FtpThreadTopology.Profile getThreadProfile() {
+        return threadProfile;
+    }
+
+    /**
+     * @param threadProfile the thread topology profile (LEGACY, SHARED or ISOLATED)
+     */
+    public void setThreadProfile(FtpThreadTopology.Profile threadProfile) {
+        this.threadProfile = threadProfile == null ? FtpThreadTopology.Profile.LEGACY
+                : threadProfile;
+    }
+
+    /**
+     * @return the number of I/O threads (0 for available processors)
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * @param ioThreads the number of I/O threads for SHARED and ISOLATED profiles (0 for
+     *            available processors)
+     */
+    public void setIoThreads(int ioThreads) {
+        this.ioThreads = ioThreads < 0 ? 0 : ioThreads;
+    }
+
+    /**
+     * @return the number of threads for blocking handlers (0 for twice available processors)
+     */
+    public int getBlockingThreads() {
+        return blockingThreads;
+    }
+
+    /**
+     * @param blockingThreads the number of threads for blocking handlers for SHARED and ISOLATED
+     *            profiles (0 for twice available processors)
+     */
+    public void setBlockingThreads(int blockingThreads) {
+        this.blockingThreads = blockingThreads < 0 ? 0 : blockingThreads;
+    }
+
+    /**
+     * @return True if TLS data connections must resume the TLS session of their control
+     *         connection
+     */
+    public boolean isRequireSslSessionReuse() {
+        return requireSslSessionReuse;
+    }
+
+    /**
+     * @param requireSslSessionReuse True to refuse TLS data connections that do not resume the
+     *            TLS session of their control connection
+     */
+    public void setRequireSslSessionReuse(boolean requireSslSessionReuse) {
+        this.requireSslSessionReuse = requireSslSessionReuse;
+    }
+
     /**
      * @return the shutdownConfiguration
      */
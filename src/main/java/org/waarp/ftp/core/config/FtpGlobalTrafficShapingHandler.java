@@ -21,6 +21,7 @@ import java.util.concurrent.ScheduledExecutorService;
 
 import org.waarp.common.file.DataBlock;
 
+import io.netty.channel.FileRegion;
 import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
 
 /**
@@ -58,6 +59,9 @@ public class FtpGlobalTrafficShapingHandler extends GlobalChannelTrafficShapingH
         if (msg instanceof DataBlock) {
             return ((DataBlock) msg).getByteCount();
         }
+        if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        }
         return super.calculateSize(msg);
     }
 
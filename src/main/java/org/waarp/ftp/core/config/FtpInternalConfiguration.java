@@ -23,6 +23,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
@@ -32,26 +34,30 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.handler.traffic.ChannelTrafficShapingHandler;
 import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
 import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
 
 import org.waarp.common.command.exception.Reply425Exception;
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.DetectionUtils;
-import org.waarp.common.utility.WaarpNettyUtil;
 import org.waarp.common.utility.WaarpThreadFactory;
 import org.waarp.ftp.core.control.FtpInitializer;
 import org.waarp.ftp.core.control.ftps.FtpsInitializer;
+import org.waarp.ftp.core.data.FtpGlobalMemory;
+import org.waarp.ftp.core.data.FtpTransferScheduler;
 import org.waarp.ftp.core.data.handler.FtpDataInitializer;
 import org.waarp.ftp.core.data.handler.ftps.FtpsDataInitializer;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.core.session.FtpSessionReference;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
+import org.waarp.ftp.core.utils.FtpNettyTransport;
 import org.waarp.ftp.core.utils.FtpShutdownHook;
 
 /**
@@ -78,6 +84,11 @@ public class FtpInternalConfiguration {
      */
     public static final int RETRYNB = 3;
 
+    /**
+     * Time in ms a data connection could wait for its session to be registered
+     */
+    public static final long DATA_SESSION_LOOKUP_TIMEOUT = 1000;
+
     /**
      * Time elapse for WRITE OR CLOSE WAIT elaps in ms
      */
@@ -101,12 +112,12 @@ public class FtpInternalConfiguration {
     /**
      * ExecutorService Boss
      */
-    private final EventLoopGroup execBoss;
+    private EventLoopGroup execBoss = null;
 
     /**
      * ExecutorService Worker
      */
-    private final EventLoopGroup execWorker;
+    private EventLoopGroup execWorker = null;
 
     /**
      * Bootstrap for Command server
@@ -121,22 +132,32 @@ public class FtpInternalConfiguration {
     /**
      * ExecutorService Data Passive Boss
      */
-    private final EventLoopGroup execPassiveDataBoss;
+    private EventLoopGroup execPassiveDataBoss = null;
 
     /**
      * ExecutorService Command Event Loop
      */
-    private final EventLoopGroup execCommandEvent;
+    private EventExecutorGroup execCommandEvent = null;
 
     /**
      * ExecutorService Data Event Loop
      */
-    private final EventLoopGroup execDataEvent;
+    private EventExecutorGroup execDataEvent = null;
 
     /**
      * ExecutorService Data Active Worker
      */
-    private final EventLoopGroup execDataWorker;
+    private EventLoopGroup execDataWorker = null;
+
+    /**
+     * Netty transport (epoll or NIO) used by all EventLoopGroups and Bootstraps
+     */
+    private FtpNettyTransport transport = null;
+
+    /**
+     * Thread topology owning all the groups above
+     */
+    private FtpThreadTopology threadTopology = null;
 
     /**
      * FtpSession references used by Data Connection process
@@ -159,6 +180,38 @@ public class FtpInternalConfiguration {
     private ScheduledExecutorService executorService =
             Executors.newScheduledThreadPool(2, new WaarpThreadFactory("TimerTrafficFtp"));
 
+    /**
+     * Timer wheel shared by all idle connection checks and data connection timeouts
+     */
+    private final HashedWheelTimer idleTimer = new HashedWheelTimer(
+            new WaarpThreadFactory("TimerIdleFtp"), 100, TimeUnit.MILLISECONDS);
+
+    /**
+     * Server wide scheduler of transfers
+     */
+    private FtpTransferScheduler transferScheduler = null;
+
+    /**
+     * Server wide accounting of the memory used by data blocks (without limit until the server
+     * starts)
+     */
+    private FtpGlobalMemory globalMemory = new FtpGlobalMemory(0);
+
+    /**
+     * Number of full TLS handshakes on data connections
+     */
+    private final AtomicLong dataSslFullHandshakes = new AtomicLong(0);
+
+    /**
+     * Number of abbreviated (resumed) TLS handshakes on data connections
+     */
+    private final AtomicLong dataSslResumedHandshakes = new AtomicLong(0);
+
+    /**
+     * Number of TLS data connections refused since not resumed while required
+     */
+    private final AtomicLong dataSslRefusedHandshakes = new AtomicLong(0);
+
     /**
      * Global TrafficCounter (set from global configuration)
      */
@@ -194,6 +247,11 @@ public class FtpInternalConfiguration {
          */
         public final Channel parent;
 
+        /**
+         * All passive acceptor channels binded to this address (parent being the first one)
+         */
+        public final Channel[] parents;
+
         /**
          * Number of binded Data connections
          */
@@ -205,7 +263,18 @@ public class FtpInternalConfiguration {
          * @param channel
          */
         public BindAddress(Channel channel) {
-            parent = channel;
+            this(new Channel[] { channel });
+        }
+
+        /**
+         * Constructor
+         * 
+         * @param channels
+         *            the acceptor channels binded to the same address
+         */
+        public BindAddress(Channel[] channels) {
+            parent = channels[0];
+            parents = channels;
             nbBind = 0;
         }
     }
@@ -216,6 +285,12 @@ public class FtpInternalConfiguration {
     private final ConcurrentHashMap<InetSocketAddress, BindAddress> hashBindPassiveDataConn =
             new ConcurrentHashMap<InetSocketAddress, BindAddress>();
 
+    /**
+     * Passive ports binded once at startup (on all local addresses), by port
+     */
+    private final ConcurrentHashMap<Integer, Channel> hashPrebindPassive =
+            new ConcurrentHashMap<Integer, Channel>();
+
     /**
      * Global Configuration
      */
@@ -231,13 +306,25 @@ public class FtpInternalConfiguration {
         ISUNIX = !DetectionUtils.isWindows();
         configuration.getShutdownConfiguration().timeout = configuration.getTIMEOUTCON();
         new FtpShutdownHook(configuration.getShutdownConfiguration(), configuration);
-        execCommandEvent = new NioEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("Command"));
-        execDataEvent = new NioEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("Data"));
-        execBoss = new NioEventLoopGroup(configuration.getSERVER_THREAD(), new WaarpThreadFactory("CommandBoss", false));
-        execWorker = new NioEventLoopGroup(configuration.getCLIENT_THREAD(), new WaarpThreadFactory("CommandWorker"));
-        execPassiveDataBoss = new NioEventLoopGroup(configuration.getSERVER_THREAD() * 2, new WaarpThreadFactory(
-                "PassiveDataBoss"));
-        execDataWorker = new NioEventLoopGroup(configuration.getCLIENT_THREAD() * 2, new WaarpThreadFactory("DataWorker"));
+    }
+
+    /**
+     * Create the EventLoopGroups according to the configured transport and thread topology
+     */
+    private void initEventLoopGroups() {
+        transport = new FtpNettyTransport(configuration.getTransport(),
+                configuration.getAcceptors() > 0 ? configuration.getAcceptors()
+                        : configuration.getSERVER_THREAD());
+        threadTopology = new FtpThreadTopology(configuration, transport);
+        execCommandEvent = threadTopology.getCommandEvent();
+        execDataEvent = threadTopology.getDataEvent();
+        execBoss = threadTopology.getBoss();
+        execWorker = threadTopology.getWorker();
+        execPassiveDataBoss = threadTopology.getPassiveBoss();
+        execDataWorker = threadTopology.getDataWorker();
+        logger.warn(threadTopology.getReport() + " Transport="
+                + (transport.isEpoll() ? "epoll" : "nio") + " Acceptors="
+                + transport.getAcceptors());
     }
 
     /**
@@ -249,14 +336,21 @@ public class FtpInternalConfiguration {
     public void serverStartup() throws FtpNoConnectionException {
         WaarpLoggerFactory.setDefaultFactory(WaarpLoggerFactory
                 .getDefaultFactory());
+        // Event loops, once the configuration is loaded
+        initEventLoopGroups();
         // Command
         commandChannelGroup = new DefaultChannelGroup(configuration.fromClass.getName(), execWorker.next());
         // Data
         dataChannelGroup = new DefaultChannelGroup(configuration.fromClass.getName() + ".data", execWorker.next());
 
+        // Transfers
+        transferScheduler = new FtpTransferScheduler(configuration.getTransferThreads(),
+                configuration.getTransferQueueSize(), configuration.isTransferFairness());
+        globalMemory = new FtpGlobalMemory(configuration.getMaxGlobalMemory());
+
         // Passive Data Connections
         passiveBootstrap = new ServerBootstrap();
-        WaarpNettyUtil.setServerBootstrap(passiveBootstrap, execPassiveDataBoss, execDataWorker,
+        transport.setServerBootstrap(passiveBootstrap, execPassiveDataBoss, execDataWorker,
                 (int) configuration.getTIMEOUTCON());
         if (usingNativeSsl) {
             passiveBootstrap.childHandler(new FtpsDataInitializer(
@@ -267,7 +361,7 @@ public class FtpInternalConfiguration {
         }
         if (acceptAuthProt) {
             passiveSslBootstrap = new ServerBootstrap();
-            WaarpNettyUtil.setServerBootstrap(passiveSslBootstrap, execPassiveDataBoss, execDataWorker,
+            transport.setServerBootstrap(passiveSslBootstrap, execPassiveDataBoss, execDataWorker,
                     (int) configuration.getTIMEOUTCON());
             passiveSslBootstrap.childHandler(new FtpsDataInitializer(
                     configuration.dataBusinessHandler, configuration, false));
@@ -275,9 +369,11 @@ public class FtpInternalConfiguration {
             passiveSslBootstrap = passiveBootstrap;
         }
 
+        prebindPassive();
+
         // Active Data Connections
         activeBootstrap = new Bootstrap();
-        WaarpNettyUtil.setBootstrap(activeBootstrap, execDataWorker, (int) configuration.getTIMEOUTCON());
+        transport.setBootstrap(activeBootstrap, execDataWorker, (int) configuration.getTIMEOUTCON());
         if (usingNativeSsl) {
             activeBootstrap.handler(new FtpsDataInitializer(
                     configuration.dataBusinessHandler, configuration, true));
@@ -287,7 +383,7 @@ public class FtpInternalConfiguration {
         }
         if (acceptAuthProt) {
             activeSslBootstrap = new Bootstrap();
-            WaarpNettyUtil.setBootstrap(activeSslBootstrap, execDataWorker, (int) configuration.getTIMEOUTCON());
+            transport.setBootstrap(activeSslBootstrap, execDataWorker, (int) configuration.getTIMEOUTCON());
             activeSslBootstrap.handler(new FtpsDataInitializer(
                     configuration.dataBusinessHandler, configuration, true));
         } else {
@@ -296,7 +392,7 @@ public class FtpInternalConfiguration {
 
         // Main Command server
         serverBootstrap = new ServerBootstrap();
-        WaarpNettyUtil.setServerBootstrap(serverBootstrap, execBoss, execWorker, (int) configuration.getTIMEOUTCON());
+        transport.setServerBootstrap(serverBootstrap, execBoss, execWorker, (int) configuration.getTIMEOUTCON());
         if (usingNativeSsl) {
             serverBootstrap.childHandler(new FtpsInitializer(
                     configuration.businessHandler, configuration));
@@ -306,9 +402,12 @@ public class FtpInternalConfiguration {
         }
 
         try {
-            FtpChannelUtils.addCommandChannel(serverBootstrap.bind(
-                    new InetSocketAddress(configuration.getServerPort())).sync().channel(),
-                    configuration);
+            // several acceptors with epoll (SO_REUSEPORT), only one with NIO
+            ChannelFuture[] futures = transport.bind(serverBootstrap,
+                    new InetSocketAddress(configuration.getServerPort()));
+            for (ChannelFuture future : futures) {
+                FtpChannelUtils.addCommandChannel(future.sync().channel(), configuration);
+            }
         } catch (InterruptedException e) {
             throw new FtpNoConnectionException("Can't initiate the FTP server", e);
         }
@@ -360,6 +459,28 @@ public class FtpInternalConfiguration {
         }
     }
 
+    /**
+     * Return (and remove if asked) the FtpSession associated with the data channel, possibly once
+     * it is registered (no thread is blocked meanwhile)
+     * 
+     * @param channel
+     * @param active
+     * @param remove
+     * @return the future of the FtpSession, null as result if not found within
+     *         {@link #DATA_SESSION_LOOKUP_TIMEOUT}
+     */
+    public Future<FtpSession> getFtpSessionFuture(Channel channel, boolean active, boolean remove) {
+        return ftpSessionReference.getFtpSessionFuture(channel, active, remove,
+                DATA_SESSION_LOOKUP_TIMEOUT);
+    }
+
+    /**
+     * @return the status of the lookups of sessions from data connections
+     */
+    public String getFtpSessionReferenceStatus() {
+        return ftpSessionReference.getStatus();
+    }
+
     /**
      * Remove the FtpSession
      * 
@@ -398,39 +519,63 @@ public class FtpInternalConfiguration {
      *             in case the channel cannot be opened
      */
     public void bindPassive(InetSocketAddress address, boolean ssl) throws Reply425Exception {
+        if (hashPrebindPassive.containsKey(address.getPort())) {
+            // already listening: the data connection will be routed from the session registry
+            return;
+        }
         configuration.bindLock();
         try {
             BindAddress bindAddress = hashBindPassiveDataConn.get(address);
             if (bindAddress == null) {
                 logger.debug("Bind really to {}", address);
-                Channel parentChannel = null;
+                ChannelFuture[] futures = null;
+                Channel[] parentChannels = null;
                 try {
-                    ChannelFuture future = null;
                     if (ssl) {
-                        future = passiveSslBootstrap.bind(address);
+                        futures = transport.bind(passiveSslBootstrap, address);
                     } else {
-                        future = passiveBootstrap.bind(address);
+                        futures = transport.bind(passiveBootstrap, address);
                     }
-                    if (future.await(configuration.getTIMEOUTCON())) {
-                        parentChannel = future.sync().channel();
-                    } else {
-                        logger.warn("Cannot open passive connection due to Timeout");
-                        throw new Reply425Exception(
-                                "Cannot open a Passive Connection due to Timeout");
+                    parentChannels = new Channel[futures.length];
+                    for (int i = 0; i < futures.length; i++) {
+                        if (!futures[i].await(configuration.getTIMEOUTCON())) {
+                            logger.warn("Cannot open passive connection due to Timeout");
+                            closePassiveAcceptors(futures);
+                            configuration.releaseRangePort(address.getPort());
+                            throw new Reply425Exception(
+                                    "Cannot open a Passive Connection due to Timeout");
+                        }
+                        if (!futures[i].isSuccess()) {
+                            // port already used outside of this server
+                            logger.warn("Cannot open passive connection {}",
+                                    futures[i].cause() != null ? futures[i].cause().getMessage()
+                                            : "");
+                            closePassiveAcceptors(futures);
+                            configuration.releaseRangePort(address.getPort());
+                            throw new Reply425Exception(
+                                    "Cannot open a Passive Connection");
+                        }
+                        parentChannels[i] = futures[i].channel();
                     }
                 } catch (ChannelException e) {
+                    closePassiveAcceptors(futures);
+                    configuration.releaseRangePort(address.getPort());
                     logger.warn("Cannot open passive connection {}", e
                             .getMessage());
                     throw new Reply425Exception(
                             "Cannot open a Passive Connection");
                 } catch (InterruptedException e) {
+                    closePassiveAcceptors(futures);
+                    configuration.releaseRangePort(address.getPort());
                     logger.warn("Cannot open passive connection {}", e
                             .getMessage());
                     throw new Reply425Exception(
                             "Cannot open a Passive Connection");
                 }
-                bindAddress = new BindAddress(parentChannel);
-                FtpChannelUtils.addDataChannel(parentChannel, configuration);
+                bindAddress = new BindAddress(parentChannels);
+                for (Channel parentChannel : parentChannels) {
+                    FtpChannelUtils.addDataChannel(parentChannel, configuration);
+                }
                 hashBindPassiveDataConn.put(address, bindAddress);
             }
             bindAddress.nbBind++;
@@ -440,6 +585,57 @@ public class FtpInternalConfiguration {
         }
     }
 
+    /**
+     * Bind once for all the passive ports given by
+     * {@link FtpConfiguration#getPrebindPassivePorts()}, such that PASV/EPSV only lease a port
+     * already listening. Not used if both plain and SSL data connections are possible, since the
+     * listener cannot know which one will be needed.
+     */
+    private void prebindPassive() {
+        int[] ports = configuration.getPrebindPassivePorts();
+        if (ports == null || ports.length == 0) {
+            return;
+        }
+        if (acceptAuthProt && !usingNativeSsl) {
+            logger.warn("Pre-bound passive ports not used since data connections may be SSL or not");
+            return;
+        }
+        ChannelFuture[] futures = new ChannelFuture[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            futures[i] = passiveBootstrap.bind(new InetSocketAddress(ports[i]));
+        }
+        for (int i = 0; i < ports.length; i++) {
+            futures[i].awaitUninterruptibly();
+            if (futures[i].isSuccess()) {
+                Channel channel = futures[i].channel();
+                hashPrebindPassive.put(ports[i], channel);
+                FtpChannelUtils.addDataChannel(channel, configuration);
+            } else {
+                // this port will be binded on demand
+                logger.warn("Cannot pre-bind passive port " + ports[i] + ": {}",
+                        futures[i].cause() != null ? futures[i].cause().getMessage() : "");
+            }
+        }
+        logger.warn("Pre-bound passive ports: " + hashPrebindPassive.size() + "/" + ports.length);
+    }
+
+    /**
+     * Close the acceptor channels already binded when the bind of a Passive address fails
+     * 
+     * @param futures
+     *            (might be null)
+     */
+    private void closePassiveAcceptors(ChannelFuture[] futures) {
+        if (futures == null) {
+            return;
+        }
+        for (ChannelFuture future : futures) {
+            if (future.isSuccess()) {
+                future.channel().close();
+            }
+        }
+    }
+
     /**
      * Try to unbind (closing the parent channel) the Passive Channel listening to the specified
      * local address if the last one. It returns only when the underlying parent channel is closed
@@ -448,6 +644,11 @@ public class FtpInternalConfiguration {
      * @param address
      */
     public void unbindPassive(InetSocketAddress address) {
+        if (hashPrebindPassive.containsKey(address.getPort())) {
+            // keep listening, only give back the port
+            configuration.releaseRangePort(address.getPort());
+            return;
+        }
         configuration.bindLock();
         try {
             BindAddress bindAddress = hashBindPassiveDataConn.get(address);
@@ -455,8 +656,11 @@ public class FtpInternalConfiguration {
                 bindAddress.nbBind--;
                 logger.debug("Bind number to {} left is {}", address, bindAddress.nbBind);
                 if (bindAddress.nbBind == 0) {
-                    WaarpSslUtility.closingSslChannel(bindAddress.parent);
+                    for (Channel parentChannel : bindAddress.parents) {
+                        WaarpSslUtility.closingSslChannel(parentChannel);
+                    }
                     hashBindPassiveDataConn.remove(address);
+                    configuration.releaseRangePort(address.getPort());
                 }
             } else {
                 logger.warn("No Bind to {}", address);
@@ -474,6 +678,14 @@ public class FtpInternalConfiguration {
         return hashBindPassiveDataConn.size();
     }
 
+    /**
+     * 
+     * @return the number of Passive ports binded at startup
+     */
+    public int getNbPrebindPassive() {
+        return hashPrebindPassive.size();
+    }
+
     /**
      * Return the associated Executor for Command Event
      * 
@@ -492,6 +704,67 @@ public class FtpInternalConfiguration {
         return execDataEvent;
     }
 
+    /**
+     * 
+     * @return the scheduler used for timers
+     */
+    public ScheduledExecutorService getScheduledExecutor() {
+        return executorService;
+    }
+
+    /**
+     * 
+     * @return the timer wheel used for idle checks and data connection timeouts
+     */
+    public Timer getIdleTimer() {
+        return idleTimer;
+    }
+
+    /**
+     * 
+     * @return the server wide scheduler of transfers
+     */
+    public FtpTransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
+    /**
+     * 
+     * @return the server wide accounting of the memory used by data blocks
+     */
+    public FtpGlobalMemory getGlobalMemory() {
+        return globalMemory;
+    }
+
+    /**
+     * Count one TLS handshake of a data connection
+     * 
+     * @param resumed
+     *            True if the handshake was an abbreviated one
+     * @param refused
+     *            True if the data connection is refused since not resumed while required
+     */
+    public void countDataSslHandshake(boolean resumed, boolean refused) {
+        if (resumed) {
+            dataSslResumedHandshakes.incrementAndGet();
+        } else {
+            dataSslFullHandshakes.incrementAndGet();
+        }
+        if (refused) {
+            dataSslRefusedHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * 
+     * @return the status of the TLS handshakes of data connections
+     */
+    public String getDataSslHandshakeStatus() {
+        return "Data TLS handshakes: " + dataSslFullHandshakes.get() + " full, " +
+                dataSslResumedHandshakes.get() + " resumed, " + dataSslRefusedHandshakes.get() +
+                " refused";
+    }
+
     /**
      * @param ssl
      * @return the ActiveBootstrap
@@ -546,14 +819,33 @@ public class FtpInternalConfiguration {
 
     public void releaseResources() {
         WaarpSslUtility.forceCloseAllSslChannels();
-        execBoss.shutdownGracefully();
-        execWorker.shutdownGracefully();
-        execPassiveDataBoss.shutdownGracefully();
-        execDataWorker.shutdownGracefully();
+        if (threadTopology != null) {
+            threadTopology.shutdownGracefully();
+        }
         //execCommandEvent.shutdownGracefully();
         //execDataEvent.shutdownGracefully();
         globalTrafficShapingHandler.release();
         executorService.shutdown();
+        idleTimer.stop();
+        if (transferScheduler != null) {
+            transferScheduler.shutdown();
+        }
+    }
+
+    /**
+     * 
+     * @return the Netty transport used (null before startup)
+     */
+    public FtpNettyTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * 
+     * @return the thread topology (null before startup)
+     */
+    public FtpThreadTopology getThreadTopology() {
+        return threadTopology;
     }
 
     public boolean isAcceptAuthProt() {
@@ -0,0 +1,315 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.config;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+import org.waarp.ftp.core.utils.FtpNettyTransport;
+
+/**
+ * Thread topology of the server: how the Netty I/O loops (command boss and worker, passive data
+ * boss and data worker) and the executors running the blocking handlers (command and data events)
+ * are created and shared, according to a named profile:<br>
+ * - LEGACY: one group per role, sized from SERVER_THREAD and CLIENT_THREAD (doubled for data)<br>
+ * - SHARED: one boss group for control and passive ports, one I/O group shared by control and data
+ * connections, and one small pool for all blocking handlers<br>
+ * - ISOLATED: control and data planes have their own boss, I/O group and blocking pool, such that
+ * transfers cannot starve the control connections<br>
+ * <br>
+ * For SHARED and ISOLATED, the sizes come from ioThreads and blockingThreads (0 meaning the number
+ * of available processors for I/O and twice this number for blocking handlers), and there is one
+ * boss thread by acceptor channel of a listening address.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpThreadTopology {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpThreadTopology.class);
+
+    /**
+     * Thread topology profile
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static enum Profile {
+        /**
+         * One group per role sized from SERVER_THREAD and CLIENT_THREAD
+         */
+        LEGACY,
+        /**
+         * Shared I/O loops and one small pool for blocking handlers
+         */
+        SHARED,
+        /**
+         * Separated control and data planes
+         */
+        ISOLATED;
+
+        /**
+         * 
+         * @param name
+         * @return the Profile associated with this name (LEGACY if unknown)
+         */
+        public static Profile getProfile(String name) {
+            if (name == null) {
+                return LEGACY;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown thread profile {}, LEGACY used instead", name);
+                return LEGACY;
+            }
+        }
+    }
+
+    /**
+     * Profile in use
+     */
+    private final Profile profile;
+
+    /**
+     * Command Boss (acceptors of the control port)
+     */
+    private final EventLoopGroup boss;
+
+    /**
+     * Command Worker (I/O of control connections)
+     */
+    private final EventLoopGroup worker;
+
+    /**
+     * Passive Data Boss (acceptors of the passive ports)
+     */
+    private final EventLoopGroup passiveBoss;
+
+    /**
+     * Data Worker (I/O of data connections)
+     */
+    private final EventLoopGroup dataWorker;
+
+    /**
+     * Executor of the command handlers (blocking)
+     */
+    private final EventExecutorGroup commandEvent;
+
+    /**
+     * Executor of the data handlers (blocking)
+     */
+    private final EventExecutorGroup dataEvent;
+
+    /**
+     * Effective number of threads of each group (same order as the groups)
+     */
+    private final int nbBoss, nbWorker, nbPassiveBoss, nbDataWorker, nbCommandEvent, nbDataEvent;
+
+    /**
+     * Create all the groups according to the profile of the configuration
+     * 
+     * @param configuration
+     * @param transport
+     */
+    public FtpThreadTopology(FtpConfiguration configuration, FtpNettyTransport transport) {
+        profile = configuration.getThreadProfile();
+        int cores = Runtime.getRuntime().availableProcessors();
+        int io = configuration.getIoThreads() > 0 ? configuration.getIoThreads() : cores;
+        int blocking = configuration.getBlockingThreads() > 0 ? configuration.getBlockingThreads()
+                : cores * 2;
+        // one boss thread by acceptor channel (only one with NIO)
+        int acceptors = transport.getAcceptors();
+        switch (profile) {
+            case SHARED:
+                nbBoss = acceptors;
+                nbWorker = io;
+                nbCommandEvent = blocking;
+                boss = transport.newEventLoopGroup(nbBoss,
+                        new WaarpThreadFactory("Boss", false));
+                worker = transport.newEventLoopGroup(nbWorker,
+                        new WaarpThreadFactory("Worker"));
+                commandEvent = new DefaultEventExecutorGroup(nbCommandEvent,
+                        new WaarpThreadFactory("Event"));
+                passiveBoss = boss;
+                nbPassiveBoss = nbBoss;
+                dataWorker = worker;
+                nbDataWorker = nbWorker;
+                dataEvent = commandEvent;
+                nbDataEvent = nbCommandEvent;
+                break;
+            case ISOLATED:
+                nbBoss = acceptors;
+                nbWorker = Math.max(1, io / 4);
+                nbPassiveBoss = acceptors;
+                nbDataWorker = io;
+                nbCommandEvent = Math.max(1, blocking / 4);
+                nbDataEvent = blocking;
+                boss = transport.newEventLoopGroup(nbBoss,
+                        new WaarpThreadFactory("CommandBoss", false));
+                worker = transport.newEventLoopGroup(nbWorker,
+                        new WaarpThreadFactory("CommandWorker"));
+                passiveBoss = transport.newEventLoopGroup(nbPassiveBoss,
+                        new WaarpThreadFactory("PassiveDataBoss"));
+                dataWorker = transport.newEventLoopGroup(nbDataWorker,
+                        new WaarpThreadFactory("DataWorker"));
+                commandEvent = new DefaultEventExecutorGroup(nbCommandEvent,
+                        new WaarpThreadFactory("Command"));
+                dataEvent = new DefaultEventExecutorGroup(nbDataEvent,
+                        new WaarpThreadFactory("Data"));
+                break;
+            case LEGACY:
+            default:
+                nbBoss = configuration.getSERVER_THREAD();
+                nbWorker = configuration.getCLIENT_THREAD();
+                nbPassiveBoss = configuration.getSERVER_THREAD() * 2;
+                nbDataWorker = configuration.getCLIENT_THREAD() * 2;
+                nbCommandEvent = configuration.getCLIENT_THREAD();
+                nbDataEvent = configuration.getCLIENT_THREAD();
+                commandEvent = transport.newEventLoopGroup(nbCommandEvent,
+                        new WaarpThreadFactory("Command"));
+                dataEvent = transport.newEventLoopGroup(nbDataEvent,
+                        new WaarpThreadFactory("Data"));
+                boss = transport.newEventLoopGroup(nbBoss,
+                        new WaarpThreadFactory("CommandBoss", false));
+                worker = transport.newEventLoopGroup(nbWorker,
+                        new WaarpThreadFactory("CommandWorker"));
+                passiveBoss = transport.newEventLoopGroup(nbPassiveBoss,
+                        new WaarpThreadFactory("PassiveDataBoss"));
+                dataWorker = transport.newEventLoopGroup(nbDataWorker,
+                        new WaarpThreadFactory("DataWorker"));
+                break;
+        }
+    }
+
+    /**
+     * 
+     * @return the report of the effective topology
+     */
+    public String getReport() {
+        StringBuilder builder = new StringBuilder("Thread topology ").append(profile.name())
+                .append(": CommandBoss=").append(nbBoss)
+                .append(" CommandWorker=").append(nbWorker);
+        if (passiveBoss == boss) {
+            builder.append(" PassiveDataBoss=(shared with CommandBoss)");
+        } else {
+            builder.append(" PassiveDataBoss=").append(nbPassiveBoss);
+        }
+        if (dataWorker == worker) {
+            builder.append(" DataWorker=(shared with CommandWorker)");
+        } else {
+            builder.append(" DataWorker=").append(nbDataWorker);
+        }
+        builder.append(" CommandEvent=").append(nbCommandEvent);
+        if (dataEvent == commandEvent) {
+            builder.append(" DataEvent=(shared with CommandEvent)");
+        } else {
+            builder.append(" DataEvent=").append(nbDataEvent);
+        }
+        builder.append(" Total=").append(getTotalThreads());
+        return builder.toString();
+    }
+
+    /**
+     * 
+     * @return the maximum number of threads of all groups
+     */
+    public int getTotalThreads() {
+        int total = nbBoss + nbWorker + nbCommandEvent;
+        if (passiveBoss != boss) {
+            total += nbPassiveBoss;
+        }
+        if (dataWorker != worker) {
+            total += nbDataWorker;
+        }
+        if (dataEvent != commandEvent) {
+            total += nbDataEvent;
+        }
+        return total;
+    }
+
+    /**
+     * Shutdown the I/O groups (the event executors are left to end by themselves as before)
+     */
+    public void shutdownGracefully() {
+        boss.shutdownGracefully();
+        worker.shutdownGracefully();
+        if (passiveBoss != boss) {
+            passiveBoss.shutdownGracefully();
+        }
+        if (dataWorker != worker) {
+            dataWorker.shutdownGracefully();
+        }
+    }
+
+    /**
+     * @return the profile in use
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return the command boss group
+     */
+    public EventLoopGroup getBoss() {
+        return boss;
+    }
+
+    /**
+     * @return the command worker group
+     */
+    public EventLoopGroup getWorker() {
+        return worker;
+    }
+
+    /**
+     * @return the passive data boss group
+     */
+    public EventLoopGroup getPassiveBoss() {
+        return passiveBoss;
+    }
+
+    /**
+     * @return the data worker group
+     */
+    public EventLoopGroup getDataWorker() {
+        return dataWorker;
+    }
+
+    /**
+     * @return the executor of the command handlers
+     */
+    public EventExecutorGroup getCommandEvent() {
+        return commandEvent;
+    }
+
+    /**
+     * @return the executor of the data handlers
+     */
+    public EventExecutorGroup getDataEvent() {
+        return dataEvent;
+    }
+}
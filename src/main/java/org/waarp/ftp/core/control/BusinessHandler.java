@@ -19,10 +19,12 @@ package org.waarp.ftp.core.control;
 
 import io.netty.channel.Channel;
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply501Exception;
 import org.waarp.common.file.Restart;
 import org.waarp.common.file.filesystembased.FilesystemBasedOptsMLSxImpl;
 import org.waarp.ftp.core.command.AbstractCommand;
 import org.waarp.ftp.core.command.FtpCommandCode;
+import org.waarp.ftp.core.data.FtpDataAsyncConn;
 import org.waarp.ftp.core.data.FtpTransfer;
 import org.waarp.ftp.core.file.FtpAuth;
 import org.waarp.ftp.core.file.FtpDir;
@@ -155,7 +157,8 @@ public abstract class BusinessHandler {
                 // .append(" \"filename\"")
                 .append('\n')
                 .append("LAN EN*").append('\n')
-                .append(FtpCommandCode.REST.name()).append(" STREAM\n");
+                .append(FtpCommandCode.REST.name()).append(" STREAM\n")
+                .append(FtpCommandCode.MODE.name()).append(" Z\n");
         //builder.append("UTF8");
         return builder.toString();
     }
@@ -213,6 +216,39 @@ public abstract class BusinessHandler {
         return args[0] + " " + FtpCommandCode.OPTS.name() + optsMLSx.getFeat();
     }
 
+    /**
+     * OPTS MODE Z [LEVEL n] (draft-preston-ftpext-deflate): without parameter, the default
+     * compression level is restored.
+     * 
+     * @param args
+     * @return the string to return to the client for the OPTS command for the MODE argument
+     * @throws CommandAbstractException
+     */
+    protected String getModeZOptsMessage(String[] args) throws CommandAbstractException {
+        if (args.length < 2 || !args[1].equalsIgnoreCase("Z")) {
+            throw new Reply501Exception("OPTS MODE only supports MODE Z");
+        }
+        if (args.length % 2 != 0) {
+            throw new Reply501Exception("OPTS MODE Z needs a value for each parameter");
+        }
+        int level = FtpDataAsyncConn.DEFAULT_ZLIB_LEVEL;
+        for (int i = 2; i < args.length; i += 2) {
+            if (!args[i].equalsIgnoreCase("LEVEL")) {
+                throw new Reply501Exception("OPTS MODE Z parameter not supported: " + args[i]);
+            }
+            try {
+                level = Integer.parseInt(args[i + 1]);
+            } catch (NumberFormatException e) {
+                throw new Reply501Exception("OPTS MODE Z LEVEL is not a number: " + args[i + 1]);
+            }
+            if (level < 0 || level > 9) {
+                throw new Reply501Exception("OPTS MODE Z LEVEL must be between 0 and 9");
+            }
+        }
+        getFtpSession().getDataConn().setZlibLevel(level);
+        return "MODE Z LEVEL set to " + level;
+    }
+
     /**
      * Is executed when the channel is closed, just before cleaning and just after.<br>
      * <I>Note: In some circumstances, it could be a good idea to call the clean operation on
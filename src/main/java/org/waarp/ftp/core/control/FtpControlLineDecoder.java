@@ -0,0 +1,257 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.control;
+
+import java.nio.charset.Charset;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufProcessor;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Control line decoder: frames the command lines (CRLF, CRNUL or LF) in one pass over the
+ * received bytes, removes the Telnet IAC sequences (as IAC IP IAC DM sent before ABOR) and
+ * decodes each line directly from the cumulated buffer.<br>
+ * <br>
+ * Partial lines are bounded both in size and in time, such that a client sending a command
+ * byte by byte cannot hold the connection forever.<br>
+ * <br>
+ * Not sharable: one per control connection.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpControlLineDecoder extends ByteToMessageDecoder {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpControlLineDecoder.class);
+
+    /**
+     * Default maximum length of one command line (delimiter excluded)
+     */
+    public static final int DEFAULT_MAX_LINE_LENGTH = 8192;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte NUL = 0;
+    /**
+     * Telnet Interpret As Command
+     */
+    private static final byte IAC = (byte) 0xFF;
+    /**
+     * Telnet SE, the lowest Telnet command byte
+     */
+    private static final int SE = 240;
+    /**
+     * Telnet WILL, WONT, DO, DONT are followed by one option byte
+     */
+    private static final int WILL = 251;
+    private static final int DONT = 254;
+
+    /**
+     * Stops on the only bytes that need a decision: CR, LF and IAC
+     */
+    private static final ByteBufProcessor FIND_CONTROL = new ByteBufProcessor() {
+        @Override
+        public boolean process(byte value) throws Exception {
+            return value != LF && value != CR && value != IAC;
+        }
+    };
+
+    private final Charset charset;
+    private final int maxLineLength;
+    private final long maxLineDelay;
+    /**
+     * Number of bytes of the current line already scanned (from the reader index)
+     */
+    private int scanned = 0;
+    /**
+     * Time when the current partial line was first seen (0 if none)
+     */
+    private long lineStart = 0;
+    /**
+     * True while the end of a too long or too slow line is discarded
+     */
+    private boolean discarding = false;
+
+    /**
+     * 
+     * @param charset
+     *            the charset of the command lines
+     * @param maxLineLength
+     *            the maximum length of one command line
+     * @param maxLineDelay
+     *            the maximum delay in ms for one command line to be completed once started (0
+     *            for no limit)
+     */
+    public FtpControlLineDecoder(Charset charset, int maxLineLength, long maxLineDelay) {
+        this.charset = charset;
+        this.maxLineLength = maxLineLength;
+        this.maxLineDelay = maxLineDelay < 0 ? 0 : maxLineDelay;
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out)
+            throws Exception {
+        for (;;) {
+            int start = in.readerIndex();
+            int end = in.writerIndex();
+            int from = start + scanned;
+            int idx = from < end ? in.forEachByte(from, end - from, FIND_CONTROL) : -1;
+            if (idx < 0) {
+                scanned = end - start;
+                checkPartialLine(in);
+                return;
+            }
+            byte value = in.getByte(idx);
+            if (value == IAC) {
+                if (!removeTelnetCommand(in, start, idx, end)) {
+                    scanned = idx - start;
+                    checkPartialLine(in);
+                    return;
+                }
+                continue;
+            }
+            int eol = 1;
+            if (value == CR) {
+                if (idx + 1 >= end) {
+                    // wait for the next byte, CR will be scanned again
+                    scanned = idx - start;
+                    checkPartialLine(in);
+                    return;
+                }
+                byte next = in.getByte(idx + 1);
+                if (next != LF && next != NUL) {
+                    // a lone CR belongs to the line
+                    scanned = idx + 1 - start;
+                    continue;
+                }
+                eol = 2;
+            }
+            int length = idx - start;
+            scanned = 0;
+            lineStart = 0;
+            if (discarding) {
+                // end of an already rejected line
+                discarding = false;
+                in.readerIndex(idx + eol);
+                continue;
+            }
+            if (length > maxLineLength) {
+                in.readerIndex(idx + eol);
+                throw new TooLongFrameException("Command line of " + length +
+                        " bytes exceeds " + maxLineLength);
+            }
+            String line = in.toString(start, length, charset);
+            in.readerIndex(idx + eol);
+            out.add(line);
+        }
+    }
+
+    /**
+     * Check the pending partial line against the length and delay limits
+     * 
+     * @param in
+     * @throws TooLongFrameException
+     */
+    private void checkPartialLine(ByteBuf in) throws TooLongFrameException {
+        if (discarding) {
+            in.skipBytes(scanned);
+            scanned = 0;
+            return;
+        }
+        if (!in.isReadable()) {
+            lineStart = 0;
+            return;
+        }
+        if (scanned > maxLineLength) {
+            in.skipBytes(scanned);
+            scanned = 0;
+            lineStart = 0;
+            discarding = true;
+            throw new TooLongFrameException("Command line exceeds " + maxLineLength + " bytes");
+        }
+        long now = System.currentTimeMillis();
+        if (lineStart == 0) {
+            lineStart = now;
+        } else if (maxLineDelay > 0 && now - lineStart > maxLineDelay) {
+            in.skipBytes(scanned);
+            scanned = 0;
+            lineStart = 0;
+            discarding = true;
+            throw new TooLongFrameException("Command line not completed within " +
+                    maxLineDelay + " ms");
+        }
+    }
+
+    /**
+     * Remove the Telnet command starting at idx by shifting the beginning of the line (usually
+     * empty) over it. IAC IAC gives back one 0xFF data byte. Only the command bytes (240 to 255)
+     * are removed: an IAC followed by any other byte is a lone IAC, dropped while the byte is
+     * kept (as in IAC IP IAC ABOR giving ABOR).
+     * 
+     * @param in
+     * @param start
+     *            the reader index
+     * @param idx
+     *            the index of IAC
+     * @param end
+     *            the writer index
+     * @return False if the Telnet command is not yet fully received
+     */
+    private boolean removeTelnetCommand(ByteBuf in, int start, int idx, int end) {
+        if (end - idx < 2) {
+            return false;
+        }
+        int command = in.getByte(idx + 1) & 0xFF;
+        int length = 2;
+        int keep = 0;
+        // the kept byte must be scanned again, except the 0xFF data byte given by IAC IAC
+        int rescan = 0;
+        if (command == 0xFF) {
+            keep = 1;
+            rescan = 1;
+        } else if (command < SE) {
+            logger.debug("Lone Telnet IAC ignored before: {}", command);
+            keep = 1;
+        } else if (command >= WILL && command <= DONT) {
+            if (end - idx < 3) {
+                return false;
+            }
+            length = 3;
+        }
+        if (keep == 0) {
+            logger.debug("Telnet command ignored: {}", command);
+        }
+        int removed = length - keep;
+        for (int i = idx - 1; i >= start; i--) {
+            in.setByte(i + removed, in.getByte(i));
+        }
+        in.readerIndex(start + removed);
+        scanned = idx - start + rescan;
+        return true;
+    }
+}
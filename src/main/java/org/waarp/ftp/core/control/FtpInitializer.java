@@ -17,18 +17,15 @@
  */
 package org.waarp.ftp.core.control;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.util.concurrent.EventExecutorGroup;
 
-import org.waarp.common.command.ReplyCode;
 import org.waarp.common.utility.WaarpStringUtils;
 import org.waarp.ftp.core.config.FtpConfiguration;
 import org.waarp.ftp.core.session.FtpSession;
+import org.waarp.ftp.core.utils.FtpIdleHandler;
 
 /**
  * Pipeline factory for Control command connection
@@ -37,17 +34,6 @@ import org.waarp.ftp.core.session.FtpSession;
  * 
  */
 public class FtpInitializer extends ChannelInitializer<SocketChannel> {
-    /**
-     * CRLF, CRNUL, LF delimiters
-     */
-    protected static final ByteBuf[] delimiter = new ByteBuf[] {
-            Unpooled.wrappedBuffer(ReplyCode.CRLF.getBytes(WaarpStringUtils.UTF8)),
-            Unpooled.wrappedBuffer(ReplyCode.CRNUL.getBytes(WaarpStringUtils.UTF8)),
-            Unpooled.wrappedBuffer(ReplyCode.LF.getBytes(WaarpStringUtils.UTF8)) };
-
-    protected static final FtpControlStringDecoder ftpControlStringDecoder = new FtpControlStringDecoder(
-            WaarpStringUtils.UTF8);
-
     protected static final FtpControlStringEncoder ftpControlStringEncoder = new FtpControlStringEncoder(
             WaarpStringUtils.UTF8);
 
@@ -73,6 +59,16 @@ public class FtpInitializer extends ChannelInitializer<SocketChannel> {
         this.configuration = configuration;
     }
 
+    /**
+     * 
+     * @param configuration
+     * @return a new control line decoder (CRLF, CRNUL, LF delimiters) for one control connection
+     */
+    public static FtpControlLineDecoder newControlLineDecoder(FtpConfiguration configuration) {
+        return new FtpControlLineDecoder(WaarpStringUtils.UTF8,
+                FtpControlLineDecoder.DEFAULT_MAX_LINE_LENGTH, configuration.getTIMEOUTCON());
+    }
+
     /**
      * Create the pipeline with Handler, ObjectDecoder, ObjectEncoder.
      */
@@ -80,14 +76,17 @@ public class FtpInitializer extends ChannelInitializer<SocketChannel> {
     public void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
         // Add the text line codec combination first,
-        pipeline.addLast("framer", new DelimiterBasedFrameDecoder(8192, delimiter));
-        pipeline.addLast("decoder", ftpControlStringDecoder);
+        pipeline.addLast("decoder", newControlLineDecoder(configuration));
         pipeline.addLast("encoder", ftpControlStringEncoder);
         // Threaded execution for business logic
         EventExecutorGroup executorGroup = configuration.getFtpInternalConfiguration().getExecutor();
         // and then business logic. New one on every connection
         BusinessHandler newbusiness = businessHandler.newInstance();
-        NetworkHandler newNetworkHandler = new NetworkHandler(new FtpSession(configuration, newbusiness));
+        FtpSession session = new FtpSession(configuration, newbusiness);
+        if (configuration.getLoginIdleTimeout() > 0 || configuration.getControlIdleTimeout() > 0) {
+            pipeline.addLast("idle", new FtpIdleHandler(configuration, session));
+        }
+        NetworkHandler newNetworkHandler = new NetworkHandler(session);
         pipeline.addLast(executorGroup, "handler", newNetworkHandler);
     }
 }
@@ -20,6 +20,7 @@ package org.waarp.ftp.core.control;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.concurrent.RejectedExecutionException;
 
 import io.netty.channel.Channel;
@@ -28,6 +29,7 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
@@ -82,6 +84,34 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
      */
     private volatile ChannelHandlerContext ctx;
 
+    /**
+     * Maximum number of pipelined commands waiting before the control channel stops reading
+     */
+    private static final int MAX_PENDING_COMMANDS = 64;
+
+    /**
+     * Pipelined commands (line and command) waiting for the deferred answer of a transfer
+     * command, in the order of reception (only used from the handler executor)
+     */
+    private final ArrayDeque<Object[]> pendingCommands = new ArrayDeque<Object[]>();
+
+    /**
+     * True while the final answer of the last transfer command is not yet written (only used from
+     * the handler executor)
+     */
+    private boolean answerDeferred = false;
+
+    /**
+     * True if the reading of the control channel is suspended due to too many pending commands
+     */
+    private boolean readSuspended = false;
+
+    /**
+     * True while answers are written without flush, the flush being done once at the end of the
+     * current read or of the pending commands (only used from the handler executor)
+     */
+    private boolean writeBatch = false;
+
     /**
      * Constructor from session
      * 
@@ -139,6 +169,7 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
                 break; // wait at most 1s
             }
         }
+        pendingCommands.clear();
         businessHandler.executeChannelClosed();
         // release file and other permanent objects
         businessHandler.clear();
@@ -183,6 +214,24 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
         return true;
     }
 
+    /**
+     * Idle control connection (from FtpIdleHandler): answer 421 and close the connection, which
+     * releases the data connection and passive bind if any
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            this.ctx = ctx;
+            logger.info("Idle control connection: {}", ctx.channel());
+            session.setExitErrorCode("Idle timeout: disconnect");
+            businessHandler.afterRunCommandKo(new Reply421Exception(session.getReplyCode()
+                    .getMesg()));
+            writeFinalAnswer(ctx);
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
     /**
      * Default exception task: close the current connection after calling exceptionLocalCaught and
      * writing if possible the current replyCode.
@@ -268,6 +317,8 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
     @Override
     public void channelRead0(ChannelHandlerContext ctx, String e) {
         this.ctx = ctx;
+        // answers of commands received in the same read are flushed once
+        writeBatch = true;
         if (isStillAlive(ctx)) {
             // First wait for the initialization to be fully done
             if (!session.isReady()) {
@@ -279,49 +330,97 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
             String message = e;
             AbstractCommand command = FtpCommandCode.getFromLine(getFtpSession(), message);
             logger.debug("RECVMSG: {} CMD: {} " + command.getCode(), message, command.getCommand());
-            // First check if the command is an ABORT, QUIT or STAT
-            if (!FtpCommandCode.isSpecialCommand(command.getCode())) {
-                // Now check if a transfer is on its way: illegal to have at
-                // same time two commands (except ABORT). Wait is at most 100x
-                // RETRYINMS=1s
-                FtpTransferControl control = session.getDataConn().getFtpTransferControl();
-                boolean notFinished = control.waitFtpTransferExecuting();
-                if (notFinished) {
-                    session.setReplyCode(
-                            ReplyCode.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
-                            "Previous transfer command is not finished yet");
-                    businessHandler.afterRunCommandKo(
-                            new Reply503Exception(session.getReplyCode().getMesg()));
-                    writeIntermediateAnswer(ctx);
-                    return;
+            // ABORT, QUIT and STAT are run at once, others wait for the previous answers
+            if ((answerDeferred || !pendingCommands.isEmpty()) &&
+                    !isBypassCommand(command.getCode())) {
+                pendingCommands.add(new Object[] { message, command });
+                if (pendingCommands.size() >= MAX_PENDING_COMMANDS && !readSuspended) {
+                    logger.debug("Too many pipelined commands, suspend reading");
+                    readSuspended = true;
+                    ctx.channel().config().setAutoRead(false);
                 }
+                return;
             }
-            // Default message
-            session.setReplyCode(ReplyCode.REPLY_200_COMMAND_OKAY, null);
-            // Special check for SSL AUTH/PBSZ/PROT/USER/PASS/ACCT
-            if (FtpCommandCode.isSslOrAuthCommand(command.getCode())) {
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
+            runCommand(ctx, message, command);
+        }
+    }
+
+    /**
+     * Flush the answers written during this read
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (writeBatch) {
+            writeBatch = false;
+            ctx.flush();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    /**
+     * ABOR, STAT and QUIT are never queued behind pipelined commands. NOOP is only executed as
+     * soon as received if nothing is waiting before it (neither a pipelined command nor the final
+     * answer of a transfer), such that the answers stay in order.
+     * 
+     * @param code
+     * @return True if the command is executed as soon as received
+     */
+    private boolean isBypassCommand(FtpCommandCode code) {
+        if (code == FtpCommandCode.NOOP) {
+            return !answerDeferred && pendingCommands.isEmpty();
+        }
+        return FtpCommandCode.isSpecialCommand(code);
+    }
+
+    /**
+     * Execute one received command
+     * 
+     * @param ctx
+     * @param message
+     *            the received line
+     * @param command
+     *            the command from this line
+     */
+    private void runCommand(ChannelHandlerContext ctx, String message, AbstractCommand command) {
+        if (!FtpCommandCode.isSpecialCommand(command.getCode())) {
+            // Now check if a transfer is still on its way: illegal to have at
+            // same time two commands (except ABORT)
+            FtpTransferControl control = session.getDataConn().getFtpTransferControl();
+            if (control.isFtpTransferExecuting()) {
+                session.setReplyCode(
+                        ReplyCode.REPLY_503_BAD_SEQUENCE_OF_COMMANDS,
+                        "Previous transfer command is not finished yet");
+                businessHandler.afterRunCommandKo(
+                        new Reply503Exception(session.getReplyCode().getMesg()));
+                writeIntermediateAnswer(ctx);
                 return;
             }
-            if (session.getCurrentCommand().isNextCommandValid(command)) {
-                logger.debug("Previous: " + session.getCurrentCommand().getCode() +
-                        " Next: " + command.getCode());
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
-            } else {
-                if (!session.getAuth().isIdentified()) {
-                    session.setReplyCode(ReplyCode.REPLY_530_NOT_LOGGED_IN, null);
-                    session.setNextCommand(new USER());
-                    writeFinalAnswer(ctx);
-                    return;
-                }
-                command = new IncorrectCommand();
-                command.setArgs(getFtpSession(), message, null,
-                        FtpCommandCode.IncorrectSequence);
-                session.setNextCommand(command);
-                messageRunAnswer(ctx);
+        }
+        // Default message
+        session.setReplyCode(ReplyCode.REPLY_200_COMMAND_OKAY, null);
+        // Special check for SSL AUTH/PBSZ/PROT/USER/PASS/ACCT
+        if (FtpCommandCode.isSslOrAuthCommand(command.getCode())) {
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
+            return;
+        }
+        if (session.getCurrentCommand().isNextCommandValid(command)) {
+            logger.debug("Previous: " + session.getCurrentCommand().getCode() +
+                    " Next: " + command.getCode());
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
+        } else {
+            if (!session.getAuth().isIdentified()) {
+                session.setReplyCode(ReplyCode.REPLY_530_NOT_LOGGED_IN, null);
+                session.setNextCommand(new USER());
+                writeFinalAnswer(ctx);
+                return;
             }
+            command = new IncorrectCommand();
+            command.setArgs(getFtpSession(), message, null,
+                    FtpCommandCode.IncorrectSequence);
+            session.setNextCommand(command);
+            messageRunAnswer(ctx);
         }
     }
 
@@ -336,6 +435,7 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
                 session.getReplyCode() == ReplyCode.REPLY_221_CLOSING_CONTROL_CONNECTION) {
             session.getDataConn().getFtpTransferControl().clear();
             writeIntermediateAnswer(ctx).addListener(WaarpSslUtility.SSLCLOSE);
+            ctx.flush();
             return true;
         }
         writeIntermediateAnswer(ctx);
@@ -350,6 +450,9 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
      */
     public ChannelFuture writeIntermediateAnswer(ChannelHandlerContext ctx) {
         logger.debug("Answer: " + session.getAnswer());
+        if (writeBatch && ctx.executor().inEventLoop()) {
+            return ctx.write(session.getAnswer());
+        }
         return ctx.writeAndFlush(session.getAnswer());
     }
 
@@ -362,6 +465,147 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
         return writeIntermediateAnswer(ctx);
     }
 
+    /**
+     * Write the final answer of a transfer command once its transfer is over (called from
+     * {@link FtpTransferControl} from any thread). The answer is written from the handler
+     * executor, as the other commands, at once if already in it (as for ABOR).
+     * 
+     * @param command
+     *            the transfer command
+     * @param replyCode
+     *            the reply code set at the end of the transfer
+     * @param answer
+     *            the answer set at the end of the transfer
+     * @param error
+     *            the error of the transfer command if any
+     */
+    public void writeDeferredAnswer(final AbstractCommand command, final ReplyCode replyCode,
+            final String answer, final CommandAbstractException error) {
+        final ChannelHandlerContext context = ctx;
+        if (context == null) {
+            return;
+        }
+        if (context.executor().inEventLoop()) {
+            runDeferredAnswer(context, command, replyCode, answer, error);
+            return;
+        }
+        try {
+            context.executor().execute(new Runnable() {
+                public void run() {
+                    runDeferredAnswer(context, command, replyCode, answer, error);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Rejected execution (shutdown) from {}", context.channel());
+        }
+    }
+
+    /**
+     * Write the final answer of a transfer command from the handler executor, the transfer command
+     * and its answer being current again (special commands may have run meanwhile)
+     * 
+     * @param ctx
+     * @param command
+     * @param replyCode
+     * @param answer
+     * @param error
+     */
+    private void runDeferredAnswer(ChannelHandlerContext ctx, AbstractCommand command,
+            ReplyCode replyCode, String answer, CommandAbstractException error) {
+        AbstractCommand current = session.getCurrentCommand();
+        // Written while another command executes (as ABOR): its state is restored afterwards
+        boolean nested = current != command && !session.isCurrentCommandFinished();
+        boolean currentFinished = session.isCurrentCommandFinished();
+        ReplyCode currentReplyCode = session.getReplyCode();
+        String currentAnswer = session.getAnswer();
+        if (command != null) {
+            session.setCurrentCommandAndAnswer(command, false, replyCode, answer);
+        }
+        if (error == null) {
+            try {
+                businessHandler.afterRunCommandOk();
+            } catch (CommandAbstractException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            logger.debug("Command in error", error);
+            session.setReplyCode(error);
+            businessHandler.afterRunCommandKo(error);
+            writeFinalAnswer(ctx);
+            // In error so Check that Data is closed
+            if (session.getDataConn().isActive()) {
+                logger.debug("Closing DataChannel while command is in error");
+                try {
+                    session.getDataConn().getCurrentDataChannel().close();
+                } catch (FtpNoConnectionException e) {
+                    // ignore
+                }
+            }
+        } else {
+            writeFinalAnswer(ctx);
+        }
+        if (nested) {
+            session.setCurrentCommandAndAnswer(current, currentFinished, currentReplyCode,
+                    currentAnswer);
+        }
+        resumePendingCommands();
+    }
+
+    /**
+     * The final answer of the last transfer command is written or cancelled (called from
+     * {@link FtpTransferControl}): the pipelined commands are executed from the handler executor
+     */
+    public void resumePendingCommands() {
+        final ChannelHandlerContext context = ctx;
+        if (context == null) {
+            return;
+        }
+        try {
+            context.executor().execute(new Runnable() {
+                public void run() {
+                    if (answerDeferred &&
+                            !session.getDataConn().getFtpTransferControl().isAnswerDeferred()) {
+                        answerDeferred = false;
+                        runPendingCommands(context);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("Rejected execution (shutdown) from {}", context.channel());
+        }
+    }
+
+    /**
+     * Execute the pipelined commands in order until one defers its answer again, flushing the
+     * answers once
+     * 
+     * @param ctx
+     */
+    private void runPendingCommands(ChannelHandlerContext ctx) {
+        boolean batch = writeBatch;
+        writeBatch = true;
+        try {
+            while (!answerDeferred && ctx.channel().isActive() && isStillAlive(ctx)) {
+                Object[] pending = pendingCommands.poll();
+                if (pending == null) {
+                    break;
+                }
+                runCommand(ctx, (String) pending[0], (AbstractCommand) pending[1]);
+            }
+        } finally {
+            writeBatch = batch;
+            if (!batch) {
+                ctx.flush();
+            }
+        }
+        if (readSuspended && pendingCommands.size() <= MAX_PENDING_COMMANDS / 2) {
+            logger.debug("Pipelined commands consumed, resume reading");
+            readSuspended = false;
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
     /**
      * To be extended to inform of an error to SNMP support
      * 
@@ -383,6 +627,14 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
             AbstractCommand command = session.getCurrentCommand();
             logger.debug("Run {}", command.getCommand());
             command.exec();
+            FtpTransferControl control = session.getDataConn().getFtpTransferControl();
+            if (control.isFinalAnswerDeferred()) {
+                // The final answer will be written at the end of the transfer, next
+                // commands wait for it
+                answerDeferred = true;
+                control.setCommandExecuted();
+                return;
+            }
             businessHandler.afterRunCommandOk();
         } catch (CommandAbstractException e) {
             logger.debug("Command in error", e);
@@ -411,6 +663,7 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
                 session.getCurrentCommand().getCode() == FtpCommandCode.CCC) {
             controlChannel.config().setAutoRead(false);
             ChannelFuture future = writeIntermediateAnswer(ctx);
+            ctx.flush();
             session.setCurrentCommandFinished();
             if (session.getCurrentCommand().getCode() == FtpCommandCode.AUTH) {
                 logger.debug("SSL to be added to pipeline");
@@ -420,9 +673,7 @@ public class NetworkHandler extends SimpleChannelInboundHandler<String> {
                 } else {
                     logger.debug("Add Explicitely SSL support to Command");
                     // add the SSL support
-                    sslHandler =
-                            FtpsInitializer.waarpSslContextFactory.initInitializer(true,
-                                    FtpsInitializer.waarpSslContextFactory.needClientAuthentication());
+                    sslHandler = FtpsInitializer.newSslHandler(ctx.alloc());
                     session.prepareSsl();
                     WaarpSslUtility.addSslHandler(future, ctx.pipeline(), sslHandler,
                             new GenericFutureListener<Future<? super Channel>>() {
@@ -20,9 +20,9 @@
  */
 package org.waarp.ftp.core.control.ftps;
 
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.DelimiterBasedFrameDecoder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.util.concurrent.EventExecutorGroup;
 
@@ -32,6 +32,7 @@ import org.waarp.ftp.core.config.FtpConfiguration;
 import org.waarp.ftp.core.control.BusinessHandler;
 import org.waarp.ftp.core.control.FtpInitializer;
 import org.waarp.ftp.core.session.FtpSession;
+import org.waarp.ftp.core.utils.FtpIdleHandler;
 
 /**
  * @author "Frederic Bregier"
@@ -41,6 +42,40 @@ public class FtpsInitializer extends FtpInitializer {
 
     public static WaarpSslContextFactory waarpSslContextFactory;
     public static WaarpSecureKeyStore waarpSecureKeyStore;
+    /**
+     * SSL engine choice (if null, the JDK engine of waarpSslContextFactory is used)
+     */
+    public static FtpsSslEngineFactory sslEngineFactory;
+
+    /**
+     * 
+     * @param alloc
+     *            the allocator of the channel
+     * @return a new server SslHandler for a control connection
+     */
+    public static SslHandler newSslHandler(ByteBufAllocator alloc) {
+        if (sslEngineFactory != null) {
+            return sslEngineFactory.newServerHandler(alloc);
+        }
+        return waarpSslContextFactory.initInitializer(true,
+                waarpSslContextFactory.needClientAuthentication());
+    }
+
+    /**
+     * 
+     * @param alloc
+     *            the allocator of the channel
+     * @param peerHost
+     * @param peerPort
+     * @return a new server SslHandler for a data connection of the given client
+     */
+    public static SslHandler newSslHandler(ByteBufAllocator alloc, String peerHost, int peerPort) {
+        if (sslEngineFactory != null) {
+            return sslEngineFactory.newServerHandler(alloc, peerHost, peerPort);
+        }
+        return waarpSslContextFactory.initInitializer(true,
+                waarpSslContextFactory.needClientAuthentication(), peerHost, peerPort);
+    }
 
     /**
      * Constructor which Initializes some data for Server only
@@ -61,20 +96,21 @@ public class FtpsInitializer extends FtpInitializer {
     public void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
         // Server: no renegotiation still, but possible clientAuthent
-        SslHandler handler = waarpSslContextFactory.initInitializer(true,
-                waarpSslContextFactory.needClientAuthentication());
+        SslHandler handler = newSslHandler(ch.alloc());
         pipeline.addLast("SSL", handler);
         // Add the text line codec combination first,
-        pipeline.addLast("framer", new DelimiterBasedFrameDecoder(8192, delimiter));
-        pipeline.addLast("decoder", ftpControlStringDecoder);
+        pipeline.addLast("decoder", newControlLineDecoder(configuration));
         pipeline.addLast("encoder", ftpControlStringEncoder);
         // Threaded execution for business logic
 
         EventExecutorGroup executorGroup = configuration.getFtpInternalConfiguration().getExecutor();
         // and then business logic. New one on every connection
         BusinessHandler newbusiness = businessHandler.newInstance();
-        SslNetworkHandler newNetworkHandler = new SslNetworkHandler(new FtpSession(
-                configuration, newbusiness));
+        FtpSession session = new FtpSession(configuration, newbusiness);
+        if (configuration.getLoginIdleTimeout() > 0 || configuration.getControlIdleTimeout() > 0) {
+            pipeline.addLast("idle", new FtpIdleHandler(configuration, session));
+        }
+        SslNetworkHandler newNetworkHandler = new SslNetworkHandler(session);
         pipeline.addLast(executorGroup, "handler", newNetworkHandler);
     }
 }
@@ -0,0 +1,261 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.control.ftps;
+
+import java.security.KeyStore;
+
+import javax.net.ssl.ManagerFactoryParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ClientAuth;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.SimpleTrustManagerFactory;
+
+import org.waarp.common.crypto.ssl.WaarpSecureKeyStore;
+import org.waarp.common.crypto.ssl.WaarpSslContextFactory;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Factory of the server side SslHandlers of the FTPS control and data connections, using either
+ * the JDK engine (through {@link WaarpSslContextFactory}) or the OpenSSL engine of
+ * netty-tcnative.<br>
+ * <br>
+ * With OpenSSL, one SslContext is shared by all connections, such that its session cache (and the
+ * session tickets OpenSSL issues with keys of this context) allows a client to resume on a data
+ * connection the session of its control connection or of a previous data connection. The
+ * reference counted engine is used, its native resources being freed as soon as the SslHandler is
+ * removed, and its buffers come from the allocator of the channel (pooled).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpsSslEngineFactory {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpsSslEngineFactory.class);
+
+    /**
+     * SSL engine
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static enum Engine {
+        /**
+         * JDK SSLEngine
+         */
+        JDK,
+        /**
+         * OpenSSL through netty-tcnative (JDK used if not available)
+         */
+        OPENSSL;
+
+        /**
+         * 
+         * @param name
+         * @return the Engine associated with this name (JDK if unknown)
+         */
+        public static Engine getEngine(String name) {
+            if (name == null) {
+                return JDK;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown SSL engine {}, JDK used instead", name);
+                return JDK;
+            }
+        }
+    }
+
+    /**
+     * Default size of the server session cache (number of sessions)
+     */
+    public static final long DEFAULT_SESSION_CACHE_SIZE = 20480;
+
+    /**
+     * Default timeout of the sessions in the server cache (in seconds)
+     */
+    public static final long DEFAULT_SESSION_TIMEOUT = 3600;
+
+    /**
+     * JDK factory
+     */
+    private final WaarpSslContextFactory waarpSslContextFactory;
+
+    /**
+     * Shared OpenSSL context (null if JDK is used)
+     */
+    private final SslContext sslContext;
+
+    /**
+     * Engine in use
+     */
+    private final Engine engine;
+
+    /**
+     * @param waarpSslContextFactory
+     *            the JDK factory, also used as fallback
+     * @param waarpSecureKeyStore
+     *            the key and trust stores
+     * @param engine
+     *            the asked engine
+     * @param sessionCacheSize
+     *            the number of sessions kept by the server cache (OpenSSL only, 0 for default)
+     * @param sessionTimeout
+     *            the timeout in seconds of cached sessions (OpenSSL only, 0 for default)
+     */
+    public FtpsSslEngineFactory(WaarpSslContextFactory waarpSslContextFactory,
+            WaarpSecureKeyStore waarpSecureKeyStore, Engine engine, long sessionCacheSize,
+            long sessionTimeout) {
+        this.waarpSslContextFactory = waarpSslContextFactory;
+        SslContext context = null;
+        if (engine == Engine.OPENSSL) {
+            if (isOpenSslAvailable()) {
+                try {
+                    context = newOpenSslContext(waarpSecureKeyStore,
+                            waarpSslContextFactory.needClientAuthentication(),
+                            sessionCacheSize > 0 ? sessionCacheSize : DEFAULT_SESSION_CACHE_SIZE,
+                            sessionTimeout > 0 ? sessionTimeout : DEFAULT_SESSION_TIMEOUT);
+                } catch (Exception e) {
+                    logger.warn("Cannot initialize OpenSSL engine, JDK used instead", e);
+                }
+            } else {
+                logger.warn("OpenSSL engine is not available, JDK used instead");
+            }
+        }
+        sslContext = context;
+        this.engine = context != null ? Engine.OPENSSL : Engine.JDK;
+        logger.info("SSL engine used: " + this.engine.name());
+    }
+
+    /**
+     * 
+     * @return True if netty-tcnative (OpenSSL) can be used
+     */
+    public static boolean isOpenSslAvailable() {
+        try {
+            return OpenSsl.isAvailable();
+        } catch (Throwable e) {
+            // classes or native library not present
+            return false;
+        }
+    }
+
+    /**
+     * Create the shared server OpenSSL context from the Waarp key and trust stores
+     * 
+     * @param waarpSecureKeyStore
+     * @param needClientAuthentication
+     * @param sessionCacheSize
+     * @param sessionTimeout
+     * @return the server SslContext
+     * @throws Exception
+     */
+    private static SslContext newOpenSslContext(final WaarpSecureKeyStore waarpSecureKeyStore,
+            boolean needClientAuthentication, long sessionCacheSize, long sessionTimeout)
+            throws Exception {
+        TrustManagerFactory trustManagerFactory = new SimpleTrustManagerFactory() {
+            @Override
+            protected void engineInit(KeyStore keyStore) throws Exception {
+            }
+
+            @Override
+            protected void engineInit(ManagerFactoryParameters managerFactoryParameters)
+                    throws Exception {
+            }
+
+            @Override
+            protected TrustManager[] engineGetTrustManagers() {
+                return waarpSecureKeyStore.getSecureTrustManagerFactory().getTrustManagers();
+            }
+        };
+        return SslContextBuilder.forServer(waarpSecureKeyStore.getKeyManagerFactory())
+                .sslProvider(SslProvider.OPENSSL_REFCNT)
+                .trustManager(trustManagerFactory)
+                .clientAuth(needClientAuthentication ? ClientAuth.REQUIRE : ClientAuth.NONE)
+                .sessionCacheSize(sessionCacheSize)
+                .sessionTimeout(sessionTimeout)
+                .build();
+    }
+
+    /**
+     * 
+     * @return the engine in use
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * 
+     * @return the shared OpenSSL context (null if the JDK engine is used)
+     */
+    public SslContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * 
+     * @return True if the client must be authenticated
+     */
+    public boolean needClientAuthentication() {
+        return waarpSslContextFactory.needClientAuthentication();
+    }
+
+    /**
+     * 
+     * @param alloc
+     *            the allocator of the channel
+     * @return a new server SslHandler for a control connection
+     */
+    public SslHandler newServerHandler(ByteBufAllocator alloc) {
+        if (sslContext != null) {
+            return sslContext.newHandler(alloc);
+        }
+        return waarpSslContextFactory.initInitializer(true,
+                waarpSslContextFactory.needClientAuthentication());
+    }
+
+    /**
+     * 
+     * @param alloc
+     *            the allocator of the channel
+     * @param peerHost
+     *            host of the client (from its control connection)
+     * @param peerPort
+     *            port of the client control connection
+     * @return a new server SslHandler for a data connection
+     */
+    public SslHandler newServerHandler(ByteBufAllocator alloc, String peerHost, int peerPort) {
+        if (sslContext != null) {
+            return sslContext.newHandler(alloc, peerHost, peerPort);
+        }
+        return waarpSslContextFactory.initInitializer(true,
+                waarpSslContextFactory.needClientAuthentication(), peerHost, peerPort);
+    }
+}
@@ -21,6 +21,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
 import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslHandler;
 
 import org.waarp.common.command.exception.Reply425Exception;
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
@@ -119,6 +120,16 @@ public class FtpDataAsyncConn {
      */
     private volatile FtpArgumentCode.TransferMode transferMode = FtpArgumentCode.TransferMode.STREAM;
 
+    /**
+     * Default compression level for MODE Z
+     */
+    public static final int DEFAULT_ZLIB_LEVEL = 6;
+
+    /**
+     * Current compression level for MODE Z (from OPTS MODE Z LEVEL)
+     */
+    private volatile int zlibLevel = DEFAULT_ZLIB_LEVEL;
+
     /**
      * Constructor for Active session by default
      * 
@@ -218,6 +229,7 @@ public class FtpDataAsyncConn {
      *            remote address
      */
     public void setActive(InetSocketAddress address) {
+        closeKeptOpenDataChannel();
         unbindPassive();
         setDefaultLocalPort();
         resetLocalAddress();
@@ -233,6 +245,7 @@ public class FtpDataAsyncConn {
      * set)
      */
     public void setPassive() {
+        closeKeptOpenDataChannel();
         unbindPassive();
         resetLocalAddress();
         passiveMode = true;
@@ -278,9 +291,28 @@ public class FtpDataAsyncConn {
      */
     public void setMode(FtpArgumentCode.TransferMode transferMode) {
         this.transferMode = transferMode;
+        if (isStreamFile()) {
+            closeKeptOpenDataChannel();
+        }
         setCorrectCodec();
     }
 
+    /**
+     * @return the compression level used in MODE Z
+     */
+    public int getZlibLevel() {
+        return zlibLevel;
+    }
+
+    /**
+     * @param zlibLevel
+     *            the compression level to use in MODE Z (0 to 9), taken into account by the next
+     *            data connection
+     */
+    public void setZlibLevel(int zlibLevel) {
+        this.zlibLevel = zlibLevel;
+    }
+
     /**
      * @return the transferStructure
      */
@@ -294,6 +326,9 @@ public class FtpDataAsyncConn {
      */
     public void setStructure(FtpArgumentCode.TransferStructure transferStructure) {
         this.transferStructure = transferStructure;
+        if (isStreamFile()) {
+            closeKeptOpenDataChannel();
+        }
         setCorrectCodec();
     }
 
@@ -342,13 +377,28 @@ public class FtpDataAsyncConn {
 
     /**
      * 
-     * @return True if the current mode for data connection is Stream
+     * @return True if the current mode for data connection is Stream (or Deflate which is a
+     *         compressed Stream)
      */
     public boolean isStreamFile() {
-        return transferMode == TransferMode.STREAM &&
+        return (transferMode == TransferMode.STREAM || transferMode == TransferMode.ZLIB) &&
                 transferStructure == TransferStructure.FILE;
     }
 
+    /**
+     * 
+     * @return True if the current mode for data connection allows to send files as is, without
+     *         any codec nor SSL (Image + Stream + File), such that zero-copy could be used
+     */
+    public boolean isFileStreamImageWithoutSsl() {
+        if (transferType != TransferType.IMAGE || transferMode != TransferMode.STREAM ||
+                !isStreamFile() || session.isDataSsl()) {
+            return false;
+        }
+        Channel channel = dataChannel;
+        return channel != null && channel.pipeline().get(SslHandler.class) == null;
+    }
+
     /**
      * This function must be called after any changes of parameters, ie after MODE, STRU, TYPE
      * 
@@ -360,6 +410,18 @@ public class FtpDataAsyncConn {
         }
     }
 
+    /**
+     * Close the data connection kept open between transfers (Block mode) when the data
+     * connection parameters change (PORT, PASV or back to Stream mode)
+     */
+    private void closeKeptOpenDataChannel() {
+        Channel channel = dataChannel;
+        if (channel != null && channel.isActive() && !transferControl.isFtpTransferExecuting()) {
+            logger.debug("Close kept open data connection: {}", channel);
+            WaarpSslUtility.closingSslChannel(channel);
+        }
+    }
+
     /**
      * Unbind passive connection when close the Data Channel (from channelInactive())
      * 
@@ -0,0 +1,124 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+/**
+ * Combined pause of the reads of a data channel.<br>
+ * <br>
+ * Several independent reasons may stop reading from a data channel (no transfer running yet or
+ * anymore, codec not yet ready, global memory exhausted). Each one sets its own reason, and the
+ * reads are resumed (autoRead on) only once all reasons are cleared, such that one owner cannot
+ * resume a channel still paused by another one.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDataChannelPause {
+    /**
+     * No transfer is running on the channel (not yet started or finished)
+     */
+    public static final int NO_TRANSFER = 1;
+    /**
+     * The codec is not yet ready to decode the received bytes
+     */
+    public static final int CODEC_NOT_READY = 2;
+    /**
+     * The global memory budget is exhausted
+     */
+    public static final int MEMORY = 4;
+
+    private static final AttributeKey<FtpDataChannelPause> PAUSE =
+            AttributeKey.valueOf("FtpDataChannelPause");
+
+    /**
+     * Current reasons of pause
+     */
+    private int reasons = 0;
+
+    private FtpDataChannelPause() {
+    }
+
+    /**
+     * 
+     * @param channel
+     * @return the pause state associated with this channel
+     */
+    private static FtpDataChannelPause get(Channel channel) {
+        Attribute<FtpDataChannelPause> attribute = channel.attr(PAUSE);
+        FtpDataChannelPause pause = attribute.get();
+        if (pause == null) {
+            pause = new FtpDataChannelPause();
+            FtpDataChannelPause old = attribute.setIfAbsent(pause);
+            if (old != null) {
+                pause = old;
+            }
+        }
+        return pause;
+    }
+
+    /**
+     * Pause the reads of the channel for the given reason
+     * 
+     * @param channel
+     * @param reason
+     */
+    public static void pause(Channel channel, int reason) {
+        FtpDataChannelPause pause = get(channel);
+        synchronized (pause) {
+            pause.reasons |= reason;
+            channel.config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Clear the given reason of pause, resuming the reads of the channel if no other reason
+     * remains
+     * 
+     * @param channel
+     * @param reason
+     * @return True if the reads are resumed
+     */
+    public static boolean resume(Channel channel, int reason) {
+        FtpDataChannelPause pause = get(channel);
+        synchronized (pause) {
+            pause.reasons &= ~reason;
+            if (pause.reasons == 0) {
+                channel.config().setAutoRead(true);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 
+     * @param channel
+     * @param reason
+     * @return True if the reads of the channel are paused for the given reason
+     */
+    public static boolean isPaused(Channel channel, int reason) {
+        FtpDataChannelPause pause = get(channel);
+        synchronized (pause) {
+            return (pause.reasons & reason) != 0;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+import io.netty.channel.Channel;
+
+/**
+ * Server wide accounting of the memory used by data blocks, limited by
+ * {@link org.waarp.ftp.core.config.FtpConfiguration#getMaxGlobalMemory()}.<br>
+ * <br>
+ * - Retrieve side: each block written to a data channel reserves its size until the write is
+ * done, the writer waiting (so delaying the next read from the file) while the budget is
+ * exhausted.<br>
+ * - Store side: each decoded block reserves its size until it is written to the file; if the
+ * budget is exhausted, reads from the data channel are paused (autoRead off) and resumed as soon
+ * as enough memory is released, unless paused for another reason (see
+ * {@link FtpDataChannelPause}).<br>
+ * <br>
+ * A block is always accepted if nothing is reserved, such that a budget lower than one block
+ * cannot stop all transfers. A budget of 0 or less means no limit (only accounting).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpGlobalMemory {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpGlobalMemory.class);
+
+    /**
+     * Maximum of memory for all blocks
+     */
+    private final long maxMemory;
+
+    /**
+     * Current reserved memory
+     */
+    private final AtomicLong currentMemory = new AtomicLong();
+
+    /**
+     * Peak of reserved memory
+     */
+    private final AtomicLong peakMemory = new AtomicLong();
+
+    /**
+     * Number of times a writer had to wait or a channel was paused
+     */
+    private final AtomicLong nbPaused = new AtomicLong();
+
+    /**
+     * Data channels paused due to the lack of memory
+     */
+    private final ConcurrentHashMap<Channel, Boolean> pausedChannels =
+            new ConcurrentHashMap<Channel, Boolean>();
+
+    /**
+     * Lock used by writers waiting for memory
+     */
+    private final Object memoryLock = new Object();
+
+    /**
+     * Delay between 2 checks of a waiting writer, in case its channel is closed
+     */
+    private static final long WAIT_DELAY = 100;
+
+    /**
+     * @param maxMemory
+     *            maximum of memory for all blocks, 0 or less meaning no limit
+     */
+    public FtpGlobalMemory(long maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Try to reserve the given size
+     * 
+     * @param size
+     * @return True if reserved
+     */
+    private boolean tryReserve(long size) {
+        for (;;) {
+            long current = currentMemory.get();
+            long next = current + size;
+            if (maxMemory > 0 && current > 0 && next > maxMemory) {
+                return false;
+            }
+            if (currentMemory.compareAndSet(current, next)) {
+                updatePeak(next);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param value
+     */
+    private void updatePeak(long value) {
+        long peak = peakMemory.get();
+        while (value > peak && !peakMemory.compareAndSet(peak, value)) {
+            peak = peakMemory.get();
+        }
+    }
+
+    /**
+     * Reserve the given size for a block to write, waiting while the budget is exhausted and the
+     * channel still active
+     * 
+     * @param channel
+     * @param size
+     * @return True if reserved, False if the channel is no more active
+     * @throws InterruptedException
+     */
+    public boolean reserveForWrite(Channel channel, long size) throws InterruptedException {
+        if (tryReserve(size)) {
+            return true;
+        }
+        nbPaused.incrementAndGet();
+        synchronized (memoryLock) {
+            while (channel.isActive()) {
+                if (tryReserve(size)) {
+                    return true;
+                }
+                memoryLock.wait(WAIT_DELAY);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reserve the given size for a received block. The block is always accepted, but if the
+     * budget is exhausted, reads from the channel are paused until enough memory is released.
+     * 
+     * @param channel
+     * @param size
+     */
+    public void reserveForRead(Channel channel, long size) {
+        long current = currentMemory.addAndGet(size);
+        updatePeak(current);
+        if (maxMemory > 0 && current > maxMemory
+                && !FtpDataChannelPause.isPaused(channel, FtpDataChannelPause.MEMORY)) {
+            nbPaused.incrementAndGet();
+            logger.debug("Global memory exhausted, pause reading: {}", channel);
+            pausedChannels.put(channel, Boolean.TRUE);
+            FtpDataChannelPause.pause(channel, FtpDataChannelPause.MEMORY);
+            if (currentMemory.get() <= maxMemory) {
+                // released in between
+                resumeChannels();
+            }
+        }
+    }
+
+    /**
+     * Release the given size, waking up writers and resuming paused channels if possible
+     * 
+     * @param size
+     */
+    public void release(long size) {
+        long current = currentMemory.addAndGet(-size);
+        if (maxMemory <= 0 || current > maxMemory) {
+            return;
+        }
+        synchronized (memoryLock) {
+            memoryLock.notifyAll();
+        }
+        if (!pausedChannels.isEmpty()) {
+            resumeChannels();
+        }
+    }
+
+    /**
+     * Resume the channels paused due to the lack of memory, unless paused for another reason
+     */
+    private void resumeChannels() {
+        Iterator<Channel> iterator = pausedChannels.keySet().iterator();
+        while (iterator.hasNext()) {
+            Channel channel = iterator.next();
+            iterator.remove();
+            if (channel.isActive()
+                    && FtpDataChannelPause.resume(channel, FtpDataChannelPause.MEMORY)) {
+                logger.debug("Global memory available, resume reading: {}", channel);
+            }
+        }
+    }
+
+    /**
+     * Forget the channel (when closed)
+     * 
+     * @param channel
+     */
+    public void removeChannel(Channel channel) {
+        pausedChannels.remove(channel);
+    }
+
+    /**
+     * @return the maximum of memory for all blocks (0 or less meaning no limit)
+     */
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    /**
+     * @return the current reserved memory
+     */
+    public long getCurrentMemory() {
+        return currentMemory.get();
+    }
+
+    /**
+     * @return the peak of reserved memory since startup
+     */
+    public long getPeakMemory() {
+        return peakMemory.get();
+    }
+
+    /**
+     * @return the number of times a transfer was paused due to the lack of memory
+     */
+    public long getNbPaused() {
+        return nbPaused.get();
+    }
+
+    /**
+     * 
+     * @return the status of the memory usage
+     */
+    public String getStatus() {
+        return "Memory: " + currentMemory.get() + " used, " + peakMemory.get() + " peak, " +
+                (maxMemory > 0 ? maxMemory : "no") + " limit, " + nbPaused.get() +
+                " paused, " + pausedChannels.size() + " channels paused";
+    }
+}
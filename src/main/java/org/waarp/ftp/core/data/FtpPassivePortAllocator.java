@@ -0,0 +1,216 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free allocator of the ports of the passive range: a bitmap (one bit by port) tells which
+ * ports are leased to a session, from {@link #lease()} until {@link #release(int)} when the
+ * passive address is unbinded, such that a port is never proposed twice while in use.<br>
+ * <br>
+ * Search starts after the last leased port, so that a port just released (possibly still in
+ * TIME_WAIT) is reused as late as possible, as the previous circular allocation did.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpPassivePortAllocator {
+    /**
+     * First port of the range
+     */
+    private final int min;
+
+    /**
+     * Number of ports in the range
+     */
+    private final int size;
+
+    /**
+     * One bit by port, set when leased
+     */
+    private final AtomicLongArray bitmap;
+
+    /**
+     * Mask of the valid bits of the last word
+     */
+    private final long lastWordMask;
+
+    /**
+     * Index from which the next search starts
+     */
+    private final AtomicInteger cursor = new AtomicInteger(0);
+
+    /**
+     * Number of leased ports
+     */
+    private final AtomicInteger inUse = new AtomicInteger(0);
+
+    /**
+     * Highest number of leased ports
+     */
+    private final AtomicInteger peak = new AtomicInteger(0);
+
+    /**
+     * Number of leases refused since no port was free
+     */
+    private final AtomicLong exhausted = new AtomicLong(0);
+
+    /**
+     * @param min
+     *            first port of the range
+     * @param max
+     *            last port of the range (included)
+     */
+    public FtpPassivePortAllocator(int min, int max) {
+        if (max < min) {
+            int temp = min;
+            min = max;
+            max = temp;
+        }
+        this.min = min;
+        size = max - min + 1;
+        bitmap = new AtomicLongArray((size + 63) >>> 6);
+        int lastBits = size & 63;
+        lastWordMask = lastBits == 0 ? -1L : (1L << lastBits) - 1;
+    }
+
+    /**
+     * Lease the next free port of the range
+     * 
+     * @return the leased port, or -1 if all ports are in use
+     */
+    public int lease() {
+        int nbWords = bitmap.length();
+        int start = cursor.get();
+        int word = start >>> 6;
+        long from = -1L << (start & 63);
+        // the first word is visited twice: from start, then (after the wrap) from its first bit
+        for (int visited = 0; visited <= nbWords;) {
+            long bits = bitmap.get(word);
+            long free = ~bits & from;
+            if (word == nbWords - 1) {
+                free &= lastWordMask;
+            }
+            if (free == 0) {
+                visited++;
+                word++;
+                if (word == nbWords) {
+                    word = 0;
+                }
+                from = -1L;
+                continue;
+            }
+            long bit = Long.lowestOneBit(free);
+            if (bitmap.compareAndSet(word, bits, bits | bit)) {
+                int index = (word << 6) + Long.numberOfTrailingZeros(bit);
+                cursor.set(index + 1 >= size ? 0 : index + 1);
+                int current = inUse.incrementAndGet();
+                int max = peak.get();
+                while (current > max && !peak.compareAndSet(max, current)) {
+                    max = peak.get();
+                }
+                return min + index;
+            }
+            // concurrent change of this word: look at it again
+        }
+        exhausted.incrementAndGet();
+        return -1;
+    }
+
+    /**
+     * Give back a leased port (ports out of the range or not leased are ignored)
+     * 
+     * @param port
+     * @return True if the port was leased
+     */
+    public boolean release(int port) {
+        int index = port - min;
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        int word = index >>> 6;
+        long bit = 1L << (index & 63);
+        for (;;) {
+            long bits = bitmap.get(word);
+            if ((bits & bit) == 0) {
+                return false;
+            }
+            if (bitmap.compareAndSet(word, bits, bits & ~bit)) {
+                inUse.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param port
+     * @return True if this port is currently leased
+     */
+    public boolean isLeased(int port) {
+        int index = port - min;
+        if (index < 0 || index >= size) {
+            return false;
+        }
+        return (bitmap.get(index >>> 6) & (1L << (index & 63))) != 0;
+    }
+
+    /**
+     * 
+     * @return the first port of the range
+     */
+    public int getFirstPort() {
+        return min;
+    }
+
+    /**
+     * 
+     * @return the number of ports in the range
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * 
+     * @return the number of leased ports
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * 
+     * @return the utilization of the range in percent
+     */
+    public int getUtilization() {
+        return (int) (inUse.get() * 100L / size);
+    }
+
+    /**
+     * 
+     * @return the status of the allocator
+     */
+    public String getStatus() {
+        return "Passive ports: " + inUse.get() + "/" + size + " used (" + getUtilization() +
+                "%), " + peak.get() + " peak, " + exhausted.get() + " refused";
+    }
+}
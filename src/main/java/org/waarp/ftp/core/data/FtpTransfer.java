@@ -24,6 +24,8 @@ import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.command.FtpCommandCode;
 import org.waarp.ftp.core.exception.FtpNoFileException;
+import org.waarp.ftp.core.file.FtpDirListing;
+import org.waarp.ftp.core.file.FtpDirListingList;
 import org.waarp.ftp.core.file.FtpFile;
 
 /**
@@ -45,6 +47,11 @@ public class FtpTransfer {
      */
     private final List<String> info;
 
+    /**
+     * The incremental listing (list like command) to send
+     */
+    private final FtpDirListing listing;
+
     /**
      * The original path on which the command was executed
      */
@@ -69,6 +76,21 @@ public class FtpTransfer {
             String path) {
         this.command = command;
         info = fileOrInfo;
+        listing = null;
+        this.path = path;
+        currentFile = null;
+    }
+
+    /**
+     * @param command
+     * @param listing
+     * @param path
+     */
+    public FtpTransfer(FtpCommandCode command, FtpDirListing listing,
+            String path) {
+        this.command = command;
+        info = null;
+        this.listing = listing;
         this.path = path;
         currentFile = null;
     }
@@ -85,6 +107,7 @@ public class FtpTransfer {
         } catch (CommandAbstractException e) {
         }
         info = null;
+        listing = null;
     }
 
     /**
@@ -112,6 +135,25 @@ public class FtpTransfer {
         return info;
     }
 
+    /**
+     * @return the incremental listing, or a listing on the Info if any, else null
+     */
+    public FtpDirListing getListing() {
+        if (listing == null && info != null) {
+            return new FtpDirListingList(info);
+        }
+        return listing;
+    }
+
+    /**
+     * Close the incremental listing if any (end of the transfer, whatever the result)
+     */
+    public void closeListing() {
+        if (listing != null) {
+            listing.close();
+        }
+    }
+
     /**
      * @return the path
      */
@@ -20,22 +20,27 @@ package org.waarp.ftp.core.data;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.FileRegion;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 
 import org.waarp.common.command.ReplyCode;
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.command.exception.Reply425Exception;
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
+import org.waarp.common.file.DataBlock;
 import org.waarp.common.future.WaarpChannelFuture;
 import org.waarp.common.future.WaarpFuture;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.command.AbstractCommand;
 import org.waarp.ftp.core.command.FtpCommandCode;
 import org.waarp.ftp.core.command.service.ABOR;
 import org.waarp.ftp.core.config.FtpConfiguration;
@@ -45,6 +50,7 @@ import org.waarp.ftp.core.data.handler.DataNetworkHandler;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.exception.FtpNoFileException;
 import org.waarp.ftp.core.exception.FtpNoTransferException;
+import org.waarp.ftp.core.file.FtpDirListing;
 import org.waarp.ftp.core.file.FtpFile;
 import org.waarp.ftp.core.session.FtpSession;
 
@@ -100,9 +106,9 @@ public class FtpTransferControl {
     private volatile FtpTransfer executingCommand = null;
 
     /**
-     * Thread pool for execution of transfer command
+     * Current transfer in the server wide scheduler
      */
-    private ExecutorService executorService = null;
+    private volatile FtpTransferScheduler.ScheduledTransfer scheduledTransfer = null;
 
     /**
      * Blocking step for the Executor in order to wait for the end of the command (internal wait,
@@ -115,6 +121,76 @@ public class FtpTransferControl {
      */
     private volatile boolean isCheckAlreadyCalled = false;
 
+    /**
+     * Step of a deferred final answer: the transfer command is executed
+     */
+    private static final int DEFERRED_COMMAND = 1;
+
+    /**
+     * Step of a deferred final answer: the transfer is over
+     */
+    private static final int DEFERRED_TRANSFER = 2;
+
+    /**
+     * Steps still to be done before writing the final answer of the current transfer command (0
+     * if no final answer is deferred)
+     */
+    private final AtomicInteger deferredAnswer = new AtomicInteger();
+
+    /**
+     * Error to answer at the end of the current transfer command if any
+     */
+    private volatile CommandAbstractException deferredError = null;
+
+    /**
+     * The transfer command whose final answer is deferred
+     */
+    private volatile AbstractCommand deferredCommand = null;
+
+    /**
+     * Reply code set at the end of the transfer, kept for the deferred final answer
+     */
+    private volatile ReplyCode deferredReplyCode = null;
+
+    /**
+     * Answer set at the end of the transfer, kept for the deferred final answer
+     */
+    private volatile String deferredReplyAnswer = null;
+
+    /**
+     * Is the current transfer waiting for its data connection
+     */
+    private boolean isWaitingForDataChannel = false;
+
+    /**
+     * Timeout of the current wait for the data connection
+     */
+    private Timeout openedDataChannelTimeout = null;
+
+    /**
+     * Lock used to wait for the data channel to accept new blocks
+     */
+    private final Object blocksInFlightLock = new Object();
+
+    /**
+     * Number of blocks written on the data channel and not yet sent
+     */
+    private int blocksInFlight = 0;
+
+    /**
+     * Listener releasing one block in flight once written
+     */
+    private final ChannelFutureListener blockWrittenListener = new ChannelFutureListener() {
+        public void operationComplete(ChannelFuture future) throws Exception {
+            synchronized (blocksInFlightLock) {
+                if (blocksInFlight > 0) {
+                    blocksInFlight--;
+                }
+                blocksInFlightLock.notifyAll();
+            }
+        }
+    };
+
     /**
      * 
      * @param session
@@ -135,18 +211,15 @@ public class FtpTransferControl {
     }
 
     /**
-     * Wait for the DataNetworkHandler to be ready (from trueRetrieve of {@link FtpFile})
+     * Check that the DataNetworkHandler is ready (from trueRetrieve of {@link FtpFile})
      * 
      * @throws InterruptedException
      * 
      */
     public void waitForDataNetworkHandlerReady() throws InterruptedException {
+        // The transfer is only started once the data connection is ready
         if (!isDataNetworkHandlerReady) {
-            Thread.sleep(10);
-            if (!isDataNetworkHandlerReady) {
-                // logger.debug("Wait for DataNetwork Ready over {}");
-                throw new InterruptedException("Bad initialization");
-            }
+            throw new InterruptedException("Bad initialization");
         }
     }
 
@@ -159,36 +232,102 @@ public class FtpTransferControl {
     public void setOpenedDataChannel(Channel channel,
             DataNetworkHandler dataNetworkHandler) {
         logger.debug("SetOpenedDataChannel: " + (channel != null ? channel.remoteAddress() : "no channel"));
-        if (channel != null) {
-            session.getDataConn().setDataNetworkHandler(dataNetworkHandler);
-            waitForOpenedDataChannel.setChannel(channel);
-            waitForOpenedDataChannel.setSuccess();
-        } else {
-            waitForOpenedDataChannel.cancel();
+        synchronized (this) {
+            if (channel != null) {
+                session.getDataConn().setDataNetworkHandler(dataNetworkHandler);
+                waitForOpenedDataChannel.setChannel(channel);
+                waitForOpenedDataChannel.setSuccess();
+            } else {
+                waitForOpenedDataChannel.cancel();
+            }
+            checkWaitingTransfer();
         }
     }
 
     /**
-     * Wait that the new opened connection is ready (same method in {@link FtpDataAsyncConn} from
-     * openConnection)
+     * Write one block on the data channel without waiting for it to be sent, but only once the
+     * channel is writable, the number of blocks in flight is under the configured limit and the
+     * global memory budget allows it (from trueRetrieve of {@link FtpFile}).
      * 
-     * @return the new opened Channel
+     * @param channel
+     * @param block
+     * @return the future of the write, or null if the data channel is closed
      * @throws InterruptedException
      */
-    public Channel waitForOpenedDataChannel() throws InterruptedException {
-        Channel channel = null;
-        if (waitForOpenedDataChannel.await(
-                session.getConfiguration().getTIMEOUTCON() + 1000,
-                TimeUnit.MILLISECONDS)) {
-            if (waitForOpenedDataChannel.isSuccess()) {
-                channel = waitForOpenedDataChannel.channel();
-            } else {
-                logger.warn("data connection is in error");
+    public ChannelFuture writeDataBlock(Channel channel, DataBlock block)
+            throws InterruptedException {
+        // Global memory budget: wait (so delaying the next read) while exhausted
+        final FtpGlobalMemory globalMemory = session.getConfiguration()
+                .getFtpInternalConfiguration().getGlobalMemory();
+        final int size = block.getByteCount();
+        if (!globalMemory.reserveForWrite(channel, size)) {
+            return null;
+        }
+        ChannelFuture future = writeInFlight(channel, block);
+        if (future == null) {
+            globalMemory.release(size);
+            return null;
+        }
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) throws Exception {
+                globalMemory.release(size);
             }
-        } else {
-            logger.warn("Timeout occurs during data connection");
+        });
+        return future;
+    }
+
+    /**
+     * Write one part of a file as is (zero-copy) on the data channel, with the same limitation
+     * than {@link #writeDataBlock(Channel, DataBlock)}. If the channel is closed, the region is
+     * released.
+     * 
+     * @param channel
+     * @param region
+     * @return the future of the write, or null if the data channel is closed
+     * @throws InterruptedException
+     */
+    public ChannelFuture writeFileRegion(Channel channel, FileRegion region)
+            throws InterruptedException {
+        ChannelFuture future = writeInFlight(channel, region);
+        if (future == null) {
+            region.release();
+        }
+        return future;
+    }
+
+    /**
+     * 
+     * @param channel
+     * @param message
+     * @return the future of the write, or null if the data channel is closed
+     * @throws InterruptedException
+     */
+    private ChannelFuture writeInFlight(Channel channel, Object message)
+            throws InterruptedException {
+        int maxInFlight = session.getConfiguration().getBlocksInFlight();
+        synchronized (blocksInFlightLock) {
+            while (channel.isActive() &&
+                    (blocksInFlight >= maxInFlight || !channel.isWritable())) {
+                blocksInFlightLock.wait(FtpInternalConfiguration.WAITFORNETOP);
+            }
+            if (!channel.isActive()) {
+                return null;
+            }
+            blocksInFlight++;
+        }
+        ChannelFuture future = channel.writeAndFlush(message);
+        future.addListener(blockWrittenListener);
+        return future;
+    }
+
+    /**
+     * Wake up the writer waiting for the data channel (from channelWritabilityChanged or
+     * channelInactive of {@link DataNetworkHandler})
+     */
+    public void setDataChannelWritabilityChanged() {
+        synchronized (blocksInFlightLock) {
+            blocksInFlightLock.notifyAll();
         }
-        return channel;
     }
 
     /**
@@ -202,10 +341,11 @@ public class FtpTransferControl {
     }
 
     /**
-     * Wait for the client to be connected (Passive) or Wait for the server to be connected to the
-     * client (Active)
+     * Prepare the data connection: the client will connect (Passive) or the server connects to the
+     * client (Active). This does not wait for the connection, the transfer set later on by
+     * setNewFtpTransfer will start once the connection is ready.
      * 
-     * @return True if the connection is OK
+     * @return True if the connection is OK or on its way
      * @throws Reply425Exception
      */
     public synchronized boolean openDataConnection() throws Reply425Exception {
@@ -226,6 +366,12 @@ public class FtpTransferControl {
                         ReplyCode.REPLY_125_DATA_CONNECTION_ALREADY_OPEN,
                         dataAsyncConn.getType().name() +
                                 " mode data connection already open");
+                try {
+                    waitForOpenedDataChannel.setChannel(dataAsyncConn.getCurrentDataChannel());
+                    waitForOpenedDataChannel.setSuccess();
+                } catch (FtpNoConnectionException e) {
+                    throw new Reply425Exception("Data connection just closed");
+                }
                 return true;
             }
         } else {
@@ -247,22 +393,12 @@ public class FtpTransferControl {
                 throw new Reply425Exception(
                         "No passive data connection prepared");
             }
-            // Wait for the connection to be done by the client
+            // The connection will be done by the client
             logger.debug("Passive mode standby");
-            try {
-                dataChannel = waitForOpenedDataChannel();
-                dataAsyncConn.setNewOpenedDataChannel(dataChannel);
-            } catch (InterruptedException e) {
-                logger.warn("Connection abort in passive mode", e);
-                // Cannot open connection
-                throw new Reply425Exception(
-                        "Cannot open passive data connection");
-            }
-            logger.debug("Passive mode connected");
         } else {
-            // Wait for the server to be connected to the client
-            InetAddress inetAddress = dataAsyncConn.getLocalAddress().getAddress();
-            InetSocketAddress inetSocketAddress = dataAsyncConn.getRemoteAddress();
+            // The server connects to the client
+            final InetAddress inetAddress = dataAsyncConn.getLocalAddress().getAddress();
+            final InetSocketAddress inetSocketAddress = dataAsyncConn.getRemoteAddress();
             if (session.getConfiguration().getFtpInternalConfiguration().hasFtpSession(inetAddress, inetSocketAddress)) {
                 throw new Reply425Exception(
                         "Cannot open active data connection since remote address is already in use: "
@@ -274,57 +410,99 @@ public class FtpTransferControl {
                     .getActiveBootstrap(session.isDataSsl());
             session.getConfiguration().setNewFtpSession(inetAddress, inetSocketAddress, session);
             // Set the session for the future dataChannel
-            String mylog = session.toString();
+            final String mylog = session.toString();
             logger.debug("DataConn for: " + session.getCurrentCommand().getCommand() + " to "
                     + inetSocketAddress.toString());
-            ChannelFuture future = bootstrap.connect(inetSocketAddress, dataAsyncConn.getLocalAddress());
-            try {
-                future.await();
-            } catch (InterruptedException e1) {
-            }
-            if (!future.isSuccess()) {
-                logger.warn("Connection abort in active mode from future while session: " +
-                        session.toString() +
-                        "\nTrying connect to: " + inetSocketAddress.toString() +
-                        " From: " + dataAsyncConn.getLocalAddress() +
-                        "\nWas: " + mylog,
-                        future.cause());
-                // Cannot open connection
-                session.getConfiguration().delFtpSession(inetAddress,
-                        inetSocketAddress);
-                throw new Reply425Exception(
-                        "Cannot open active data connection");
-            }
-            try {
-                dataChannel = waitForOpenedDataChannel();
-                dataAsyncConn.setNewOpenedDataChannel(dataChannel);
-            } catch (InterruptedException e) {
-                logger.warn("Connection abort in active mode", e);
-                // Cannot open connection
-                session.getConfiguration().delFtpSession(inetAddress,
-                        inetSocketAddress);
-                throw new Reply425Exception(
-                        "Cannot open active data connection");
-            }
-            logger.debug("Active mode connected");
+            final WaarpChannelFuture waitForOpened = waitForOpenedDataChannel;
+            bootstrap.connect(inetSocketAddress, dataAsyncConn.getLocalAddress())
+                    .addListener(new ChannelFutureListener() {
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            if (!future.isSuccess()) {
+                                logger.warn("Connection abort in active mode from future while session: " +
+                                        session.toString() +
+                                        "\nTrying connect to: " + inetSocketAddress.toString() +
+                                        "\nWas: " + mylog,
+                                        future.cause());
+                                synchronized (FtpTransferControl.this) {
+                                    if (waitForOpened == waitForOpenedDataChannel) {
+                                        waitForOpened.cancel();
+                                        checkWaitingTransfer();
+                                    }
+                                }
+                            }
+                        }
+                    });
         }
-        if (dataChannel == null) {
+        return true;
+    }
+
+    /**
+     * Start the waiting transfer if its data connection is now ready or in error (to be called
+     * under lock each time the transfer or the data connection changes)
+     */
+    private void checkWaitingTransfer() {
+        if (!isWaitingForDataChannel || !waitForOpenedDataChannel.isDone()) {
+            return;
+        }
+        isWaitingForDataChannel = false;
+        if (openedDataChannelTimeout != null) {
+            openedDataChannelTimeout.cancel();
+            openedDataChannelTimeout = null;
+        }
+        FtpDataAsyncConn dataAsyncConn = session.getDataConn();
+        String curmode = dataAsyncConn.isPassiveMode() ? "passive" : "active";
+        if (!waitForOpenedDataChannel.isSuccess()) {
+            setDataConnectionInError("Cannot open " + curmode + " data connection");
+            return;
+        }
+        dataChannel = waitForOpenedDataChannel.channel();
+        try {
+            dataAsyncConn.setNewOpenedDataChannel(dataChannel);
+        } catch (InterruptedException e) {
+            setDataConnectionInError("Cannot open " + curmode + " data connection");
+            return;
+        } catch (Reply425Exception e) {
             // Cannot have a new Data connection since shutdown
-            if (!dataAsyncConn.isPassiveMode()) {
-                session.getConfiguration().getFtpInternalConfiguration()
-                        .delFtpSession(
-                                dataAsyncConn.getLocalAddress().getAddress(),
-                                dataAsyncConn.getRemoteAddress());
-            }
-            throw new Reply425Exception(
-                    "Cannot open data connection, shuting down");
+            setDataConnectionInError("Cannot open data connection, shuting down");
+            return;
         }
-        return true;
+        logger.debug("Data connection ready in " + curmode + " mode");
+        setDataNetworkHandlerReady();
+        runExecutor();
+    }
+
+    /**
+     * The data connection cannot be opened for the waiting transfer, so finish the transfer
+     * command with a 425 answer
+     * 
+     * @param message
+     */
+    private void setDataConnectionInError(String message) {
+        logger.warn(message + " for " + session);
+        FtpDataAsyncConn dataAsyncConn = session.getDataConn();
+        if (!dataAsyncConn.isPassiveMode()) {
+            session.getConfiguration().getFtpInternalConfiguration()
+                    .delFtpSession(
+                            dataAsyncConn.getLocalAddress().getAddress(),
+                            dataAsyncConn.getRemoteAddress());
+        }
+        deferredError = new Reply425Exception(message);
+        if (commandFinishing != null) {
+            commandFinishing.setSuccess();
+        }
+        commandFinishing = null;
+        isExecutingCommandFinished = true;
+        if (executingCommand != null) {
+            executingCommand.closeListing();
+        }
+        executingCommand = null;
+        resetWaitForOpenedDataChannel();
+        setDeferredAnswerDone(DEFERRED_TRANSFER);
     }
 
     // XXX FtpTransfer functions
     /**
-     * Run the command from an executor
+     * Run the command from the server wide scheduler
      */
     private void runExecutor() {
         endOfCommand = new WaarpFuture(true);
@@ -332,74 +510,36 @@ public class FtpTransferControl {
             session.getDataConn().getDataNetworkHandler().setFtpTransfer(executingCommand);
         } catch (FtpNoConnectionException e1) {
         }
-        waitForOpenedDataChannel.channel().config().setAutoRead(true);
-        /*
-        final WaarpFuture toFinish = commandFinishing;
-        final WaarpFuture toCommand = endOfCommand;
-         try {
-            session.getDataConn().getCurrentDataChannel().closeFuture()
-                    .addListener(new GenericFutureListener<Future<? super Void>>() {
-                        public void operationComplete(Future<? super Void> future) throws Exception {
-                            if (!toFinish.isDone() || !toCommand.isDone()) {
-                                logger.debug("Schedule to finish command: " + session + ":" + toFinish.isDone() + ":"
-                                        + toCommand.isDone());
-                                scheduleService.schedule(new Runnable() {
-                                    public void run() {
-                                        if (!toFinish.isDone() || !toCommand.isDone()) {
-                                            logger.warn("Will try to finish command: " + session + " CommandFinishing:"
-                                                    + toFinish.isDone() + " EndOfCommand:" + toCommand.isDone());
-                                            setTransferAbortedFromInternal(true);
-                                            //toFinish.cancel();
-                                        }
-                                    }
-                                }, FtpConfiguration.DATATIMEOUTCON * 2, TimeUnit.MILLISECONDS);
-                            }
-                        }
-                    });
-        } catch (FtpNoConnectionException e1) {
-            //e1.printStackTrace();
-        }*/
+        FtpDataChannelPause.resume(dataChannel, FtpDataChannelPause.NO_TRANSFER);
         // Run the command
-        if (executorService == null) {
-            executorService = Executors.newSingleThreadExecutor();
-        }
-        executorService.execute(new FtpTransferExecutor(session,
-                executingCommand));
-        try {
-            commandFinishing.await();
-            if (commandFinishing.isFailed()) {
-                endOfCommand.cancel();
-            }
-        } catch (InterruptedException e) {
+        scheduledTransfer = session.getConfiguration().getFtpInternalConfiguration()
+                .getTransferScheduler().submit(session.getAuth().getUser(),
+                        new FtpTransferExecutor(session, executingCommand));
+        if (scheduledTransfer == null) {
+            // Too many transfers are waiting
+            logger.warn("Transfer aborted since the server is too busy: " + session);
+            setTransferAbortedFromInternal(false);
         }
     }
 
     /**
      * Add a new transfer to be executed. This is to be called from Command after connection is
      * opened and before answering to the client that command is ready to be executed (for Store or
-     * Retrieve like operations).
+     * Retrieve like operations). The final answer of the command is deferred until the end of the
+     * transfer.
      * 
      * @param command
      * @param file
      */
     public void setNewFtpTransfer(FtpCommandCode command, FtpFile file) {
-        isExecutingCommandFinished = false;
-        commandFinishing = new WaarpFuture(true);
         logger.debug("setNewCommand: {}", command);
-        setDataNetworkHandlerReady();
-        executingCommand = new FtpTransfer(command, file);
-        runExecutor();
-        commandFinishing = null;
-        commandSetup.setSuccess();
-        if (!session.getDataConn().isStreamFile()) {
-            waitForOpenedDataChannel.channel().config().setAutoRead(false);
-        }
+        setNewFtpTransfer(new FtpTransfer(command, file));
     }
 
     /**
      * Add a new transfer to be executed. This is to be called from Command after connection is
      * opened and before answering to the client that command is ready to be executed (for List like
-     * operations).
+     * operations). The final answer of the command is deferred until the end of the transfer.
      * 
      * @param command
      * @param list
@@ -408,37 +548,112 @@ public class FtpTransferControl {
      */
     public void setNewFtpTransfer(FtpCommandCode command, List<String> list,
             String path) {
+        logger.debug("setNewCommand: {}", command);
+        setNewFtpTransfer(new FtpTransfer(command, list, path));
+    }
+
+    /**
+     * Add a new transfer to be executed, as for a list but with an incremental listing: entries
+     * are sent while the directory is read. The listing is closed at the end of the transfer.
+     * 
+     * @param command
+     * @param listing
+     * @param path
+     *            as Original Path
+     */
+    public void setNewFtpTransfer(FtpCommandCode command, FtpDirListing listing,
+            String path) {
+        logger.debug("setNewCommand: {}", command);
+        setNewFtpTransfer(new FtpTransfer(command, listing, path));
+    }
+
+    /**
+     * Register the new transfer which will start as soon as the data connection is ready
+     * 
+     * @param transfer
+     */
+    private synchronized void setNewFtpTransfer(FtpTransfer transfer) {
         isExecutingCommandFinished = false;
         commandFinishing = new WaarpFuture(true);
-        logger.debug("setNewCommand: {}", command);
-        setDataNetworkHandlerReady();
-        executingCommand = new FtpTransfer(command, list, path);
-        runExecutor();
-        commandFinishing = null;
-        commandSetup.setSuccess();
-        if (!session.getDataConn().isStreamFile()) {
-            waitForOpenedDataChannel.channel().config().setAutoRead(false);
-        }
-        try {
-            session.getDataConn().getDataNetworkHandler().setFtpTransfer(null);
-        } catch (FtpNoConnectionException e1) {
+        executingCommand = transfer;
+        deferredError = null;
+        deferredCommand = session.getCurrentCommand();
+        deferredReplyCode = null;
+        deferredReplyAnswer = null;
+        deferredAnswer.set(DEFERRED_COMMAND | DEFERRED_TRANSFER);
+        isWaitingForDataChannel = true;
+        if (!waitForOpenedDataChannel.isDone()) {
+            final WaarpChannelFuture waitForOpened = waitForOpenedDataChannel;
+            openedDataChannelTimeout = session.getConfiguration().getFtpInternalConfiguration()
+                    .getIdleTimer().newTimeout(new TimerTask() {
+                        public void run(Timeout timeout) {
+                            synchronized (FtpTransferControl.this) {
+                                if (waitForOpened == waitForOpenedDataChannel &&
+                                        !waitForOpened.isDone()) {
+                                    logger.warn("Timeout occurs during data connection");
+                                    waitForOpened.cancel();
+                                    checkWaitingTransfer();
+                                }
+                            }
+                        }
+                    }, session.getConfiguration().getTIMEOUTCON() + 1000, TimeUnit.MILLISECONDS);
         }
+        checkWaitingTransfer();
     }
 
-    public boolean waitFtpTransferExecuting() {
-        boolean notFinished = true;
-        for (int i = 0; i < FtpInternalConfiguration.RETRYNB * 100; i++) {
-            if (isExecutingCommandFinished
-                    || commandFinishing == null
-                    || session.isCurrentCommandFinished()
-                    ||
-                    (commandFinishing != null && commandFinishing
-                            .awaitUninterruptibly(FtpInternalConfiguration.RETRYINMS))) {
-                notFinished = false;
-                break;
+    /**
+     * 
+     * @return True if the final answer of the current command will be written at the end of its
+     *         transfer (called from {@link NetworkHandler} once the command is executed)
+     */
+    public boolean isFinalAnswerDeferred() {
+        return (deferredAnswer.get() & DEFERRED_COMMAND) != 0;
+    }
+
+    /**
+     * The transfer command is executed (called from {@link NetworkHandler}): if the transfer is
+     * already over, the final answer is written
+     */
+    public void setCommandExecuted() {
+        setDeferredAnswerDone(DEFERRED_COMMAND);
+    }
+
+    /**
+     * One of the steps before the final answer is done: if it was the last one, the final answer is
+     * written
+     * 
+     * @param step
+     */
+    private void setDeferredAnswerDone(int step) {
+        for (;;) {
+            int current = deferredAnswer.get();
+            if ((current & step) == 0) {
+                return;
+            }
+            int next = current & ~step;
+            if (step == DEFERRED_TRANSFER) {
+                // the reply of the transfer, before any other command changes it
+                deferredReplyCode = session.getReplyCode();
+                deferredReplyAnswer = session.getAnswer();
+            }
+            if (deferredAnswer.compareAndSet(current, next)) {
+                if (next == 0) {
+                    CommandAbstractException error = deferredError;
+                    deferredError = null;
+                    session.getNetworkHandler().writeDeferredAnswer(deferredCommand,
+                            deferredReplyCode, deferredReplyAnswer, error);
+                }
+                return;
             }
         }
-        return notFinished;
+    }
+
+    /**
+     * 
+     * @return True if the final answer of the last transfer command is not yet written
+     */
+    public boolean isAnswerDeferred() {
+        return deferredAnswer.get() != 0;
     }
 
     /**
@@ -559,6 +774,11 @@ public class FtpTransferControl {
      */
     private void abortTransfer() {
         logger.debug("Will abort transfer and write: ", new Exception("trace only"));
+        // interrupt the transfer if it is running (not from itself)
+        FtpTransferScheduler.ScheduledTransfer scheduled = scheduledTransfer;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
         FtpFile file = null;
         FtpTransfer current = null;
         try {
@@ -613,13 +833,20 @@ public class FtpTransferControl {
         if (current != null) {
             current.setStatus(true);
         }
-        if (session.getDataConn().isStreamFile()) {
+        boolean streamFile = session.getDataConn().isStreamFile();
+        if (streamFile) {
             endDataConnection();
+            session.setReplyCode(ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION,
+                    "Transfer complete for " +
+                            (current == null ? "Unknown command" : current
+                                    .toString()));
+        } else {
+            // Block mode: the data connection is kept open for the next transfers
+            session.setReplyCode(ReplyCode.REPLY_250_REQUESTED_FILE_ACTION_OKAY,
+                    "Transfer complete, data connection kept open for " +
+                            (current == null ? "Unknown command" : current
+                                    .toString()));
         }
-        session.setReplyCode(ReplyCode.REPLY_226_CLOSING_DATA_CONNECTION,
-                "Transfer complete for " +
-                        (current == null ? "Unknown command" : current
-                                .toString()));
         if (current != null) {
             if (!FtpCommandCode.isListLikeCommand(current.getCommand())) {
                 try {
@@ -627,8 +854,9 @@ public class FtpTransferControl {
                 } catch (CommandAbstractException e) {
                     session.setReplyCode(e);
                 }
-            } else {
+            } else if (streamFile) {
                 // Special wait to prevent fast LIST following by STOR or RETR command
+                // (not needed when the data connection is kept open)
                 try {
                     Thread.sleep(FtpInternalConfiguration.RETRYINMS);
                 } catch (InterruptedException e) {
@@ -660,8 +888,10 @@ public class FtpTransferControl {
      */
     public void setTransferAbortedFromInternal(boolean write) {
         logger.debug("Set transfer aborted internal {}", write);
+        // if the final answer is deferred, it will be written by abortTransfer
+        boolean deferred = (deferredAnswer.get() & DEFERRED_TRANSFER) != 0;
         abortTransfer();
-        if (write) {
+        if (write && !deferred) {
             session.getNetworkHandler().writeIntermediateAnswer();
         }
         if (endOfCommand != null) {
@@ -702,12 +932,32 @@ public class FtpTransferControl {
      */
     private void finalizeExecution() {
         // logger.debug("Finalize execution");
+        FtpTransfer transfer = executingCommand;
         if (commandFinishing != null) {
             commandFinishing.setSuccess();
         }
+        commandFinishing = null;
+        if (commandSetup != null) {
+            commandSetup.setSuccess();
+        }
         isExecutingCommandFinished = true;
         executingCommand = null;
+        if (transfer != null) {
+            Channel channel = waitForOpenedDataChannel.channel();
+            if (channel != null && !session.getDataConn().isStreamFile()) {
+                FtpDataChannelPause.pause(channel, FtpDataChannelPause.NO_TRANSFER);
+            }
+            if (FtpCommandCode.isListLikeCommand(transfer.getCommand())) {
+                transfer.closeListing();
+            }
+            // the data connection might be kept open for the next transfer
+            try {
+                session.getDataConn().getDataNetworkHandler().setFtpTransfer(null);
+            } catch (FtpNoConnectionException e1) {
+            }
+        }
         resetWaitForOpenedDataChannel();
+        setDeferredAnswerDone(DEFERRED_TRANSFER);
     }
 
     // XXX Finalize of Transfer
@@ -735,6 +985,16 @@ public class FtpTransferControl {
      */
     public void clear() {
         // logger.debug("Clear Ftp Transfer Control");
+        // No more answer since the control connection is over
+        boolean answerDropped = deferredAnswer.getAndSet(0) != 0;
+        deferredError = null;
+        synchronized (this) {
+            isWaitingForDataChannel = false;
+            if (openedDataChannelTimeout != null) {
+                openedDataChannelTimeout.cancel();
+                openedDataChannelTimeout = null;
+            }
+        }
         endDataConnection();
         finalizeExecution();
         if (endOfCommand != null) {
@@ -746,9 +1006,16 @@ public class FtpTransferControl {
         if (commandSetup != null) {
             commandSetup.cancel();
         }
-        if (executorService != null) {
-            executorService.shutdownNow();
-            executorService = null;
+        if (scheduledTransfer != null) {
+            scheduledTransfer.cancel();
+            scheduledTransfer = null;
+        }
+        if (answerDropped) {
+            // commands pipelined after the cleared transfer command can go on
+            NetworkHandler networkHandler = session.getNetworkHandler();
+            if (networkHandler != null) {
+                networkHandler.resumePendingCommands();
+            }
         }
     }
 }
@@ -17,14 +17,23 @@
  */
 package org.waarp.ftp.core.data;
 
-import java.util.List;
+import java.io.IOException;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
 
 import org.waarp.common.command.ReplyCode;
+import org.waarp.common.file.DataBlock;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpStringUtils;
 import org.waarp.ftp.core.command.FtpCommandCode;
+import org.waarp.ftp.core.config.FtpConfiguration;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.exception.FtpNoFileException;
+import org.waarp.ftp.core.file.FtpDirListing;
+import org.waarp.ftp.core.file.FtpDirListingList;
 import org.waarp.ftp.core.session.FtpSession;
 
 /**
@@ -102,21 +111,7 @@ class FtpTransferExecutor implements Runnable {
         } else if (FtpCommandCode.isListLikeCommand(executeTransfer
                 .getCommand())) {
             // No wait for Command since the answer is already there
-            List<String> list = executeTransfer.getInfo();
-            StringBuilder builder = new StringBuilder();
-            for (String newfileInfo : list) {
-                builder.append(newfileInfo).append(ReplyCode.CRLF);
-            }
-            if (builder.length() == 0) {
-                builder.append(ReplyCode.CRLF);
-            }
-            String message = builder.toString();
-            boolean status = false;
-            try {
-                status = session.getDataConn().getDataNetworkHandler().writeMessage(message);
-            } catch (FtpNoConnectionException e) {
-                logger.error("No Connection but should not be!", e);
-            }
+            boolean status = sendListing();
             // Set status for check, no wait for the command
             executeTransfer.setStatus(status);
             // must explicitly set the end and no wait
@@ -148,6 +143,84 @@ class FtpTransferExecutor implements Runnable {
         }
     }
 
+    /**
+     * Send the listing by blocks of about the block size: each block is written as soon as it is
+     * filled, within the in flight window of the data channel, so the listing is never fully built
+     * in memory.
+     * 
+     * @return True if the listing is fully sent
+     * @throws InterruptedException
+     */
+    private boolean sendListing() throws InterruptedException {
+        FtpDirListing listing = executeTransfer.getListing();
+        if (listing == null) {
+            listing = new FtpDirListingList(null);
+        }
+        try {
+            Channel channel = null;
+            try {
+                channel = session.getDataConn().getCurrentDataChannel();
+            } catch (FtpNoConnectionException e) {
+                logger.error("No Connection but should not be!", e);
+                return false;
+            }
+            FtpTransferControl transferControl = session.getDataConn().getFtpTransferControl();
+            int blockSize = session.getConfiguration().getBLOCKSIZE();
+            StringBuilder builder = new StringBuilder();
+            String entry = listing.nextEntry();
+            if (entry == null) {
+                builder.append(ReplyCode.CRLF);
+            }
+            while (entry != null) {
+                builder.append(entry).append(ReplyCode.CRLF);
+                entry = listing.nextEntry();
+                if (entry != null && builder.length() >= blockSize) {
+                    if (writeListingBlock(transferControl, channel, builder, false) == null) {
+                        return false;
+                    }
+                    builder.setLength(0);
+                }
+            }
+            ChannelFuture future = writeListingBlock(transferControl, channel, builder, true);
+            if (future == null) {
+                return false;
+            }
+            // Wait for last write (writes are done in order so all previous ones are done too)
+            future.await(FtpConfiguration.getDATATIMEOUTCON());
+            return future.isSuccess();
+        } catch (IOException e) {
+            // incomplete listing: the transfer is aborted
+            logger.warn("Listing not fully read: {}", e.getMessage());
+            return false;
+        } finally {
+            listing.close();
+        }
+    }
+
+    /**
+     * Write one block of the listing
+     * 
+     * @param transferControl
+     * @param channel
+     * @param builder
+     * @param last
+     * @return the future of the write, or null if the data channel is in error
+     * @throws InterruptedException
+     */
+    private ChannelFuture writeListingBlock(FtpTransferControl transferControl, Channel channel,
+            StringBuilder builder, boolean last) throws InterruptedException {
+        DataBlock dataBlock = new DataBlock();
+        dataBlock.setEOF(last);
+        dataBlock.setBlock(Unpooled.wrappedBuffer(builder.toString().getBytes(
+                WaarpStringUtils.UTF8)));
+        ChannelFuture future = transferControl.writeDataBlock(channel, dataBlock);
+        if (future == null || (future.isDone() && !future.isSuccess())) {
+            logger.debug("Listing not fully sent");
+            return null;
+        }
+        return future;
+    }
+
     /**
      * Wait for the command to finish
      * 
@@ -0,0 +1,407 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpThreadFactory;
+
+/**
+ * Server wide scheduler of transfers: a bounded number of threads executes the transfers of all
+ * sessions, while the waiting transfers are queued up to a maximum depth.<br>
+ * If fairness is enabled, waiting transfers are grouped by user and users are served in a round
+ * robin way, such that one user cannot starve the others.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpTransferScheduler {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpTransferScheduler.class);
+
+    /**
+     * Key used for all transfers when fairness is disabled
+     */
+    private static final String NO_FAIRNESS_KEY = "";
+
+    /**
+     * One transfer waiting or running in the scheduler
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static class ScheduledTransfer {
+        /**
+         * The transfer to run
+         */
+        private final Runnable runnable;
+
+        /**
+         * Time of submission in ns
+         */
+        private final long submitTime = System.nanoTime();
+
+        /**
+         * Cancelled before or while running
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Worker thread while running
+         */
+        private Thread worker = null;
+
+        /**
+         * @param runnable
+         */
+        private ScheduledTransfer(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        /**
+         * Cancel this transfer: if not yet started, it will not run, else its worker thread is
+         * interrupted
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            if (worker != null && worker != Thread.currentThread()) {
+                worker.interrupt();
+            }
+        }
+
+        /**
+         * 
+         * @param thread
+         *            the worker thread
+         * @return False if this transfer is cancelled and must not run
+         */
+        private synchronized boolean start(Thread thread) {
+            if (cancelled) {
+                return false;
+            }
+            worker = thread;
+            return true;
+        }
+
+        /**
+         * The transfer is over: its worker thread could not be interrupted anymore
+         */
+        private synchronized void end() {
+            worker = null;
+        }
+
+        /**
+         * @return True if this transfer was cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Waiting transfers of one user
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static class Lane {
+        /**
+         * Key of this lane
+         */
+        private final String key;
+
+        /**
+         * Waiting transfers in order
+         */
+        private final ArrayDeque<ScheduledTransfer> transfers = new ArrayDeque<ScheduledTransfer>();
+
+        /**
+         * Is this lane already in the ready queue
+         */
+        private boolean ready = false;
+
+        /**
+         * Is this lane removed from the lanes (once empty)
+         */
+        private boolean removed = false;
+
+        /**
+         * @param key
+         */
+        private Lane(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Lanes by user
+     */
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    /**
+     * Lanes having at least one waiting transfer, in round robin order
+     */
+    private final LinkedBlockingQueue<Lane> readyLanes = new LinkedBlockingQueue<Lane>();
+
+    /**
+     * Worker threads
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Number of worker threads
+     */
+    private final int nbThreads;
+
+    /**
+     * Maximum number of waiting transfers
+     */
+    private final int maxQueued;
+
+    /**
+     * Is fairness between users enabled
+     */
+    private final boolean fairness;
+
+    /**
+     * Current number of waiting transfers
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Current number of running transfers
+     */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Number of transfers started
+     */
+    private final AtomicLong started = new AtomicLong();
+
+    /**
+     * Number of transfers rejected since the queue was full
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Cumulative waiting time in ns of started transfers
+     */
+    private final AtomicLong totalWait = new AtomicLong();
+
+    /**
+     * Maximum waiting time in ns of started transfers
+     */
+    private final AtomicLong maxWait = new AtomicLong();
+
+    /**
+     * Is this scheduler shutdown
+     */
+    private volatile boolean isShutdown = false;
+
+    /**
+     * 
+     * @param nbThreads
+     *            number of threads running the transfers
+     * @param maxQueued
+     *            maximum number of transfers waiting for a thread
+     * @param fairness
+     *            True to serve users in a round robin way
+     */
+    public FtpTransferScheduler(int nbThreads, int maxQueued, boolean fairness) {
+        this.nbThreads = nbThreads < 1 ? 1 : nbThreads;
+        this.maxQueued = maxQueued < 0 ? 0 : maxQueued;
+        this.fairness = fairness;
+        workers = Executors.newFixedThreadPool(this.nbThreads, new WaarpThreadFactory("Transfer"));
+        for (int i = 0; i < this.nbThreads; i++) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    runWorker();
+                }
+            });
+        }
+    }
+
+    /**
+     * Submit a new transfer
+     * 
+     * @param user
+     *            the user owning this transfer
+     * @param runnable
+     *            the transfer
+     * @return the ScheduledTransfer, or null if the transfer is rejected (queue full or shutdown)
+     */
+    public ScheduledTransfer submit(String user, Runnable runnable) {
+        if (isShutdown) {
+            return null;
+        }
+        if (queued.incrementAndGet() > maxQueued + nbThreads - running.get()) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            logger.warn("Transfer rejected since the queue is full: " + getStatus());
+            return null;
+        }
+        String key = fairness && user != null ? user : NO_FAIRNESS_KEY;
+        ScheduledTransfer transfer = new ScheduledTransfer(runnable);
+        for (;;) {
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                Lane newLane = new Lane(key);
+                lane = lanes.putIfAbsent(key, newLane);
+                if (lane == null) {
+                    lane = newLane;
+                }
+            }
+            synchronized (lane) {
+                if (lane.removed) {
+                    // emptied meanwhile: use a new one
+                    continue;
+                }
+                lane.transfers.add(transfer);
+                if (!lane.ready) {
+                    lane.ready = true;
+                    readyLanes.add(lane);
+                }
+            }
+            return transfer;
+        }
+    }
+
+    /**
+     * Loop of one worker thread
+     */
+    private void runWorker() {
+        while (!isShutdown) {
+            Lane lane;
+            try {
+                lane = readyLanes.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            ScheduledTransfer transfer;
+            synchronized (lane) {
+                transfer = lane.transfers.poll();
+                if (lane.transfers.isEmpty()) {
+                    // no more transfer for this user: forget the lane
+                    lane.ready = false;
+                    lane.removed = true;
+                    lanes.remove(lane.key, lane);
+                } else {
+                    // round robin: this user goes back at the end of the queue
+                    readyLanes.add(lane);
+                }
+            }
+            if (transfer == null) {
+                continue;
+            }
+            queued.decrementAndGet();
+            if (!transfer.start(Thread.currentThread())) {
+                continue;
+            }
+            long wait = System.nanoTime() - transfer.submitTime;
+            totalWait.addAndGet(wait);
+            long max = maxWait.get();
+            while (wait > max && !maxWait.compareAndSet(max, wait)) {
+                max = maxWait.get();
+            }
+            started.incrementAndGet();
+            running.incrementAndGet();
+            try {
+                transfer.runnable.run();
+            } catch (RuntimeException e) {
+                logger.error("Transfer in error", e);
+            } finally {
+                transfer.end();
+                running.decrementAndGet();
+                // Clear the interrupted status for the next transfer
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Stop the scheduler, running transfers being interrupted
+     */
+    public void shutdown() {
+        isShutdown = true;
+        workers.shutdownNow();
+    }
+
+    /**
+     * @return the number of transfers waiting for a thread
+     */
+    public int getQueueLength() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of transfers currently running
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * @return the number of transfers rejected since the queue was full
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the average waiting time in ms of started transfers
+     */
+    public long getAverageWaitTime() {
+        long nb = started.get();
+        if (nb == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(totalWait.get() / nb);
+    }
+
+    /**
+     * @return the maximum waiting time in ms of started transfers
+     */
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWait.get());
+    }
+
+    /**
+     * 
+     * @return the status of the scheduler
+     */
+    public String getStatus() {
+        return "Transfers Running: " + running.get() + "/" + nbThreads +
+                " Queued: " + queued.get() + "/" + maxQueued +
+                " Started: " + started.get() +
+                " Rejected: " + rejected.get() +
+                " Wait (ms) Avg: " + getAverageWaitTime() +
+                " Max: " + getMaxWaitTime();
+    }
+}
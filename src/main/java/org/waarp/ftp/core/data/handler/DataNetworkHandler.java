@@ -23,6 +23,7 @@ import java.net.ConnectException;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.NotYetConnectedException;
+import java.util.NoSuchElementException;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
@@ -32,6 +33,12 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.compression.JdkZlibDecoder;
+import io.netty.handler.codec.compression.JdkZlibEncoder;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
 
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
 import org.waarp.common.exception.FileTransferException;
@@ -40,9 +47,13 @@ import org.waarp.common.file.DataBlock;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.common.utility.WaarpStringUtils;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
 import org.waarp.ftp.core.config.FtpConfiguration;
-import org.waarp.ftp.core.config.FtpInternalConfiguration;
 import org.waarp.ftp.core.control.NetworkHandler;
+import org.waarp.ftp.core.data.FtpDataAsyncConn;
+import org.waarp.ftp.core.data.FtpDataChannelPause;
 import org.waarp.ftp.core.data.FtpTransfer;
 import org.waarp.ftp.core.data.FtpTransferControl;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
@@ -98,6 +109,11 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
      * The associated FtpTransfer
      */
     private volatile FtpTransfer ftpTransfer = null;
+
+    /**
+     * The Mode codec of this channel, to which received blocks are given back
+     */
+    private volatile FtpDataModeCodec modeCodec = null;
     
     /**
      * Constructor from DataBusinessHandler
@@ -156,6 +172,7 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
             } else {
                 session.getDataConn().getFtpTransferControl().setTransferAbortedFromInternal(true);
             }
+            session.getDataConn().getFtpTransferControl().setDataChannelWritabilityChanged();
             session.getDataConn().unbindPassive();
             try {
                 getDataBusinessHandler().executeChannelClosed();
@@ -170,29 +187,15 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
         super.channelInactive(ctx);
     }
 
-    protected void setSession(Channel channel) {
-        // First get the ftpSession from inetaddresses
-        for (int i = 0; i < FtpInternalConfiguration.RETRYNB; i++) {
-            session = configuration.getFtpSession(channel, isActive);
-            if (session == null) {
-                logger.warn("Session not found at try " + i);
-                try {
-                    Thread.sleep(FtpInternalConfiguration.RETRYINMS);
-                } catch (InterruptedException e1) {
-                    break;
-                }
-            } else {
-                break;
-            }
-        }
-        if (session == null) {
-            // Not found !!!
-            logger.error("Session not found!");
-            WaarpSslUtility.closingSslChannel(channel);
-            // Problem: control connection could not be directly informed!!!
-            // Only timeout will occur
-            return;
+    /**
+     * Wake up the retrieve writer waiting for the data channel to be writable again
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (session != null) {
+            session.getDataConn().getFtpTransferControl().setDataChannelWritabilityChanged();
         }
+        super.channelWritabilityChanged(ctx);
     }
 
     /**
@@ -200,19 +203,57 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
      * 
      */
     @Override
-    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    public void channelActive(final ChannelHandlerContext ctx) throws Exception {
         Channel channel = ctx.channel();
-        channel.config().setAutoRead(false);
+        FtpDataChannelPause.pause(channel, FtpDataChannelPause.NO_TRANSFER);
         if (session == null) {
-            setSession(channel);
+            // First get the ftpSession from inetaddresses, without blocking if not yet registered
+            final Future<FtpSession> future = configuration.getFtpSessionFuture(channel,
+                    isActive, true);
+            if (!future.isDone()) {
+                future.addListener(new GenericFutureListener<Future<FtpSession>>() {
+                    public void operationComplete(final Future<FtpSession> future)
+                            throws Exception {
+                        ctx.executor().execute(new Runnable() {
+                            public void run() {
+                                session = future.getNow();
+                                try {
+                                    setupDataChannel(ctx);
+                                } catch (Exception e) {
+                                    ctx.fireExceptionCaught(e);
+                                }
+                            }
+                        });
+                    }
+                });
+                return;
+            }
+            session = future.getNow();
         }
-        logger.debug("Data Channel opened as "+channel);
+        setupDataChannel(ctx);
+    }
+
+    /**
+     * Setup the data channel once the session is known (if any)
+     * 
+     * @param ctx
+     */
+    private void setupDataChannel(ChannelHandlerContext ctx) {
+        Channel channel = ctx.channel();
         if (session == null) {
+            // Not found !!!
+            // Problem: control connection could not be directly informed!!!
+            // Only timeout will occur
+            logger.error("Session not found!");
+        }
+        logger.debug("Data Channel opened as "+channel);
+        if (session == null || !channel.isActive()) {
             logger.debug("DataChannel immediately closed since no session is assigned");
             WaarpSslUtility.closingSslChannel(ctx.channel());
             return;
         }
         channelPipeline = ctx.pipeline();
+        modeCodec = (FtpDataModeCodec) channelPipeline.get(FtpDataInitializer.CODEC_MODE);
         dataChannel = channel;
         dataBusinessHandler.setFtpSession(getFtpSession());
         FtpChannelUtils.addDataChannel(channel, session.getConfiguration());
@@ -247,23 +288,73 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
     }
 
     /**
-     * Set the CODEC according to the mode. Must be called after each call of MODE, STRU or TYPE
+     * Set the CODEC according to the mode. Must be called after each call of MODE, STRU or TYPE.<br>
+     * Type and Structure codecs are owned by this channel only. They are removed from the pipeline
+     * when they are identity (IMAGE type and FILE structure) and added back when needed.
      */
     public void setCorrectCodec() {
-        FtpDataModeCodec modeCodec = (FtpDataModeCodec) channelPipeline
+        ChannelPipeline pipeline = channelPipeline;
+        if (pipeline == null || session == null) {
+            return;
+        }
+        FtpDataModeCodec modeCodec = (FtpDataModeCodec) pipeline
                 .get(FtpDataInitializer.CODEC_MODE);
-        FtpDataTypeCodec typeCodec = (FtpDataTypeCodec) channelPipeline
-                .get(FtpDataInitializer.CODEC_TYPE);
-        FtpDataStructureCodec structureCodec = (FtpDataStructureCodec) channelPipeline
-                .get(FtpDataInitializer.CODEC_STRUCTURE);
-        if (modeCodec == null || typeCodec == null || structureCodec == null) {
+        if (modeCodec == null) {
+            return;
+        }
+        FtpDataAsyncConn dataConn = session.getDataConn();
+        TransferType type = dataConn.getType();
+        TransferStructure structure = dataConn.getStructure();
+        TransferMode mode = dataConn.getMode();
+        // MODE Z is a compressed STREAM mode
+        modeCodec.setMode(mode == TransferMode.ZLIB ? TransferMode.STREAM : mode);
+        modeCodec.setStructure(structure);
+        try {
+            if (mode == TransferMode.ZLIB) {
+                if (pipeline.get(FtpDataInitializer.CODEC_ZLIB_DECODER) == null) {
+                    pipeline.addBefore(FtpDataInitializer.CODEC_MODE,
+                            FtpDataInitializer.CODEC_ZLIB_DECODER,
+                            new JdkZlibDecoder(ZlibWrapper.ZLIB));
+                    pipeline.addBefore(FtpDataInitializer.CODEC_MODE,
+                            FtpDataInitializer.CODEC_ZLIB_ENCODER,
+                            new JdkZlibEncoder(ZlibWrapper.ZLIB, dataConn.getZlibLevel()));
+                }
+            } else if (pipeline.get(FtpDataInitializer.CODEC_ZLIB_DECODER) != null) {
+                pipeline.remove(FtpDataInitializer.CODEC_ZLIB_DECODER);
+                pipeline.remove(FtpDataInitializer.CODEC_ZLIB_ENCODER);
+            }
+            FtpDataStructureCodec structureCodec = (FtpDataStructureCodec) pipeline
+                    .get(FtpDataInitializer.CODEC_STRUCTURE);
+            if (structure == TransferStructure.FILE) {
+                if (structureCodec != null) {
+                    pipeline.remove(FtpDataInitializer.CODEC_STRUCTURE);
+                }
+            } else if (structureCodec != null) {
+                structureCodec.setStructure(structure);
+            } else {
+                pipeline.addBefore(FtpDataInitializer.HANDLER, FtpDataInitializer.CODEC_STRUCTURE,
+                        new FtpDataStructureCodec(structure));
+            }
+            FtpDataTypeCodec typeCodec = (FtpDataTypeCodec) pipeline
+                    .get(FtpDataInitializer.CODEC_TYPE);
+            if (type == TransferType.IMAGE) {
+                if (typeCodec != null) {
+                    pipeline.remove(FtpDataInitializer.CODEC_TYPE);
+                }
+            } else if (typeCodec != null) {
+                typeCodec.setFullType(type, dataConn.getSubType());
+            } else {
+                String next = pipeline.get(FtpDataInitializer.CODEC_STRUCTURE) != null ?
+                        FtpDataInitializer.CODEC_STRUCTURE : FtpDataInitializer.HANDLER;
+                pipeline.addBefore(next, FtpDataInitializer.CODEC_TYPE,
+                        new FtpDataTypeCodec(type, dataConn.getSubType(),
+                                configuration.isAsciiEndOfLineConversion()));
+            }
+        } catch (NoSuchElementException e) {
+            // Channel is closing and its pipeline is being dismantled
+            logger.debug("Cannot setup codec since pipeline is changing: {}", e.getMessage());
             return;
         }
-        modeCodec.setMode(session.getDataConn().getMode());
-        modeCodec.setStructure(session.getDataConn().getStructure());
-        typeCodec.setFullType(session.getDataConn().getType(), session
-                .getDataConn().getSubType());
-        structureCodec.setStructure(session.getDataConn().getStructure());
         logger.debug("codec setup");
     }
 
@@ -347,8 +438,56 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
         }
     }
 
+    /**
+     * Idle data connection (from FtpIdleHandler): abort the transfer if any and close the
+     * connection, the passive bind being released once closed
+     */
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            logger.info("Idle data connection: {}", ctx.channel());
+            if (session != null && session.getDataConn() != null &&
+                    session.getDataConn().checkCorrectChannel(ctx.channel())) {
+                session.getDataConn().getFtpTransferControl()
+                        .setTransferAbortedFromInternal(true);
+            }
+            WaarpSslUtility.closingSslChannel(ctx.channel());
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
     public void setFtpTransfer(FtpTransfer ftpTransfer) {
         this.ftpTransfer = ftpTransfer;
+        if (ftpTransfer != null) {
+            resetTypeCodec();
+        }
+    }
+
+    /**
+     * A new transfer starts on this data channel, which could be kept open since a previous (maybe
+     * aborted) transfer: the state kept by the type codec between blocks is forgotten, from the
+     * event loop of the codec, before any new read or write
+     */
+    private void resetTypeCodec() {
+        ChannelPipeline pipeline = channelPipeline;
+        if (pipeline == null) {
+            return;
+        }
+        ChannelHandlerContext codecContext = pipeline.context(FtpDataInitializer.CODEC_TYPE);
+        if (codecContext == null) {
+            return;
+        }
+        final FtpDataTypeCodec typeCodec = (FtpDataTypeCodec) codecContext.handler();
+        if (codecContext.executor().inEventLoop()) {
+            typeCodec.reset();
+        } else {
+            codecContext.executor().execute(new Runnable() {
+                public void run() {
+                    typeCodec.reset();
+                }
+            });
+        }
     }
     /**
      * Act as needed according to the receive DataBlock message
@@ -356,6 +495,27 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
      */
     @Override
     public void channelRead0(ChannelHandlerContext ctx, DataBlock dataBlock) {
+        try {
+            storeDataBlock(ctx, dataBlock);
+        } finally {
+            ByteBuf buffer = dataBlock.getBlock();
+            if (buffer != null && buffer.refCnt() > 0) {
+                buffer.release();
+            }
+            FtpDataModeCodec codec = modeCodec;
+            if (codec != null) {
+                codec.releaseDataBlock(dataBlock);
+            }
+        }
+    }
+
+    /**
+     * Write the received block into the file of the current transfer
+     * 
+     * @param ctx
+     * @param dataBlock
+     */
+    private void storeDataBlock(ChannelHandlerContext ctx, DataBlock dataBlock) {
         if (ftpTransfer == null) {
             try {
                 ftpTransfer = session.getDataConn().getFtpTransferControl().getExecutingFtpTransfer();
@@ -371,28 +531,29 @@ public class DataNetworkHandler extends SimpleChannelInboundHandler<DataBlock> {
                 return;
             }
         }
-        try {
-            if (isStillAlive()) {
-                try {
-                    ftpTransfer.getFtpFile().writeDataBlock(dataBlock);
-                } catch (FtpNoFileException e1) {
-                    logger.debug(e1);
-                    session.getDataConn().getFtpTransferControl()
-                            .setTransferAbortedFromInternal(true);
-                    return;
-                } catch (FileTransferException e1) {
-                    logger.debug(e1);
-                    session.getDataConn().getFtpTransferControl()
-                            .setTransferAbortedFromInternal(true);
+        if (isStillAlive()) {
+            try {
+                ftpTransfer.getFtpFile().writeDataBlock(dataBlock);
+                if (dataBlock.isEOF() && !session.getDataConn().isStreamFile()) {
+                    // Block mode: end of this file, the connection is kept open for the next
+                    // transfer
+                    ftpTransfer = null;
+                    session.getDataConn().getFtpTransferControl().setPreEndOfTransfer();
                 }
-            } else {
-                // Shutdown
+            } catch (FtpNoFileException e1) {
+                logger.debug(e1);
+                session.getDataConn().getFtpTransferControl()
+                        .setTransferAbortedFromInternal(true);
+            } catch (FileTransferException e1) {
+                logger.debug(e1);
                 session.getDataConn().getFtpTransferControl()
                         .setTransferAbortedFromInternal(true);
-                WaarpSslUtility.closingSslChannel(ctx.channel());
             }
-        } finally {
-            dataBlock.getBlock().release();
+        } else {
+            // Shutdown
+            session.getDataConn().getFtpTransferControl()
+                    .setTransferAbortedFromInternal(true);
+            WaarpSslUtility.closingSslChannel(ctx.channel());
         }
     }
 
@@ -27,6 +27,8 @@ import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferSubType;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
 import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.data.FtpDataChannelPause;
+import org.waarp.ftp.core.utils.FtpIdleHandler;
 
 /**
  * Pipeline Factory for Data Network.
@@ -40,6 +42,21 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
      */
     public static final String CODEC_MODE = "MODE";
 
+    /**
+     * Deflate decoder (MODE Z)
+     */
+    public static final String CODEC_ZLIB_DECODER = "ZLIBDECODER";
+
+    /**
+     * Deflate encoder (MODE Z)
+     */
+    public static final String CODEC_ZLIB_ENCODER = "ZLIBENCODER";
+
+    /**
+     * Idle detection
+     */
+    public static final String IDLE = "IDLE";
+
     /**
      * Limit Codec
      */
@@ -65,12 +82,6 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
      */
     public static final String HANDLER = "handler";
 
-    protected static final FtpDataTypeCodec ftpDataTypeCodec = new FtpDataTypeCodec(
-            TransferType.ASCII, TransferSubType.NONPRINT);
-
-    protected static final FtpDataStructureCodec ftpDataStructureCodec = new FtpDataStructureCodec(
-            TransferStructure.FILE);
-
     /**
      * Business Handler Class
      */
@@ -101,6 +112,37 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
         isActive = active;
     }
 
+    /**
+     * Set the water marks of the data channel according to the number of blocks allowed to be in
+     * flight, such that the channel writability follows the retrieve window
+     * 
+     * @param ch
+     */
+    protected void setWriteBufferWaterMarks(SocketChannel ch) {
+        int high = configuration.getBlocksInFlight() * configuration.getBLOCKSIZE();
+        int low = high / 2;
+        if (high < ch.config().getWriteBufferLowWaterMark()) {
+            ch.config().setWriteBufferLowWaterMark(low);
+            ch.config().setWriteBufferHighWaterMark(high);
+        } else {
+            ch.config().setWriteBufferHighWaterMark(high);
+            ch.config().setWriteBufferLowWaterMark(low);
+        }
+    }
+
+    /**
+     * Add the default Type and Structure codecs (ASCII NON PRINT and FILE) to the end of the
+     * pipeline. Those codecs are not shared: each data channel has its own state. The Structure
+     * codec is an identity for FILE, so it is not installed until another structure is chosen
+     * (see {@link DataNetworkHandler#setCorrectCodec()}).
+     * 
+     * @param pipeline
+     */
+    protected void addDefaultTypeStructureCodecs(ChannelPipeline pipeline) {
+        pipeline.addLast(CODEC_TYPE, new FtpDataTypeCodec(TransferType.ASCII,
+                TransferSubType.NONPRINT, configuration.isAsciiEndOfLineConversion()));
+    }
+
     /**
      * Create the pipeline with Handler, ObjectDecoder, ObjectEncoder.
      * 
@@ -108,9 +150,17 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
+        setWriteBufferWaterMarks(ch);
+        // No read before the transfer runs, so never before the mode codec is ready: bytes and
+        // end of stream received earlier could be lost if the peer closes first
+        FtpDataChannelPause.pause(ch, FtpDataChannelPause.NO_TRANSFER);
         // Add default codec but they will change during the channelConnected
         pipeline.addFirst(CODEC_MODE, new FtpDataModeCodec(TransferMode.STREAM,
-                TransferStructure.FILE));
+                TransferStructure.FILE, configuration.getFtpInternalConfiguration()
+                        .getGlobalMemory()));
+        if (configuration.getDataIdleTimeout() > 0) {
+            pipeline.addFirst(IDLE, new FtpIdleHandler(configuration, null));
+        }
         pipeline.addLast(CODEC_LIMIT, configuration
                 .getFtpInternalConfiguration()
                 .getGlobalTrafficShapingHandler());
@@ -121,8 +171,7 @@ public class FtpDataInitializer extends ChannelInitializer<SocketChannel> {
         if (limitChannel != null) {
             pipeline.addLast(CODEC_LIMIT + "CHANNEL", limitChannel);
         }
-        pipeline.addLast(CODEC_TYPE, ftpDataTypeCodec);
-        pipeline.addLast(CODEC_STRUCTURE, ftpDataStructureCodec);
+        addDefaultTypeStructureCodecs(pipeline);
         // and then business logic. New one on every connection
         DataBusinessHandler newbusiness = dataBusinessHandler.newInstance();
         DataNetworkHandler newNetworkHandler = new DataNetworkHandler(
@@ -17,21 +17,24 @@
  */
 package org.waarp.ftp.core.data.handler;
 
+import java.util.ArrayDeque;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.ByteToMessageCodec;
 
 import org.waarp.common.exception.InvalidArgumentException;
 import org.waarp.common.file.DataBlock;
-import org.waarp.common.future.WaarpFuture;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
-import org.waarp.ftp.core.config.FtpConfiguration;
-import org.waarp.ftp.core.data.handler.FtpSeekAheadData.SeekAheadNoBackArrayException;
+import org.waarp.ftp.core.data.FtpDataChannelPause;
+import org.waarp.ftp.core.data.FtpGlobalMemory;
 
 /**
  * First CODEC :<br>
@@ -109,19 +112,77 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
     private volatile boolean isReady = false;
 
     /**
-     * Blocking step between DataNetworkHandler and this Codec in order to wait that the
-     * DataNetworkHandler is ready
+     * Lock protecting the readiness gate between the DataNetworkHandler and this Codec
      */
-    private final WaarpFuture codecLocked = new WaarpFuture();
+    private final Object readyLock = new Object();
+
+    /**
+     * Context of this codec when some bytes or writes are waiting for the codec to be ready
+     */
+    private ChannelHandlerContext pendingContext = null;
+
+    /**
+     * Writes received before the codec was ready, replayed once ready
+     */
+    private volatile ArrayDeque<Object[]> pendingWrites = null;
+
+    /**
+     * Server wide memory accounting (might be null)
+     */
+    private final FtpGlobalMemory globalMemory;
+
+    /**
+     * Maximum number of DataBlocks kept for reuse by the decoder
+     */
+    private static final int MAX_POOLED_BLOCKS = 16;
+
+    /**
+     * Maximum length of one BLOCK mode frame
+     */
+    private static final int MAX_FRAME_LENGTH = 0xFFFF;
+
+    /**
+     * DataBlock decoded by this codec, keeping the memory reserved for it until it is released
+     * by {@link #releaseDataBlock(DataBlock)}
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static final class PooledDataBlock extends DataBlock {
+        /**
+         * Memory reserved against the global budget
+         */
+        private int reserved = 0;
+    }
+
+    /**
+     * DataBlocks released by the DataNetworkHandler (running in another executor), ready to be
+     * reused by the decoder
+     */
+    private final ArrayBlockingQueue<PooledDataBlock> pool =
+            new ArrayBlockingQueue<PooledDataBlock>(MAX_POOLED_BLOCKS);
 
     /**
      * @param mode
      * @param structure
      */
     public FtpDataModeCodec(TransferMode mode, TransferStructure structure) {
+        this(mode, structure, null);
+    }
+
+    /**
+     * @param mode
+     * @param structure
+     * @param globalMemory
+     *            server wide memory accounting against which decoded blocks are reserved (might
+     *            be null)
+     */
+    public FtpDataModeCodec(TransferMode mode, TransferStructure structure,
+            FtpGlobalMemory globalMemory) {
         super();
         this.mode = mode;
         this.structure = structure;
+        this.globalMemory = globalMemory;
     }
 
     /**
@@ -130,138 +191,216 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
      * 
      */
     public void setCodecReady() {
-        codecLocked.setSuccess();
+        final ChannelHandlerContext ctx;
+        synchronized (readyLock) {
+            if (isReady) {
+                return;
+            }
+            isReady = true;
+            ctx = pendingContext;
+            pendingContext = null;
+        }
+        if (ctx != null) {
+            // Replay within the event loop what was received or written before being ready
+            ctx.executor().execute(new Runnable() {
+                public void run() {
+                    replayPending(ctx);
+                }
+            });
+        }
     }
 
-    protected DataBlock decodeRecordStandard(ByteBuf buf, int length) {
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length);
-        if (lastbyte == 0xFF) {
-            int nextbyte = buf.readByte();
-            if (nextbyte == 0xFF) {
-                newbuf.writeByte((byte) (lastbyte & 0xFF));
-            } else {
-                if (nextbyte == 1) {
-                    dataBlock.setEOR(true);
-                } else if (nextbyte == 2) {
-                    dataBlock.setEOF(true);
-                } else if (nextbyte == 3) {
-                    dataBlock.setEOR(true);
-                    dataBlock.setEOF(true);
-                }
-                lastbyte = 0;
+    /**
+     * Check the readiness gate from the event loop without blocking it: if the codec is not yet
+     * ready, the context is kept to be able to replay later on what is pending.
+     * 
+     * @param ctx
+     * @return True if the codec is ready
+     */
+    private boolean checkReady(ChannelHandlerContext ctx) {
+        if (isReady) {
+            return true;
+        }
+        synchronized (readyLock) {
+            if (isReady) {
+                return true;
             }
+            pendingContext = ctx;
+            return false;
+        }
+    }
+
+    /**
+     * Decode the bytes kept in the cumulation buffer and write the messages delayed while the
+     * codec was not ready
+     * 
+     * @param ctx
+     */
+    private void replayPending(ChannelHandlerContext ctx) {
+        if (FtpDataChannelPause.isPaused(ctx.channel(), FtpDataChannelPause.CODEC_NOT_READY)) {
+            FtpDataChannelPause.resume(ctx.channel(), FtpDataChannelPause.CODEC_NOT_READY);
         }
         try {
-            while (true) {
-                lastbyte = buf.readByte();
-                if (lastbyte == 0xFF) {
-                    int nextbyte = buf.readByte();
-                    if (nextbyte == 0xFF) {
-                        newbuf.writeByte((byte) (lastbyte & 0xFF));
-                    } else {
-                        if (nextbyte == 1) {
-                            dataBlock.setEOR(true);
-                        } else if (nextbyte == 2) {
-                            dataBlock.setEOF(true);
-                        } else if (nextbyte == 3) {
-                            dataBlock.setEOR(true);
-                            dataBlock.setEOF(true);
-                        }
-                    }
-                } else {
-                    newbuf.writeByte((byte) (lastbyte & 0xFF));
+            // An empty buffer triggers the decoding of the cumulated bytes
+            channelRead(ctx, Unpooled.EMPTY_BUFFER);
+            channelReadComplete(ctx);
+        } catch (Exception e) {
+            ctx.fireExceptionCaught(e);
+        }
+        ArrayDeque<Object[]> writes;
+        synchronized (readyLock) {
+            writes = pendingWrites;
+            pendingWrites = null;
+        }
+        if (writes != null) {
+            Object[] pending;
+            while ((pending = writes.poll()) != null) {
+                try {
+                    write(ctx, pending[0], (ChannelPromise) pending[1]);
+                } catch (Exception e) {
+                    ((ChannelPromise) pending[1]).tryFailure(e);
                 }
-                lastbyte = 0;
             }
-        } catch (IndexOutOfBoundsException e) {
-            // End of read
+            ctx.flush();
         }
-        dataBlock.setBlock(newbuf);
-        return dataBlock;
     }
 
-    protected DataBlock decodeRecord(ByteBuf buf, int length) {
-        FtpSeekAheadData sad = null;
-        try {
-            sad = new FtpSeekAheadData(buf);
-        } catch (SeekAheadNoBackArrayException e1) {
-            return decodeRecordStandard(buf, length);
+    /**
+     * Decode one escape code (the byte following 0xFF) of a STREAM+RECORD transfer
+     * 
+     * @param code
+     * @param newbuf
+     */
+    private void decodeRecordEscape(int code, ByteBuf newbuf) {
+        if (code == 0xFF) {
+            newbuf.writeByte(0xFF);
+        } else {
+            if ((code & 1) != 0) {
+                dataBlock.setEOR(true);
+            }
+            if ((code & 2) != 0) {
+                dataBlock.setEOF(true);
+            }
         }
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(length);
+    }
+
+    /**
+     * Decode a STREAM+RECORD buffer: runs of bytes without escape are copied at once, the escape
+     * code being possibly in the next buffer.
+     * 
+     * @param alloc
+     * @param buf
+     * @param length
+     * @return the DataBlock
+     */
+    protected DataBlock decodeRecord(ByteBufAllocator alloc, ByteBuf buf, int length) {
+        ByteBuf newbuf = alloc.buffer(length);
         if (lastbyte == 0xFF) {
-            int nextbyte = sad.bytes[sad.pos++];
-            if (nextbyte == 0xFF) {
-                newbuf.writeByte((byte) (lastbyte & 0xFF));
-            } else {
-                if (nextbyte == 1) {
-                    dataBlock.setEOR(true);
-                } else if (nextbyte == 2) {
-                    dataBlock.setEOF(true);
-                } else if (nextbyte == 3) {
-                    dataBlock.setEOR(true);
-                    dataBlock.setEOF(true);
-                }
-                lastbyte = 0;
-            }
+            // escape byte was the last one of previous buffer
+            lastbyte = 0;
+            decodeRecordEscape(buf.readUnsignedByte(), newbuf);
         }
-        try {
-            while (sad.pos < sad.limit) {
-                lastbyte = sad.bytes[sad.pos++];
-                if (lastbyte == 0xFF) {
-                    int nextbyte = sad.bytes[sad.pos++];
-                    if (nextbyte == 0xFF) {
-                        newbuf.writeByte((byte) (lastbyte & 0xFF));
-                    } else {
-                        if (nextbyte == 1) {
-                            dataBlock.setEOR(true);
-                        } else if (nextbyte == 2) {
-                            dataBlock.setEOF(true);
-                        } else if (nextbyte == 3) {
-                            dataBlock.setEOR(true);
-                            dataBlock.setEOF(true);
-                        }
-                    }
-                } else {
-                    newbuf.writeByte((byte) (lastbyte & 0xFF));
-                }
-                lastbyte = 0;
+        while (buf.isReadable()) {
+            int run = buf.bytesBefore((byte) 0xFF);
+            if (run < 0) {
+                newbuf.writeBytes(buf);
+                break;
             }
-        } catch (IndexOutOfBoundsException e) {
-            // End of read
+            newbuf.writeBytes(buf, run);
+            buf.skipBytes(1);
+            if (!buf.isReadable()) {
+                lastbyte = 0xFF;
+                break;
+            }
+            decodeRecordEscape(buf.readUnsignedByte(), newbuf);
         }
-        sad.setReadPosition(0);
         dataBlock.setBlock(newbuf);
         return dataBlock;
     }
 
+    /**
+     * 
+     * @return a DataBlock for the decoder, reused if possible
+     */
+    private DataBlock newDataBlock() {
+        PooledDataBlock block = pool.poll();
+        if (block == null) {
+            return new PooledDataBlock();
+        }
+        block.setDescriptor((byte) 0);
+        return block;
+    }
+
+    /**
+     * Reserve the memory of a decoded block against the global budget, pausing reads from the
+     * channel if exhausted. The memory is released by {@link #releaseDataBlock(DataBlock)} once
+     * the block is written to the file.
+     * 
+     * @param ctx
+     * @param block
+     * @return the block
+     */
+    private DataBlock reserve(ChannelHandlerContext ctx, DataBlock block) {
+        if (globalMemory != null && block.getByteCount() > 0 &&
+                block instanceof PooledDataBlock) {
+            globalMemory.reserveForRead(ctx.channel(), block.getByteCount());
+            ((PooledDataBlock) block).reserved = block.getByteCount();
+        }
+        return block;
+    }
+
+    /**
+     * Release a decoded block once fully processed (from {@link DataNetworkHandler}, its buffer
+     * being already released): the memory reserved for it is given back to the global budget and
+     * the DataBlock is kept for reuse.
+     * 
+     * @param block
+     */
+    public void releaseDataBlock(DataBlock block) {
+        if (!(block instanceof PooledDataBlock)) {
+            return;
+        }
+        PooledDataBlock pooled = (PooledDataBlock) block;
+        if (pooled.reserved > 0) {
+            globalMemory.release(pooled.reserved);
+            pooled.reserved = 0;
+        }
+        pool.offer(pooled);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (globalMemory != null) {
+            globalMemory.removeChannel(ctx.channel());
+        }
+        super.channelInactive(ctx);
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
         // First test if the connection is fully ready (block might be
         // transfered
         // by client before connection is ready)
-        if (!isReady) {
-            if (!codecLocked.await(FtpConfiguration.getDATATIMEOUTCON())) {
-                throw new InvalidArgumentException("Codec not unlocked while should be");
-            }
-            isReady = true;
+        if (!checkReady(ctx)) {
+            // Keep the bytes in the cumulation buffer and stop reading until the codec is ready
+            FtpDataChannelPause.pause(ctx.channel(), FtpDataChannelPause.CODEC_NOT_READY);
+            return;
         }
         if (buf.readableBytes() == 0) {
             return;
         }
         // If STREAM Mode, no task to do, just next filter
         if (mode == TransferMode.STREAM) {
-            dataBlock = new DataBlock();
+            dataBlock = newDataBlock();
             if (structure != TransferStructure.RECORD) {
-                ByteBuf newbuf = Unpooled.wrappedBuffer(buf);
-                buf.readerIndex(buf.readableBytes());
-                newbuf.retain();
-                dataBlock.setBlock(newbuf);
-                out.add(dataBlock);
+                // retained slice of the cumulation buffer, no copy
+                dataBlock.setBlock(buf.readSlice(buf.readableBytes()).retain());
+                out.add(reserve(ctx, dataBlock));
                 return;
             }
             // Except if RECORD Structure!
             int length = buf.readableBytes();
-            out.add(decodeRecord(buf, length));
+            out.add(reserve(ctx, decodeRecord(ctx.alloc(), buf, length)));
             return;
         } else if (mode == TransferMode.BLOCK) {
             // Now we are in BLOCK Mode
@@ -282,7 +421,7 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
             buf.markReaderIndex();
 
             if (dataBlock == null) {
-                dataBlock = new DataBlock();
+                dataBlock = newDataBlock();
             }
             // Read the descriptor
             dataBlock.setDescriptor(buf.readByte());
@@ -305,68 +444,45 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
                 return;
             }
             if (dataBlock.getByteCount() > 0) {
-                // There's enough bytes in the buffer. Read it.
-                dataBlock.setBlock(buf.readBytes(dataBlock.getByteCount()));
+                // There's enough bytes in the buffer: retained slice of the cumulation buffer,
+                // no copy
+                dataBlock.setBlock(buf.readSlice(dataBlock.getByteCount()).retain());
+            } else {
+                // Empty block, as the EOF one ending a file on a kept open connection
+                dataBlock.setBlock(Unpooled.EMPTY_BUFFER);
             }
             DataBlock returnDataBlock = dataBlock;
             // Free the datablock for next frame
             dataBlock = null;
             // Successfully decoded a frame. Return the decoded frame.
-            out.add(returnDataBlock);
+            out.add(reserve(ctx, returnDataBlock));
             return;
         }
         // Type unimplemented
         throw new InvalidArgumentException("Mode unimplemented: " + mode.name());
     }
 
-    protected ByteBuf encodeRecordStandard(DataBlock msg, ByteBuf buffer) {
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(msg.getByteCount());
-        int newbyte = 0;
-        try {
-            while (true) {
-                newbyte = buffer.readByte();
-                if (newbyte == 0xFF) {
-                    newbuf.writeByte((byte) (newbyte & 0xFF));
-                }
-                newbuf.writeByte((byte) (newbyte & 0xFF));
-            }
-        } catch (IndexOutOfBoundsException e) {
-            // end of read
-        }
-        int value = 0;
-        if (msg.isEOF()) {
-            value += 2;
-        }
-        if (msg.isEOR()) {
-            value += 1;
-        }
-        if (value > 0) {
-            newbuf.writeByte((byte) 0xFF);
-            newbuf.writeByte((byte) (value & 0xFF));
-        }
-        msg.clear();
-        return newbuf;
-    }
-
-    protected ByteBuf encodeRecord(DataBlock msg, ByteBuf buffer) {
-        FtpSeekAheadData sad = null;
-        try {
-            sad = new FtpSeekAheadData(buffer);
-        } catch (SeekAheadNoBackArrayException e1) {
-            return encodeRecordStandard(msg, buffer);
-        }
-        ByteBuf newbuf = ByteBufAllocator.DEFAULT.buffer(msg.getByteCount());
-        int newbyte = 0;
-        try {
-            while (sad.pos < sad.limit) {
-                newbyte = sad.bytes[sad.pos++];
-                if (newbyte == 0xFF) {
-                    newbuf.writeByte((byte) (newbyte & 0xFF));
+    /**
+     * Encode a STREAM+RECORD block into out: runs of bytes without 0xFF are copied at once, 0xFF
+     * being doubled, then EOR/EOF are added.
+     * 
+     * @param msg
+     * @param buffer
+     * @param out
+     */
+    protected void encodeRecord(DataBlock msg, ByteBuf buffer, ByteBuf out) {
+        if (buffer != null) {
+            out.ensureWritable(buffer.readableBytes() + 2);
+            while (buffer.isReadable()) {
+                int run = buffer.bytesBefore((byte) 0xFF);
+                if (run < 0) {
+                    out.writeBytes(buffer);
+                    break;
                 }
-                newbuf.writeByte((byte) (newbyte & 0xFF));
+                // copy including the 0xFF, then double it
+                out.writeBytes(buffer, run + 1);
+                out.writeByte(0xFF);
             }
-        } catch (IndexOutOfBoundsException e) {
-            // end of read
         }
         int value = 0;
         if (msg.isEOF()) {
@@ -376,12 +492,10 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
             value += 1;
         }
         if (value > 0) {
-            newbuf.writeByte((byte) 0xFF);
-            newbuf.writeByte((byte) (value & 0xFF));
+            out.writeByte(0xFF);
+            out.writeByte(value);
         }
         msg.clear();
-        sad.setReadPosition(0);
-        return newbuf;
     }
 
     /**
@@ -400,7 +514,9 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
         if (mode == TransferMode.STREAM) {
             // If record structure, special attention
             if (structure == TransferStructure.RECORD) {
-                return encodeRecord(msg, buffer);
+                ByteBuf newbuf = Unpooled.buffer(msg.getByteCount() + 2);
+                encodeRecord(msg, buffer, newbuf);
+                return newbuf;
             }
             msg.clear();
             return buffer;
@@ -498,22 +614,119 @@ public class FtpDataModeCodec extends ByteToMessageCodec<DataBlock> {
         this.structure = structure;
     }
 
+    /**
+     * BLOCK mode blocks are written as a composite buffer of the frame headers and slices of the
+     * block, without copying the data; other modes go through the encoder.
+     */
     @Override
-    protected void encode(ChannelHandlerContext ctx, DataBlock msg, ByteBuf out) throws Exception {
-        // First test if the connection is fully ready (block might be
-        // transfered
-        // by client before connection is ready)
-        if (!isReady) {
-            if (!codecLocked.await(FtpConfiguration.getDATATIMEOUTCON())) {
-                throw new InvalidArgumentException("Codec not unlocked while should be");
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+            throws Exception {
+        if (!isReady || pendingWrites != null) {
+            synchronized (readyLock) {
+                if (!isReady || pendingWrites != null) {
+                    // Delay the write until the codec is ready and the previous ones are written
+                    pendingContext = ctx;
+                    if (pendingWrites == null) {
+                        pendingWrites = new ArrayDeque<Object[]>();
+                    }
+                    pendingWrites.add(new Object[] { msg, promise });
+                    return;
+                }
+            }
+        }
+        if (mode == TransferMode.BLOCK && msg instanceof DataBlock) {
+            ctx.write(encodeBlockFrames(ctx.alloc(), (DataBlock) msg), promise);
+            return;
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    /**
+     * Encode a DataBlock in BLOCK mode: the data is split in frames of the maximum size (64K - 1),
+     * each frame being one header and one slice of the block, the descriptor being only set on
+     * the last frame. The block buffer is released.
+     * 
+     * @param alloc
+     * @param msg
+     * @return the buffer to write
+     */
+    protected ByteBuf encodeBlockFrames(ByteBufAllocator alloc, DataBlock msg) {
+        ByteBuf block = msg.getBlock();
+        try {
+            if (msg.isRESTART()) {
+                // Markers only
+                ByteBuf restart = alloc.buffer(msg.getByteCount() + 3);
+                restart.writeByte(msg.getDescriptor());
+                restart.writeByte(msg.getByteCountUpper());
+                restart.writeByte(msg.getByteCountLower());
+                restart.writeBytes(msg.getByteMarkers());
+                return restart;
+            }
+            int length = block == null ? 0 : block.readableBytes();
+            if (length == 0) {
+                if (msg.isEOF() || msg.isEOR()) {
+                    // empty block for EOR or EOF
+                    ByteBuf header = alloc.buffer(3);
+                    header.writeByte(msg.getDescriptor());
+                    header.writeShort(0);
+                    return header;
+                }
+                return Unpooled.EMPTY_BUFFER;
+            }
+            int frames = (length + MAX_FRAME_LENGTH - 1) / MAX_FRAME_LENGTH;
+            CompositeByteBuf composite = alloc.compositeBuffer(frames * 2);
+            ByteBuf headers = alloc.buffer(frames * 3);
+            int index = block.readerIndex();
+            int written = 0;
+            while (length > 0) {
+                int frame = length > MAX_FRAME_LENGTH ? MAX_FRAME_LENGTH : length;
+                length -= frame;
+                int headerIndex = headers.writerIndex();
+                // descriptor only on the last frame
+                headers.writeByte(length == 0 ? msg.getDescriptor() : 0);
+                headers.writeShort(frame);
+                composite.addComponent(headers.slice(headerIndex, 3).retain());
+                composite.addComponent(block.slice(index, frame).retain());
+                index += frame;
+                written += frame + 3;
+            }
+            headers.release();
+            composite.writerIndex(written);
+            return composite;
+        } finally {
+            // the frames keep their own references on the block
+            if (block != null && block.refCnt() > 0) {
+                block.release();
             }
-            isReady = true;
         }
-        ByteBuf next = encode(msg);
-        // Could be splitten in several block
-        while (next != null) {
-            out.writeBytes(next);
-            next = encode(msg);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, DataBlock msg, ByteBuf out) throws Exception {
+        // Readiness already checked within write
+        ByteBuf block = msg.getBlock();
+        try {
+            if (mode == TransferMode.STREAM && structure == TransferStructure.RECORD) {
+                // escaped directly into the outgoing buffer
+                if (!msg.isCleared()) {
+                    encodeRecord(msg, block, out);
+                }
+                return;
+            }
+            ByteBuf next = encode(msg);
+            // Could be splitten in several block
+            while (next != null) {
+                out.writeBytes(next);
+                if (next != block) {
+                    next.release();
+                }
+                next = encode(msg);
+            }
+        } finally {
+            // the block is fully copied into out
+            if (block != null && block.refCnt() > 0) {
+                block.release();
+            }
         }
     }
 }
@@ -22,7 +22,6 @@ import java.util.List;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageCodec;
 
@@ -30,17 +29,19 @@ import org.waarp.common.exception.InvalidArgumentException;
 import org.waarp.common.file.DataBlock;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferSubType;
 import org.waarp.ftp.core.command.FtpArgumentCode.TransferType;
+import org.waarp.ftp.core.data.handler.FtpDataTypeTranscoder.EndOfLine;
 
 /**
  * Second CODEC :<br>
  * - encode/decode : takes a {@link DataBlock} and transforms it to a new {@link DataBlock} according
  * to the types<br>
- * Force ASCII, EBCDIC or IMAGE (with NON PRINT). LOCAL and other subtypes are not implemented.
+ * Force ASCII, EBCDIC or IMAGE (with NON PRINT). LOCAL and other subtypes are not implemented.<br>
+ * ASCII and EBCDIC are transcoded block by block through {@link FtpDataTypeTranscoder}, keeping
+ * partial characters between blocks.
  * 
  * @author Frederic Bregier
  * 
  */
-@Sharable
 class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     /*
      * 3.1.1. DATA TYPES Data representations are handled in FTP by a user specifying a
@@ -135,15 +136,42 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
      */
     private TransferSubType subType = null;
 
+    /**
+     * Should end of lines be converted (CRLF on network, LF locally)
+     */
+    private final boolean endOfLineConversion;
+
+    /**
+     * Transcoder from network to local charset (created on first use for the current type)
+     */
+    private FtpDataTypeTranscoder decoder = null;
+
+    /**
+     * Transcoder from local to network charset (created on first use for the current type)
+     */
+    private FtpDataTypeTranscoder encoder = null;
+
     /**
      * @param type
      * @param subType
      */
     public FtpDataTypeCodec(TransferType type, TransferSubType subType) {
+        this(type, subType, false);
+    }
+
+    /**
+     * @param type
+     * @param subType
+     * @param endOfLineConversion
+     *            True if network CRLF should be converted to local LF and the reverse
+     */
+    public FtpDataTypeCodec(TransferType type, TransferSubType subType,
+            boolean endOfLineConversion) {
         super();
         setCharset(null);
         this.type = type;
         this.subType = subType;
+        this.endOfLineConversion = endOfLineConversion;
     }
 
     /**
@@ -160,10 +188,27 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
      *            the subType to set
      */
     public void setFullType(TransferType type, TransferSubType subType) {
+        if (this.type != type) {
+            decoder = null;
+            encoder = null;
+        }
         this.type = type;
         this.subType = subType;
     }
 
+    /**
+     * Forget the state kept between blocks by the transcoders (called from the channel event loop
+     * when a new transfer starts on this data channel)
+     */
+    public void reset() {
+        if (decoder != null) {
+            decoder.reset();
+        }
+        if (encoder != null) {
+            encoder.reset();
+        }
+    }
+
     /**
      * @return the type
      */
@@ -191,8 +236,11 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
             out.add(msg);
             return;
         } else if (type == TransferType.ASCII || type == TransferType.EBCDIC) {
-            ByteBuf buffer = msg.getBlock();
-            msg.setBlock(decode(buffer));
+            if (decoder == null) {
+                decoder = new FtpDataTypeTranscoder(type.charset, charsetName,
+                        endOfLineConversion ? EndOfLine.CRLF_TO_LF : EndOfLine.NONE);
+            }
+            transcode(ctx, decoder, msg);
             out.add(msg);
             return;
         }
@@ -201,18 +249,6 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
                 this.getClass().getName() + " codec " + type.name());
     }
 
-    /**
-     * 
-     * @param ByteBuf
-     * @return the ByteBuf
-     * @throws Exception
-     */
-    protected ByteBuf decode(ByteBuf ByteBuf)
-            throws Exception {
-        return Unpooled.copiedBuffer(ByteBuf
-                .toString(type.charset), charsetName);
-    }
-
     @Override
     protected void encode(ChannelHandlerContext ctx, DataBlock msg, List<Object> out) throws Exception {
         // Is an ASCII or EBCDIC mode or IMAGE mode
@@ -220,8 +256,11 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
             out.add(msg);
             return;
         } else if (type == TransferType.ASCII || type == TransferType.EBCDIC) {
-            ByteBuf buffer = msg.getBlock();
-            msg.setBlock(encode(buffer));
+            if (encoder == null) {
+                encoder = new FtpDataTypeTranscoder(charsetName, type.charset,
+                        endOfLineConversion ? EndOfLine.LF_TO_CRLF : EndOfLine.NONE);
+            }
+            transcode(ctx, encoder, msg);
             out.add(msg);
             return;
         }
@@ -231,14 +270,44 @@ class FtpDataTypeCodec extends MessageToMessageCodec<DataBlock, DataBlock> {
     }
 
     /**
+     * Replace the block of msg by its transcoded version, releasing the original one
      * 
-     * @param ByteBuf
-     * @return the encoded buffer
-     * @throws Exception
-     */
-    protected ByteBuf encode(ByteBuf ByteBuf)
-            throws Exception {
-        String chString = ByteBuf.toString(charsetName);
-        return Unpooled.copiedBuffer(chString, type.charset);
+     * @param ctx
+     * @param transcoder
+     * @param msg
+     */
+    private void transcode(ChannelHandlerContext ctx, FtpDataTypeTranscoder transcoder,
+            DataBlock msg) {
+        ByteBuf buffer = msg.getBlock();
+        if (buffer == null) {
+            if (!msg.isEOF() || !transcoder.hasPending()) {
+                return;
+            }
+            buffer = Unpooled.EMPTY_BUFFER;
+        }
+        try {
+            msg.setBlock(transcoder.transcode(ctx.alloc(), buffer, msg.isEOF()));
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * In STREAM mode, the end of a store is the closing of the connection: flush what the decoder
+     * still keeps before the DataNetworkHandler is informed.
+     */
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (decoder != null && decoder.hasPending()) {
+            DataBlock dataBlock = new DataBlock();
+            dataBlock.setEOF(true);
+            transcode(ctx, decoder, dataBlock);
+            if (dataBlock.getBlock() != null && dataBlock.getBlock().isReadable()) {
+                ctx.fireChannelRead(dataBlock);
+            } else if (dataBlock.getBlock() != null) {
+                dataBlock.getBlock().release();
+            }
+        }
+        super.channelInactive(ctx);
     }
 }
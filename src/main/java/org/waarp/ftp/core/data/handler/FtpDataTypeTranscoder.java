@@ -0,0 +1,376 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.data.handler;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Streaming charset transcoder used by {@link FtpDataTypeCodec}, one instance by direction and by
+ * data channel.<br>
+ * Bytes that cannot be converted yet (a multi-byte character split between two blocks, or a CR
+ * waiting for the next character) are kept until the next block or until the last one.<br>
+ * When the source charset is a single byte one (ASCII, EBCDIC), a 256 entries table is used
+ * instead of the CharsetDecoder/CharsetEncoder pair.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+class FtpDataTypeTranscoder {
+    /**
+     * End of line conversion
+     */
+    static enum EndOfLine {
+        /**
+         * No conversion
+         */
+        NONE,
+        /**
+         * CRLF are converted to LF
+         */
+        CRLF_TO_LF,
+        /**
+         * LF not preceded by CR are converted to CRLF
+         */
+        LF_TO_CRLF
+    }
+
+    /**
+     * Size of the intermediary chunks
+     */
+    private static final int CHUNK = 8192;
+
+    private final EndOfLine endOfLine;
+
+    private final CharsetDecoder decoder;
+
+    private final CharsetEncoder encoder;
+
+    /**
+     * Single byte source: for each source byte, the target bytes (null if not single byte)
+     */
+    private final byte[][] table;
+
+    /**
+     * Longest entry in table
+     */
+    private int maxTableLength = 1;
+
+    /**
+     * CR and LF in source charset for table mode (-1 if none)
+     */
+    private int sourceCr = -1;
+
+    private int sourceLf = -1;
+
+    /**
+     * Intermediary buffers
+     */
+    private byte[] bytesIn;
+
+    private byte[] bytesOut;
+
+    private CharBuffer chars;
+
+    private CharBuffer lines;
+
+    /**
+     * Source bytes not yet decoded from previous block
+     */
+    private ByteBuffer pendingBytes = null;
+
+    /**
+     * A CR was kept from previous block (CRLF_TO_LF)
+     */
+    private boolean pendingCr = false;
+
+    /**
+     * Last character was a CR (LF_TO_CRLF)
+     */
+    private boolean lastWasCr = false;
+
+    /**
+     * @param source
+     *            charset of the incoming bytes
+     * @param target
+     *            charset of the outgoing bytes
+     * @param endOfLine
+     *            end of line conversion to apply
+     */
+    FtpDataTypeTranscoder(Charset source, Charset target, EndOfLine endOfLine) {
+        this.endOfLine = endOfLine;
+        decoder = source.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        encoder = target.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        if (decoder.maxCharsPerByte() == 1.0f && source.newEncoder().maxBytesPerChar() == 1.0f) {
+            table = new byte[256][];
+            for (int i = 0; i < 256; i++) {
+                String value = new String(new byte[] {
+                        (byte) i }, source);
+                table[i] = value.getBytes(target);
+                if (table[i].length > maxTableLength) {
+                    maxTableLength = table[i].length;
+                }
+                if ("\r".equals(value)) {
+                    sourceCr = i;
+                } else if ("\n".equals(value)) {
+                    sourceLf = i;
+                }
+            }
+            if (sourceCr < 0 || sourceLf < 0) {
+                sourceCr = sourceLf = -1;
+            }
+        } else {
+            table = null;
+            chars = CharBuffer.allocate(CHUNK);
+            if (endOfLine != EndOfLine.NONE) {
+                lines = CharBuffer.allocate(CHUNK * 2 + 2);
+            }
+        }
+    }
+
+    /**
+     * Transcode one block
+     * 
+     * @param alloc
+     *            allocator for the result
+     * @param in
+     *            the source bytes, all read but not released
+     * @param last
+     *            True if this is the last block of the transfer, so that pending state is flushed
+     * @return the transcoded bytes
+     */
+    ByteBuf transcode(ByteBufAllocator alloc, ByteBuf in, boolean last) {
+        if (table != null) {
+            return transcodeTable(alloc, in, last);
+        }
+        return transcodeCharset(alloc, in, last);
+    }
+
+    /**
+     * Forget any state kept from previous blocks (end of file, or new transfer after an aborted
+     * one)
+     */
+    void reset() {
+        decoder.reset();
+        encoder.reset();
+        if (chars != null) {
+            chars.clear();
+        }
+        if (lines != null) {
+            lines.clear();
+        }
+        pendingBytes = null;
+        pendingCr = false;
+        lastWasCr = false;
+    }
+
+    /**
+     * 
+     * @return True if some state is kept, waiting for next block
+     */
+    boolean hasPending() {
+        return pendingCr || (pendingBytes != null && pendingBytes.hasRemaining()) ||
+                (chars != null && chars.position() > 0) ||
+                (lines != null && lines.position() > 0);
+    }
+
+    private ByteBuf transcodeTable(ByteBufAllocator alloc, ByteBuf in, boolean last) {
+        int length = in.readableBytes();
+        int factor = endOfLine == EndOfLine.LF_TO_CRLF ? 2 : 1;
+        ByteBuf out = alloc.directBuffer(length * maxTableLength + maxTableLength);
+        if (bytesOut == null) {
+            bytesOut = new byte[(CHUNK * factor + 1) * maxTableLength];
+        }
+        byte[] dst = bytesOut;
+        while (length > 0) {
+            int size = length > CHUNK ? CHUNK : length;
+            byte[] src;
+            int start;
+            if (in.hasArray()) {
+                src = in.array();
+                start = in.arrayOffset() + in.readerIndex();
+            } else {
+                if (bytesIn == null) {
+                    bytesIn = new byte[CHUNK];
+                }
+                src = bytesIn;
+                start = 0;
+                in.getBytes(in.readerIndex(), src, 0, size);
+            }
+            in.skipBytes(size);
+            length -= size;
+            int end = start + size;
+            int pos = 0;
+            for (int i = start; i < end; i++) {
+                int value = src[i] & 0xFF;
+                if (sourceCr >= 0) {
+                    if (endOfLine == EndOfLine.CRLF_TO_LF) {
+                        if (pendingCr) {
+                            pendingCr = false;
+                            if (value != sourceLf) {
+                                pos = copy(table[sourceCr], dst, pos);
+                            }
+                        }
+                        if (value == sourceCr) {
+                            pendingCr = true;
+                            continue;
+                        }
+                    } else if (endOfLine == EndOfLine.LF_TO_CRLF) {
+                        if (value == sourceLf && !lastWasCr) {
+                            pos = copy(table[sourceCr], dst, pos);
+                        }
+                        lastWasCr = value == sourceCr;
+                    }
+                }
+                byte[] entry = table[value];
+                if (entry.length == 1) {
+                    dst[pos++] = entry[0];
+                } else {
+                    pos = copy(entry, dst, pos);
+                }
+            }
+            out.writeBytes(dst, 0, pos);
+        }
+        if (last) {
+            if (pendingCr) {
+                out.writeBytes(table[sourceCr]);
+            }
+            reset();
+        }
+        return out;
+    }
+
+    private static final int copy(byte[] from, byte[] to, int pos) {
+        System.arraycopy(from, 0, to, pos, from.length);
+        return pos + from.length;
+    }
+
+    private ByteBuf transcodeCharset(ByteBufAllocator alloc, ByteBuf in, boolean last) {
+        ByteBuffer src;
+        if (pendingBytes != null && pendingBytes.hasRemaining()) {
+            src = ByteBuffer.allocate(pendingBytes.remaining() + in.readableBytes());
+            src.put(pendingBytes);
+            in.readBytes(src);
+            src.flip();
+        } else {
+            src = in.nioBuffer();
+            in.skipBytes(in.readableBytes());
+        }
+        pendingBytes = null;
+        ByteBuf out = alloc.directBuffer((int) (src.remaining() * decoder.averageCharsPerByte() *
+                encoder.averageBytesPerChar()) + 16);
+        CoderResult result;
+        do {
+            result = decoder.decode(src, chars, last);
+            if (last && result.isUnderflow()) {
+                decoder.flush(chars);
+            }
+            boolean end = last && result.isUnderflow();
+            chars.flip();
+            if (lines == null) {
+                encode(out, chars, end);
+                chars.compact();
+            } else {
+                convertLines(end);
+                chars.compact();
+                lines.flip();
+                encode(out, lines, end);
+                lines.compact();
+            }
+        } while (result.isOverflow());
+        if (src.hasRemaining()) {
+            // not decodable yet: wait for the rest of the character
+            pendingBytes = ByteBuffer.allocate(src.remaining());
+            pendingBytes.put(src);
+            pendingBytes.flip();
+        }
+        if (last) {
+            ByteBuffer dst;
+            do {
+                out.ensureWritable(16);
+                dst = out.nioBuffer(out.writerIndex(), out.writableBytes());
+                result = encoder.flush(dst);
+                out.writerIndex(out.writerIndex() + dst.position());
+            } while (result.isOverflow());
+            reset();
+        }
+        return out;
+    }
+
+    /**
+     * Convert end of lines from chars to lines
+     * 
+     * @param end
+     *            True if no more characters will come
+     */
+    private void convertLines(boolean end) {
+        while (chars.hasRemaining()) {
+            char value = chars.get();
+            if (endOfLine == EndOfLine.CRLF_TO_LF) {
+                if (pendingCr) {
+                    pendingCr = false;
+                    if (value != '\n') {
+                        lines.put('\r');
+                    }
+                }
+                if (value == '\r') {
+                    pendingCr = true;
+                    continue;
+                }
+            } else {
+                if (value == '\n' && !lastWasCr) {
+                    lines.put('\r');
+                }
+                lastWasCr = value == '\r';
+            }
+            lines.put(value);
+        }
+        if (end && pendingCr) {
+            pendingCr = false;
+            lines.put('\r');
+        }
+    }
+
+    /**
+     * Encode the characters into out, growing it if necessary
+     * 
+     * @param out
+     * @param from
+     * @param end
+     *            True if no more characters will come
+     */
+    private void encode(ByteBuf out, CharBuffer from, boolean end) {
+        CoderResult result;
+        do {
+            out.ensureWritable((int) (from.remaining() * encoder.averageBytesPerChar()) + 16);
+            ByteBuffer dst = out.nioBuffer(out.writerIndex(), out.writableBytes());
+            result = encoder.encode(from, dst, end);
+            out.writerIndex(out.writerIndex() + dst.position());
+        } while (result.isOverflow());
+    }
+}
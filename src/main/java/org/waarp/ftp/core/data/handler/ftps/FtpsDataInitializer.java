@@ -31,6 +31,7 @@ import org.waarp.ftp.core.data.handler.DataBusinessHandler;
 import org.waarp.ftp.core.data.handler.DataNetworkHandler;
 import org.waarp.ftp.core.data.handler.FtpDataModeCodec;
 import org.waarp.ftp.core.data.handler.FtpDataInitializer;
+import org.waarp.ftp.core.utils.FtpIdleHandler;
 
 /**
  * @author "Frederic Bregier"
@@ -58,11 +59,16 @@ public class FtpsDataInitializer extends FtpDataInitializer {
     @Override
     public void initChannel(SocketChannel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
+        setWriteBufferWaterMarks(ch);
         // SSL will be added in this handler during channelActive
         pipeline.addLast(new FtpsTemporaryFirstHandler(configuration, isActive));
+        if (configuration.getDataIdleTimeout() > 0) {
+            pipeline.addLast(FtpDataInitializer.IDLE, new FtpIdleHandler(configuration, null));
+        }
         // Add default codec but they will change during the channelActive
         pipeline.addLast(FtpDataInitializer.CODEC_MODE, new FtpDataModeCodec(TransferMode.STREAM,
-                TransferStructure.FILE));
+                TransferStructure.FILE, configuration.getFtpInternalConfiguration()
+                        .getGlobalMemory()));
         pipeline.addLast(FtpDataInitializer.CODEC_LIMIT, configuration
                 .getFtpInternalConfiguration()
                 .getGlobalTrafficShapingHandler());
@@ -73,8 +79,7 @@ public class FtpsDataInitializer extends FtpDataInitializer {
         if (limitChannel != null) {
             pipeline.addLast(FtpDataInitializer.CODEC_LIMIT + "CHANNEL", limitChannel);
         }
-        pipeline.addLast(FtpDataInitializer.CODEC_TYPE, ftpDataTypeCodec);
-        pipeline.addLast(FtpDataInitializer.CODEC_STRUCTURE, ftpDataStructureCodec);
+        addDefaultTypeStructureCodecs(pipeline);
         // and then business logic. New one on every connection
         DataBusinessHandler newbusiness = dataBusinessHandler.newInstance();
         DataNetworkHandler newNetworkHandler = new DataNetworkHandler(configuration, newbusiness, isActive);
@@ -17,12 +17,16 @@
  */
 package org.waarp.ftp.core.data.handler.ftps;
 
+import java.util.Arrays;
+
+import javax.net.ssl.SSLSession;
+
 import org.waarp.common.crypto.ssl.WaarpSslUtility;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.config.FtpConfiguration;
-import org.waarp.ftp.core.config.FtpInternalConfiguration;
 import org.waarp.ftp.core.control.ftps.FtpsInitializer;
+import org.waarp.ftp.core.data.FtpDataChannelPause;
 import org.waarp.ftp.core.session.FtpSession;
 import org.waarp.ftp.core.utils.FtpChannelUtils;
 
@@ -57,56 +61,62 @@ class FtpsTemporaryFirstHandler extends ChannelDuplexHandler {
 
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) throws Exception {
-        ctx.channel().config().setAutoRead(false);
+        FtpDataChannelPause.pause(ctx.channel(), FtpDataChannelPause.NO_TRANSFER);
         super.channelRegistered(ctx);
     }
 
-    protected void setSession(Channel channel) {
-        // First get the ftpSession from inetaddresses
-        for (int i = 0; i < FtpInternalConfiguration.RETRYNB; i++) {
-            session = configuration.getFtpSessionNoRemove(channel, active);
-            if (session == null) {
-                logger.warn("Session not found at try " + i);
-                try {
-                    Thread.sleep(FtpInternalConfiguration.RETRYINMS);
-                } catch (InterruptedException e1) {
-                    break;
-                }
-            } else {
-                break;
-            }
-        }
-        if (session == null) {
-            // Not found !!!
-            logger.error("Session not found!");
-            WaarpSslUtility.closingSslChannel(channel);
-            // Problem: control connection could not be directly informed!!!
-            // Only timeout will occur
-            return;
-        }
-    }
-
     private void superChannelActive(ChannelHandlerContext ctx) throws Exception {
         super.channelActive(ctx);
     }
 
     @Override
     public void channelActive(final ChannelHandlerContext ctx) throws Exception {
-        // Get the SslHandler in the current pipeline.
-        Channel channel = ctx.channel();
-
         if (session == null) {
-            setSession(channel);
+            // First get the ftpSession from inetaddresses, without blocking if not yet registered
+            final Future<FtpSession> future = configuration.getFtpSessionFuture(ctx.channel(),
+                    active, false);
+            if (!future.isDone()) {
+                future.addListener(new GenericFutureListener<Future<FtpSession>>() {
+                    public void operationComplete(final Future<FtpSession> future)
+                            throws Exception {
+                        ctx.executor().execute(new Runnable() {
+                            public void run() {
+                                session = future.getNow();
+                                startSsl(ctx);
+                            }
+                        });
+                    }
+                });
+                return;
+            }
+            session = future.getNow();
         }
+        startSsl(ctx);
+    }
+
+    /**
+     * Add the SslHandler once the session is known
+     * 
+     * @param ctx
+     */
+    private void startSsl(final ChannelHandlerContext ctx) {
+        // Get the SslHandler in the current pipeline.
+        Channel channel = ctx.channel();
         if (session == null) {
+            // Not found !!!
+            // Problem: control connection could not be directly informed!!!
+            // Only timeout will occur
             logger.error("Cannot find session for SSL");
+            WaarpSslUtility.closingSslChannel(channel);
+            return;
+        }
+        if (!channel.isActive()) {
             return;
         }
         // Server: no renegotiation still, but possible clientAuthent
         // Mode is always as SSL Server mode.
         SslHandler sslHandler =
-                FtpsInitializer.waarpSslContextFactory.initInitializer(true,
-                        FtpsInitializer.waarpSslContextFactory.needClientAuthentication(),
+                FtpsInitializer.newSslHandler(ctx.alloc(),
                         FtpChannelUtils.getRemoteInetSocketAddress(session.getControlChannel()).getAddress()
                                 .getHostAddress(),
                         FtpChannelUtils.getRemoteInetSocketAddress(session.getControlChannel()).getPort());
@@ -114,13 +124,21 @@ class FtpsTemporaryFirstHandler extends ChannelDuplexHandler {
         // Get the SslHandler and begin handshake ASAP.
         logger.debug("SSL found but need handshake: " + ctx.channel().toString());
         final FtpsTemporaryFirstHandler myself = this;
+        final SslHandler dataSslHandler = sslHandler;
+        final long handshakeStart = System.currentTimeMillis();
         WaarpSslUtility.addSslHandler(null, ctx.pipeline(), sslHandler,
                 new GenericFutureListener<Future<? super Channel>>() {
                     public void operationComplete(Future<? super Channel> future) throws Exception {
                         try {
                             logger.debug("Handshake: " + future.isSuccess() + ":" + ((Channel) future.get()).toString(),
                                     future.cause());
-                            if (future.isSuccess()) {
+                            if (future.isSuccess() && !checkSessionReuse(dataSslHandler, handshakeStart)) {
+                                logger.warn("Data connection refused since TLS session not resumed: "
+                                        + ctx.channel());
+                                session.getDataConn().getFtpTransferControl()
+                                        .setOpenedDataChannel(null, null);
+                                ctx.close();
+                            } else if (future.isSuccess()) {
                                 logger.debug("End of initialization of SSL and data channel");
                                 myself.superChannelActive(ctx);
                                 ctx.pipeline().remove(myself);
@@ -134,4 +152,30 @@ class FtpsTemporaryFirstHandler extends ChannelDuplexHandler {
                 });
     }
 
+    /**
+     * Count the handshake of this data connection as full or abbreviated, and check if a resumed
+     * session is required. For the counters, the handshake is abbreviated if the data connection
+     * reuses a session created before this handshake started (from the server session cache).
+     * When the reuse is required, only the TLS session of the control connection of this FTP
+     * session is accepted.
+     * 
+     * @param dataSslHandler
+     * @param handshakeStart
+     *            time in ms when the handshake started
+     * @return True if the data connection is accepted
+     */
+    private boolean checkSessionReuse(SslHandler dataSslHandler, long handshakeStart) {
+        SSLSession dataSslSession = dataSslHandler.engine().getSession();
+        SslHandler controlSslHandler = session.getControlChannel().pipeline()
+                .get(SslHandler.class);
+        boolean sameAsControl = controlSslHandler != null && Arrays.equals(dataSslSession.getId(),
+                controlSslHandler.engine().getSession().getId());
+        boolean resumed = sameAsControl || dataSslSession.getCreationTime() < handshakeStart;
+        boolean refused = !sameAsControl && configuration.isRequireSslSessionReuse();
+        configuration.getFtpInternalConfiguration().countDataSslHandshake(resumed, refused);
+        logger.debug("Data TLS handshake " + (resumed ? "resumed" : "full")
+                + (sameAsControl ? " from control session" : ""));
+        return !refused;
+    }
+
 }
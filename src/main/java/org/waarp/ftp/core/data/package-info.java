@@ -20,10 +20,13 @@
  * <li>It opens the data connection</li>. Two possibilities:<br>
  * 1) PASSIVE mode where the server waits for the client to initiate the real connection.<br>
  * 2) ACTIVE mode where the server will initiate the data connection.<br>
- * The DataNetworkHandler will inform back the FtpTransferControl that the connection is ready. Then
- * the FtpDataAsyncConn is also informed of this status.
+ * The command does not wait for the connection: the DataNetworkHandler will inform back the
+ * FtpTransferControl that the connection is ready. Then the FtpDataAsyncConn is also informed of
+ * this status.
  * <li>The transfer is initiated</li> by calling setNewFtpTransfer method of the FtpTransferControl
- * object. This starts a new thread (FtpTransferExecutor) to execute the transfer.<br>
+ * object. As soon as the connection is ready, this submits the transfer (FtpTransferExecutor) to
+ * the server wide FtpTransferScheduler. The final answer of the command is deferred until the end
+ * of the transfer.<br>
  * For STORE like operations, it waits for the end of the transfer from the data network handler
  * (when the last block is received or the data connection is over).<br>
  * For LIST like commands, it immediately sends the result as wanted.<br>
@@ -15,38 +15,30 @@
  * You should have received a copy of the GNU General Public License along with Waarp . If not, see
  * <http://www.gnu.org/licenses/>.
  */
-package org.waarp.ftp.core.control;
+package org.waarp.ftp.core.file;
 
-import java.nio.charset.Charset;
-
-import io.netty.handler.codec.string.StringDecoder;
+import java.io.Closeable;
+import java.io.IOException;
 
 /**
- * Exactly same as StringDecoder from Netty
+ * Incremental listing of a directory (LIST, NLST or MLSD): entries are produced while the directory
+ * is read, so they could be sent to the client without building the full listing in memory.
  * 
  * @author Frederic Bregier
  * 
  */
-class FtpControlStringDecoder extends StringDecoder {
-    /**
-	 *
-	 */
-    public FtpControlStringDecoder() {
-    }
-
+public interface FtpDirListing extends Closeable {
     /**
-     * @see StringDecoder
-     * @param arg0
+     * 
+     * @return the next entry (without end of line), or null if the listing is over
+     * @throws IOException
+     *             if the directory cannot be fully read (the listing is then incomplete)
      */
-    public FtpControlStringDecoder(String arg0) {
-        super(Charset.forName(arg0));
-    }
+    public String nextEntry() throws IOException;
 
     /**
-     * @see StringDecoder
-     * @param arg0
+     * Release the underlying resources. Must be called even if the listing is not fully read.
      */
-    public FtpControlStringDecoder(Charset arg0) {
-        super(arg0);
-    }
+    @Override
+    public void close();
 }
@@ -0,0 +1,82 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.file;
+
+import java.util.Iterator;
+import java.util.List;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+
+/**
+ * {@link FtpDirListing} on an already built list of entries
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpDirListingList implements FtpDirListing {
+    private final Iterator<String> iterator;
+
+    /**
+     * @param list
+     *            the entries (could be null)
+     */
+    public FtpDirListingList(List<String> list) {
+        if (list == null) {
+            iterator = null;
+        } else {
+            iterator = list.iterator();
+        }
+    }
+
+    /**
+     * Open a listing of the given path from the directory: incremental if the directory is a
+     * {@link FtpDirListingSource}, else built by {@link FtpDir#list(String)} or
+     * {@link FtpDir#listFull(String, boolean)}
+     * 
+     * @param dir
+     * @param path
+     * @param full
+     *            True for a full listing, False for names only
+     * @param lsFormat
+     *            True for ls format (LIST), False for MLSx format (MLSD), when full is True
+     * @return the listing, to be closed once used
+     * @throws CommandAbstractException
+     */
+    public static FtpDirListing openListing(FtpDir dir, String path, boolean full,
+            boolean lsFormat) throws CommandAbstractException {
+        if (dir instanceof FtpDirListingSource) {
+            return ((FtpDirListingSource) dir).openListing(path, full, lsFormat);
+        }
+        if (!full) {
+            return new FtpDirListingList(dir.list(path));
+        }
+        return new FtpDirListingList(dir.listFull(path, lsFormat));
+    }
+
+    @Override
+    public String nextEntry() {
+        if (iterator != null && iterator.hasNext()) {
+            return iterator.next();
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
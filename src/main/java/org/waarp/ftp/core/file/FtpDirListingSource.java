@@ -0,0 +1,49 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.file;
+
+import org.waarp.common.command.exception.CommandAbstractException;
+
+/**
+ * Optional interface of an {@link FtpDir} able to produce its listings incrementally. A
+ * directory not implementing it is listed through {@link FtpDir#list(String)} or
+ * {@link FtpDir#listFull(String, boolean)} (see
+ * {@link FtpDirListingList#openListing(FtpDir, String, boolean, boolean)}).
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public interface FtpDirListingSource {
+    /**
+     * Open an incremental listing of the given path, such that entries could be sent while the
+     * directory is still read. Errors on the path itself (not found, not allowed) are raised
+     * immediately.
+     * 
+     * @param path
+     *            as for {@link FtpDir#list(String)} or {@link FtpDir#listFull(String, boolean)}
+     * @param full
+     *            True for a full listing (as {@link FtpDir#listFull(String, boolean)}), False for
+     *            names only (as {@link FtpDir#list(String)})
+     * @param lsFormat
+     *            True for ls format (LIST), False for MLSx format (MLSD), when full is True
+     * @return the listing, to be closed once used
+     * @throws CommandAbstractException
+     */
+    public abstract FtpDirListing openListing(String path, boolean full, boolean lsFormat)
+            throws CommandAbstractException;
+}
@@ -268,6 +268,23 @@ public class FtpSession implements SessionInterface {
         this.isCurrentCommandFinished = true;
     }
 
+    /**
+     * Set back a command as the current one with its answer (used to write the final answer of a
+     * transfer command once it is over, while other commands could have run meanwhile)
+     * 
+     * @param command
+     * @param finished
+     * @param replyCode
+     * @param answer
+     */
+    public void setCurrentCommandAndAnswer(AbstractCommand command, boolean finished,
+            ReplyCode replyCode, String answer) {
+        currentCommand = command;
+        isCurrentCommandFinished = finished;
+        this.replyCode = replyCode;
+        this.answer = answer;
+    }
+
     /**
      * @return the answer
      */
@@ -446,6 +463,7 @@ public class FtpSession implements SessionInterface {
             getConfiguration().delFtpSession(remote, local);
         }
         getDataConn().setMode(FtpArgumentCode.TransferMode.STREAM);
+        getDataConn().setZlibLevel(FtpDataAsyncConn.DEFAULT_ZLIB_LEVEL);
         getDataConn().setStructure(FtpArgumentCode.TransferStructure.FILE);
         getDataConn().setType(FtpArgumentCode.TransferType.ASCII);
         getDataConn().setSubType(TransferSubType.NONPRINT);
@@ -453,7 +471,8 @@ public class FtpSession implements SessionInterface {
     }
 
     /**
-     * Try to open a connection. Do the intermediate reply if any (150) and the final one (125)
+     * Try to open a connection. Do the intermediate reply if any (150) and the final one (125).
+     * The connection itself is done asynchronously, the transfer starting once it is ready.
      * 
      * @throws Reply425Exception
      *             if the connection cannot be opened
@@ -20,18 +20,28 @@ package org.waarp.ftp.core.session;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import io.netty.channel.Channel;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
-import org.waarp.ftp.core.utils.FtpChannelUtils;
 
 /**
  * Class that allows to retrieve a session when a connection occurs on the Data network based on the {@link InetAddress} of the
  * remote client and the {@link InetSocketAddress} of the server for
  * Passive and reverse for Active connections. This is particularly useful for Passive mode
  * connection since there is no way to pass the session to the connected channel without this
- * reference.
+ * reference.<br>
+ * <br>
+ * Sessions are indexed by the {@link InetSocketAddress} taken as is from the channel, such that a
+ * lookup does not allocate anything. If a data connection arrives before its session is
+ * registered, the lookup is kept as pending and completed by the registration (or by a timeout),
+ * without blocking any thread.
  * 
  * @author Frederic Bregier
  * 
@@ -44,78 +54,67 @@ public class FtpSessionReference {
             .getLogger(FtpSessionReference.class);
 
     /**
-     * Index of FtpSession References
+     * One registered session (immutable, chained for the same InetSocketAddress)
      * 
      * @author Frederic Bregier
      * 
      */
-    public static class P2PAddress {
-        /**
-         * Remote Inet Address (no port)
-         */
-        public InetAddress ipOnly;
-
-        /**
-         * Local Inet Socket Address (with port)
-         */
-        public InetSocketAddress fullIp;
-
-        /**
-         * Constructor from Channel
-         * 
-         * @param channel
-         */
-        public P2PAddress(Channel channel) {
-            ipOnly = FtpChannelUtils.getRemoteInetAddress(channel);
-            fullIp = (InetSocketAddress) channel.localAddress();
-        }
-
-        /**
-         * Constructor from addresses
-         * 
-         * @param address
-         * @param inetSocketAddress
-         */
-        public P2PAddress(InetAddress address,
-                InetSocketAddress inetSocketAddress) {
-            ipOnly = address;
-            fullIp = inetSocketAddress;
-        }
-
-        /**
-         * 
-         * @return True if the P2Paddress is valid
-         */
-        public boolean isValid() {
-            return ipOnly != null && fullIp != null;
-        }
-
-        @Override
-        public boolean equals(Object arg0) {
-            if (arg0 == null) {
-                return false;
-            }
-            if (arg0 instanceof P2PAddress) {
-                P2PAddress p2paddress = (P2PAddress) arg0;
-                if (p2paddress.isValid() && isValid()) {
-                    return p2paddress.fullIp.equals(fullIp) &&
-                            p2paddress.ipOnly.equals(ipOnly);
-                }
-            }
-            return false;
-        }
+    private static final class Registration {
+        private final InetAddress ipOnly;
 
-        @Override
-        public int hashCode() {
-            return fullIp.hashCode() + ipOnly.hashCode();
+        private final FtpSession session;
+
+        private final Registration next;
+
+        private Registration(InetAddress ipOnly, FtpSession session, Registration next) {
+            this.ipOnly = ipOnly;
+            this.session = session;
+            this.next = next;
         }
+    }
 
+    /**
+     * One data connection waiting for its session
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private static final class PendingLookup {
+        private final InetAddress ipOnly;
+
+        private final boolean remove;
+
+        private final Promise<FtpSession> promise;
+
+        private ScheduledFuture<?> timeout;
+
+        private PendingLookup(InetAddress ipOnly, boolean remove, Promise<FtpSession> promise) {
+            this.ipOnly = ipOnly;
+            this.remove = remove;
+            this.promise = promise;
+        }
     }
 
     /**
      * Reference of FtpSession from InetSocketAddress
      */
-    private final ConcurrentHashMap<P2PAddress, FtpSession> hashMap = new ConcurrentHashMap<P2PAddress, FtpSession>();
+    private final ConcurrentHashMap<InetSocketAddress, Registration> hashMap = new ConcurrentHashMap<InetSocketAddress, Registration>();
+
+    /**
+     * Data connections arrived before their session was registered
+     */
+    private final ConcurrentHashMap<InetSocketAddress, PendingLookup> pendings = new ConcurrentHashMap<InetSocketAddress, PendingLookup>();
+
+    /**
+     * Counters
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong lateHits = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
 
     /**
      * Constructor
@@ -124,6 +123,63 @@ public class FtpSessionReference {
     public FtpSessionReference() {
     }
 
+    private static Registration find(Registration head, InetAddress ipOnly) {
+        Registration registration = head;
+        while (registration != null) {
+            if (registration.ipOnly.equals(ipOnly)) {
+                return registration;
+            }
+            registration = registration.next;
+        }
+        return null;
+    }
+
+    private static Registration without(Registration head, Registration removed) {
+        if (head == null || removed == null) {
+            return head;
+        }
+        if (head == removed) {
+            return head.next;
+        }
+        return new Registration(head.ipOnly, head.session, without(head.next, removed));
+    }
+
+    private void put(InetAddress ipOnly, InetSocketAddress fullIp, FtpSession session) {
+        while (true) {
+            Registration head = hashMap.get(fullIp);
+            Registration registration = new Registration(ipOnly, session,
+                    without(head, find(head, ipOnly)));
+            if (head == null) {
+                if (hashMap.putIfAbsent(fullIp, registration) == null) {
+                    return;
+                }
+            } else if (hashMap.replace(fullIp, head, registration)) {
+                return;
+            }
+        }
+    }
+
+    private FtpSession get(InetAddress ipOnly, InetSocketAddress fullIp, boolean remove) {
+        while (true) {
+            Registration head = hashMap.get(fullIp);
+            Registration registration = find(head, ipOnly);
+            if (registration == null) {
+                return null;
+            }
+            if (!remove) {
+                return registration.session;
+            }
+            Registration newHead = without(head, registration);
+            if (newHead == null) {
+                if (hashMap.remove(fullIp, head)) {
+                    return registration.session;
+                }
+            } else if (hashMap.replace(fullIp, head, newHead)) {
+                return registration.session;
+            }
+        }
+    }
+
     /**
      * Add a session from a couple of addresses
      * 
@@ -133,14 +189,51 @@ public class FtpSessionReference {
      */
     public void setNewFtpSession(InetAddress ipOnly, InetSocketAddress fullIp,
             FtpSession session) {
-        P2PAddress pAddress = new P2PAddress(ipOnly, fullIp);
-        if (!pAddress.isValid()) {
+        if (ipOnly == null || fullIp == null) {
             logger.error("Couple invalid in setNewFtpSession: " + ipOnly +
                     " : " + fullIp);
             return;
         }
-        hashMap.put(pAddress, session);
+        put(ipOnly, fullIp, session);
         // logger.debug("Add: {} {}", ipOnly, fullIp);
+        PendingLookup pending = pendings.get(fullIp);
+        if (pending != null && pending.ipOnly.equals(ipOnly)) {
+            complete(fullIp, pending, false);
+        }
+    }
+
+    /**
+     * Complete a pending lookup if still pending and session is found
+     * 
+     * @param fullIp
+     * @param pending
+     * @param timedOut
+     *            True if the pending lookup is over anyway
+     * @return True if completed by this call
+     */
+    private boolean complete(InetSocketAddress fullIp, PendingLookup pending, boolean timedOut) {
+        FtpSession session = get(pending.ipOnly, fullIp, false);
+        if (session == null && !timedOut) {
+            return false;
+        }
+        if (!pendings.remove(fullIp, pending)) {
+            // already completed
+            return false;
+        }
+        if (pending.timeout != null) {
+            pending.timeout.cancel(false);
+        }
+        if (session != null && pending.remove) {
+            session = get(pending.ipOnly, fullIp, true);
+        }
+        if (session == null) {
+            failures.incrementAndGet();
+            logger.warn("Session not found for data connection from " + pending.ipOnly + " to " + fullIp);
+        } else {
+            lateHits.incrementAndGet();
+        }
+        pending.promise.trySuccess(session);
+        return true;
     }
 
     /**
@@ -151,20 +244,15 @@ public class FtpSessionReference {
      */
     public FtpSession getActiveFtpSession(Channel channel, boolean remove) {
         // First check Active connection
-        P2PAddress pAddress = new P2PAddress(((InetSocketAddress) channel
-                .localAddress()).getAddress(), (InetSocketAddress) channel
-                .remoteAddress());
-        if (!pAddress.isValid()) {
+        InetSocketAddress local = (InetSocketAddress) channel.localAddress();
+        InetSocketAddress remote = (InetSocketAddress) channel.remoteAddress();
+        if (local == null || remote == null) {
             logger.error("Couple invalid in getActiveFtpSession: " + channel +
                     channel.localAddress() + channel.remoteAddress());
             return null;
         }
         // logger.debug("Get: {} {}", pAddress.ipOnly, pAddress.fullIp);
-        if (remove) {
-            return hashMap.remove(pAddress);
-        } else {
-            return hashMap.get(pAddress);
-        }
+        return get(local.getAddress(), remote, remove);
     }
 
     /**
@@ -175,17 +263,59 @@ public class FtpSessionReference {
      */
     public FtpSession getPassiveFtpSession(Channel channel, boolean remove) {
         // First check passive connection
-        P2PAddress pAddress = new P2PAddress(channel);
-        if (!pAddress.isValid()) {
+        InetSocketAddress local = (InetSocketAddress) channel.localAddress();
+        InetSocketAddress remote = (InetSocketAddress) channel.remoteAddress();
+        if (local == null || remote == null) {
             logger.error("Couple invalid in getPassiveFtpSession: " + channel);
             return null;
         }
         // logger.debug("Get: {} {}", pAddress.ipOnly, pAddress.fullIp);
-        if (remove) {
-            return hashMap.remove(pAddress);
-        } else {
-            return hashMap.get(pAddress);
+        return get(remote.getAddress(), local, remove);
+    }
+
+    /**
+     * Return (and remove if asked) the FtpSession associated with this data channel. If the session
+     * is not yet registered, the returned future is completed once it is, or with null after the
+     * timeout. No thread is blocked meanwhile.
+     * 
+     * @param channel
+     * @param active
+     * @param remove
+     * @param timeout
+     *            in ms
+     * @return the future of the FtpSession (null as result if not found)
+     */
+    public Future<FtpSession> getFtpSessionFuture(Channel channel, boolean active,
+            boolean remove, long timeout) {
+        FtpSession session = active ? getActiveFtpSession(channel, remove) :
+                getPassiveFtpSession(channel, remove);
+        if (session != null) {
+            hits.incrementAndGet();
+            return channel.eventLoop().newSucceededFuture(session);
         }
+        InetSocketAddress local = (InetSocketAddress) channel.localAddress();
+        InetSocketAddress remote = (InetSocketAddress) channel.remoteAddress();
+        if (local == null || remote == null) {
+            failures.incrementAndGet();
+            return channel.eventLoop().newSucceededFuture(null);
+        }
+        misses.incrementAndGet();
+        final InetSocketAddress fullIp = active ? remote : local;
+        final PendingLookup pending = new PendingLookup(active ? local.getAddress() :
+                remote.getAddress(), remove, channel.eventLoop().<FtpSession> newPromise());
+        PendingLookup previous = pendings.put(fullIp, pending);
+        if (previous != null) {
+            // same couple of addresses: the previous one will never be served
+            complete(fullIp, previous, true);
+        }
+        pending.timeout = channel.eventLoop().schedule(new Runnable() {
+            public void run() {
+                complete(fullIp, pending, true);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+        // registration could have occurred meanwhile
+        complete(fullIp, pending, false);
+        return pending.promise;
     }
 
     /**
@@ -195,14 +325,13 @@ public class FtpSessionReference {
      * @param fullIp
      */
     public void delFtpSession(InetAddress ipOnly, InetSocketAddress fullIp) {
-        P2PAddress pAddress = new P2PAddress(ipOnly, fullIp);
-        if (!pAddress.isValid()) {
+        if (ipOnly == null || fullIp == null) {
             logger.error("Couple invalid in delFtpSession: " + ipOnly + " : " +
                     fullIp);
             return;
         }
         // logger.debug("Del: {} {}", pAddress.ipOnly, pAddress.fullIp);
-        hashMap.remove(pAddress);
+        get(ipOnly, fullIp, true);
     }
 
     /**
@@ -213,14 +342,13 @@ public class FtpSessionReference {
      * @return True if already presents
      */
     public boolean contains(InetAddress ipOnly, InetSocketAddress fullIp) {
-        P2PAddress pAddress = new P2PAddress(ipOnly, fullIp);
-        if (!pAddress.isValid()) {
+        if (ipOnly == null || fullIp == null) {
             logger.error("Couple invalid in contains: " + ipOnly + " : " +
                     fullIp);
             return false;
         }
         // logger.debug("Contains: {} {}", pAddress.ipOnly, pAddress.fullIp);
-        return hashMap.containsKey(pAddress);
+        return get(ipOnly, fullIp, false) != null;
     }
 
     /**
@@ -228,6 +356,23 @@ public class FtpSessionReference {
      * @return the number of active sessions
      */
     public int sessionsNumber() {
-        return hashMap.size();
+        int number = 0;
+        for (Registration registration : hashMap.values()) {
+            while (registration != null) {
+                number++;
+                registration = registration.next;
+            }
+        }
+        return number;
+    }
+
+    /**
+     * 
+     * @return a short status of the data connection lookups
+     */
+    public String getStatus() {
+        return "Data connection lookups: " + hits.get() + " found, " + misses.get() +
+                " not yet registered (" + lateHits.get() + " found later, " + failures.get() +
+                " not found), " + pendings.size() + " pending";
     }
 }
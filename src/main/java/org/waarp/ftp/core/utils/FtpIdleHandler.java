@@ -0,0 +1,243 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.session.FtpSession;
+
+/**
+ * Idle detection for Control and Data connections, driven by the server wide
+ * {@link org.waarp.ftp.core.config.FtpInternalConfiguration#getIdleTimer()} such that no
+ * scheduling is done per read or write: only the time of the last activity is recorded, and the
+ * timer checks it once per period.<br>
+ * <br>
+ * When the connection is idle for longer than its timeout, an
+ * {@link IdleStateEvent#ALL_IDLE_STATE_EVENT} is fired to the next handlers, the
+ * {@link org.waarp.ftp.core.control.NetworkHandler} answering 421 before closing the control
+ * connection and the {@link org.waarp.ftp.core.data.handler.DataNetworkHandler} closing the data
+ * connection.<br>
+ * <br>
+ * The timeout for a control connection is the login one until the user is identified, then the
+ * control one; a control connection is never considered as idle while a transfer is running.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpIdleHandler extends ChannelDuplexHandler implements TimerTask {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpIdleHandler.class);
+
+    /**
+     * Configuration
+     */
+    private final FtpConfiguration configuration;
+
+    /**
+     * Control session (null for Data connection)
+     */
+    private final FtpSession session;
+
+    /**
+     * Timer
+     */
+    private final Timer timer;
+
+    /**
+     * Time of last activity in ns
+     */
+    private volatile long lastActivity = System.nanoTime();
+
+    /**
+     * Current timeout
+     */
+    private volatile Timeout timeout = null;
+
+    /**
+     * ChannelHandlerContext of this handler
+     */
+    private volatile ChannelHandlerContext ctx = null;
+
+    /**
+     * Has the idle event already been fired
+     */
+    private volatile boolean fired = false;
+
+    /**
+     * 
+     * @param configuration
+     * @param session
+     *            the control session, or null for a data connection
+     */
+    public FtpIdleHandler(FtpConfiguration configuration, FtpSession session) {
+        this.configuration = configuration;
+        this.session = session;
+        this.timer = configuration.getFtpInternalConfiguration().getIdleTimer();
+    }
+
+    /**
+     * 
+     * @return the current idle timeout in ms (0 meaning no timeout)
+     */
+    protected long getIdleTimeout() {
+        if (session == null) {
+            return configuration.getDataIdleTimeout();
+        }
+        if (session.getAuth() == null || !session.getAuth().isIdentified()) {
+            return configuration.getLoginIdleTimeout();
+        }
+        return configuration.getControlIdleTimeout();
+    }
+
+    /**
+     * 
+     * @return True if a transfer is running for the control session
+     */
+    private boolean isTransferRunning() {
+        return session != null && session.getDataConn() != null &&
+                session.getDataConn().getFtpTransferControl() != null &&
+                session.getDataConn().getFtpTransferControl().isFtpTransferExecuting();
+    }
+
+    /**
+     * Schedule the next check
+     * 
+     * @param delay
+     *            in ms
+     */
+    private void schedule(long delay) {
+        if (ctx == null || !ctx.channel().isActive()) {
+            return;
+        }
+        timeout = timer.newTimeout(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start the check with the minimal timeout such that a later change of timeout (login then
+     * control) is taken into account
+     */
+    private void initialize(ChannelHandlerContext ctx) {
+        if (this.ctx != null) {
+            return;
+        }
+        this.ctx = ctx;
+        lastActivity = System.nanoTime();
+        long delay = getIdleTimeout();
+        if (delay > 0) {
+            schedule(delay);
+        } else if (session != null) {
+            // control timeout could still be set after login
+            long control = configuration.getControlIdleTimeout();
+            if (control > 0) {
+                schedule(control);
+            }
+        }
+    }
+
+    /**
+     * Stop the check
+     */
+    private void destroy() {
+        Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+            timeout = null;
+        }
+    }
+
+    public void run(Timeout timeout) throws Exception {
+        if (timeout.isCancelled() || fired || !ctx.channel().isActive()) {
+            return;
+        }
+        long idleTimeout = getIdleTimeout();
+        if (idleTimeout <= 0) {
+            if (session != null) {
+                // might change after login
+                long control = configuration.getControlIdleTimeout();
+                if (control > 0) {
+                    schedule(control);
+                }
+            }
+            return;
+        }
+        if (isTransferRunning()) {
+            lastActivity = System.nanoTime();
+            schedule(idleTimeout);
+            return;
+        }
+        long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivity);
+        if (idle < idleTimeout) {
+            schedule(idleTimeout - idle);
+            return;
+        }
+        fired = true;
+        logger.info("Idle connection since {} ms, closing: {}", idle, ctx.channel());
+        ctx.fireUserEventTriggered(IdleStateEvent.ALL_IDLE_STATE_EVENT);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isActive() && ctx.channel().isRegistered()) {
+            initialize(ctx);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        destroy();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        initialize(ctx);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        destroy();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastActivity = System.nanoTime();
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise)
+            throws Exception {
+        lastActivity = System.nanoTime();
+        ctx.write(msg, promise);
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.core.utils;
+
+import java.net.SocketAddress;
+import java.util.concurrent.ThreadFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.utility.WaarpNettyUtil;
+
+/**
+ * Selector of the Netty transport used by the server: the native epoll transport on Linux when
+ * available (edge-triggered, with SO_REUSEPORT such that several acceptor channels, each one on
+ * its own boss thread, listen to the same port), or the NIO transport elsewhere.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FtpNettyTransport {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FtpNettyTransport.class);
+
+    /**
+     * Transport asked by the configuration
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    public static enum Transport {
+        /**
+         * epoll when available, else NIO
+         */
+        AUTO,
+        /**
+         * Java NIO
+         */
+        NIO,
+        /**
+         * Native epoll (Linux only), NIO being used if not available
+         */
+        EPOLL;
+
+        /**
+         * 
+         * @param name
+         * @return the Transport associated with this name (AUTO if unknown)
+         */
+        public static Transport getTransport(String name) {
+            if (name == null) {
+                return AUTO;
+            }
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown transport {}, AUTO used instead", name);
+                return AUTO;
+            }
+        }
+    }
+
+    /**
+     * True if epoll is used
+     */
+    private final boolean epoll;
+
+    /**
+     * Number of acceptor channels binded on one listening address
+     */
+    private final int acceptors;
+
+    /**
+     * @param transport
+     *            the asked transport
+     * @param acceptors
+     *            the number of acceptor channels binded on each listening address when epoll
+     *            is used (always 1 with NIO)
+     */
+    public FtpNettyTransport(Transport transport, int acceptors) {
+        boolean useEpoll = false;
+        if (transport != Transport.NIO) {
+            useEpoll = isEpollAvailable();
+            if (!useEpoll && transport == Transport.EPOLL) {
+                logger.warn("Native epoll transport is not available, NIO used instead");
+            }
+        }
+        epoll = useEpoll;
+        this.acceptors = epoll && acceptors > 1 ? acceptors : 1;
+        logger.info("Transport used: " + (epoll ? "epoll" : "nio") + " with " + this.acceptors
+                + " acceptor(s) by listening address");
+    }
+
+    /**
+     * 
+     * @return True if the native epoll transport can be used
+     */
+    public static boolean isEpollAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (Throwable e) {
+            // classes or native library not present
+            return false;
+        }
+    }
+
+    /**
+     * 
+     * @return True if the native epoll transport is used
+     */
+    public boolean isEpoll() {
+        return epoll;
+    }
+
+    /**
+     * 
+     * @return the number of acceptor channels binded on each listening address
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * 
+     * @param nbThreads
+     * @param threadFactory
+     * @return a new EventLoopGroup for this transport
+     */
+    public EventLoopGroup newEventLoopGroup(int nbThreads, ThreadFactory threadFactory) {
+        if (epoll) {
+            return new EpollEventLoopGroup(nbThreads, threadFactory);
+        }
+        return new NioEventLoopGroup(nbThreads, threadFactory);
+    }
+
+    /**
+     * Set the ServerBootstrap for this transport
+     * 
+     * @param bootstrap
+     * @param parentGroup
+     *            the boss group (created by {@link #newEventLoopGroup(int, ThreadFactory)})
+     * @param childGroup
+     *            the worker group (created by {@link #newEventLoopGroup(int, ThreadFactory)})
+     * @param timeout
+     */
+    public void setServerBootstrap(ServerBootstrap bootstrap, EventLoopGroup parentGroup,
+            EventLoopGroup childGroup, int timeout) {
+        if (!epoll) {
+            WaarpNettyUtil.setServerBootstrap(bootstrap, parentGroup, childGroup, timeout);
+            return;
+        }
+        bootstrap.channel(EpollServerSocketChannel.class);
+        bootstrap.group(parentGroup, childGroup);
+        bootstrap.option(ChannelOption.SO_REUSEADDR, true);
+        bootstrap.option(EpollChannelOption.SO_REUSEPORT, acceptors > 1);
+        bootstrap.childOption(ChannelOption.TCP_NODELAY, true);
+        bootstrap.childOption(ChannelOption.SO_REUSEADDR, true);
+        bootstrap.childOption(ChannelOption.SO_KEEPALIVE, true);
+        bootstrap.childOption(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout);
+        bootstrap.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * Set the Bootstrap (active connections) for this transport
+     * 
+     * @param bootstrap
+     * @param group
+     *            the worker group (created by {@link #newEventLoopGroup(int, ThreadFactory)})
+     * @param timeout
+     */
+    public void setBootstrap(Bootstrap bootstrap, EventLoopGroup group, int timeout) {
+        if (!epoll) {
+            WaarpNettyUtil.setBootstrap(bootstrap, group, timeout);
+            return;
+        }
+        bootstrap.channel(EpollSocketChannel.class);
+        bootstrap.group(group);
+        bootstrap.option(ChannelOption.TCP_NODELAY, true);
+        bootstrap.option(ChannelOption.SO_REUSEADDR, true);
+        bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
+        bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout);
+        bootstrap.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
+    }
+
+    /**
+     * Bind the acceptor channels on the given address: only one with NIO, several with epoll,
+     * each one being registered on the next boss thread.
+     * 
+     * @param bootstrap
+     *            set by {@link #setServerBootstrap}
+     * @param address
+     * @return the futures of all binds
+     */
+    public ChannelFuture[] bind(ServerBootstrap bootstrap, SocketAddress address) {
+        ChannelFuture[] futures = new ChannelFuture[acceptors];
+        for (int i = 0; i < acceptors; i++) {
+            futures[i] = bootstrap.bind(address);
+        }
+        return futures;
+    }
+}
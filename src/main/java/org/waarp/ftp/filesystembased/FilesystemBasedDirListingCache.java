@@ -0,0 +1,445 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.filesystembased;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
+
+/**
+ * Server wide cache of directory listings (LIST and MLSD), in order to avoid to read again all
+ * entries of directories polled by clients.<br>
+ * <br>
+ * Listings are kept by absolute directory path and format (with the MLSx facts), bounded by a
+ * total number of entries and of bytes, the least recently used ones being evicted first. A listing is invalidated:<br>
+ * - when the WatchService reports any change in its directory,<br>
+ * - when the server itself changes the directory (STOR, DELE, RNTO, MKD, RMD),<br>
+ * - when the modification time of the directory is not the one seen when it was read.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class FilesystemBasedDirListingCache implements Runnable {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FilesystemBasedDirListingCache.class);
+
+    /**
+     * One cached listing
+     */
+    private static class CachedListing {
+        private final String dir;
+
+        private final long lastModified;
+
+        private final List<String> entries;
+
+        private final long bytes;
+
+        private CachedListing(String dir, long lastModified, List<String> entries) {
+            this.dir = dir;
+            this.lastModified = lastModified;
+            this.entries = entries;
+            long size = 0;
+            for (String entry : entries) {
+                size += entry.length() * 2 + 40;
+            }
+            this.bytes = size;
+        }
+    }
+
+    /**
+     * One directory being read or having cached listings
+     */
+    private static class WatchedDir {
+        /**
+         * Watch key of this directory if any
+         */
+        private WatchKey watchKey = null;
+
+        /**
+         * Number of readers prepared (not yet put or cancelled) plus cached listings: the
+         * directory is watched as long as it is used
+         */
+        private int users = 0;
+
+        /**
+         * Number of cached listings of this directory
+         */
+        private int cached = 0;
+
+        /**
+         * Incremented on each invalidation of this directory: a listing read while an
+         * invalidation occurred is not kept
+         */
+        private long generation = 0;
+    }
+
+    private final int maxEntries;
+
+    private final long maxBytes;
+
+    /**
+     * Listings in access order (LRU)
+     */
+    private final LinkedHashMap<String, CachedListing> listings = new LinkedHashMap<String, CachedListing>(
+            64, 0.75f, true);
+
+    /**
+     * Directories being read or having cached listings
+     */
+    private final Map<String, WatchedDir> watchedDirs = new HashMap<String, WatchedDir>();
+
+    private final WatchService watchService;
+
+    private final Thread watcher;
+
+    private int currentEntries = 0;
+
+    private long currentBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param maxEntries
+     *            maximum number of entries (lines) kept for all directories
+     * @param maxBytes
+     *            maximum size (estimated) kept for all directories, no limit if 0 or less
+     */
+    public FilesystemBasedDirListingCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes <= 0 ? Long.MAX_VALUE : maxBytes;
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            logger.warn("No WatchService available, listing cache only relies on modification times: "
+                    + e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            logger.warn("No WatchService available, listing cache only relies on modification times: "
+                    + e.getMessage());
+        }
+        watchService = service;
+        if (watchService != null) {
+            watcher = new Thread(this, "ListingCacheWatcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } else {
+            watcher = null;
+        }
+    }
+
+    /**
+     * 
+     * @param dir
+     * @param lsFormat
+     * @param listAllFiles
+     * @param facts
+     *            the MLSx facts of the session (ignored for LIST)
+     * @return the key for this listing
+     */
+    public static String getKey(File dir, boolean lsFormat, boolean listAllFiles, String facts) {
+        return dir.getAbsolutePath() + (lsFormat ? "\nL" : "\nM" + facts) +
+                (listAllFiles ? "\nA" : "");
+    }
+
+    /**
+     * 
+     * @param dir
+     * @param key
+     * @return the cached listing or null if none or not valid anymore
+     */
+    public List<String> get(File dir, String key) {
+        long lastModified = dir.lastModified();
+        synchronized (this) {
+            CachedListing listing = listings.get(key);
+            if (listing != null) {
+                if (listing.lastModified == lastModified) {
+                    hits.incrementAndGet();
+                    return listing.entries;
+                }
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * To be called before reading a directory which will be put in cache, followed by one call to
+     * {@link #put(File, String, long, long, List)} or {@link #cancel(File)}
+     * 
+     * @param dir
+     * @return the generation to give to {@link #put(File, String, long, long, List)}
+     */
+    public synchronized long prepare(File dir) {
+        String path = dir.getAbsolutePath();
+        WatchedDir watchedDir = watchedDirs.get(path);
+        if (watchedDir == null) {
+            watchedDir = new WatchedDir();
+            watchedDirs.put(path, watchedDir);
+        }
+        watchedDir.users++;
+        if (watchService != null && watchedDir.watchKey == null && !closed) {
+            try {
+                watchedDir.watchKey = dir.toPath().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+            } catch (IOException e) {
+                logger.debug("Cannot watch {}: {}", path, e.getMessage());
+            } catch (ClosedWatchServiceException e) {
+                // closing
+            }
+        }
+        return watchedDir.generation;
+    }
+
+    /**
+     * Keep a listing, unless its directory was invalidated since {@link #prepare(File)}
+     * 
+     * @param dir
+     * @param key
+     * @param lastModified
+     *            modification time of the directory before it was read
+     * @param prepared
+     *            the generation returned by {@link #prepare(File)}
+     * @param entries
+     */
+    public synchronized void put(File dir, String key, long lastModified, long prepared,
+            List<String> entries) {
+        String path = dir.getAbsolutePath();
+        WatchedDir watchedDir = watchedDirs.get(path);
+        if (watchedDir == null) {
+            // cleared meanwhile
+            return;
+        }
+        if (closed || watchedDir.generation != prepared || entries.size() > maxEntries ||
+                (watchService != null && watchedDir.watchKey == null)) {
+            release(path, watchedDir);
+            return;
+        }
+        CachedListing listing = new CachedListing(path, lastModified, entries);
+        if (listing.bytes > maxBytes) {
+            release(path, watchedDir);
+            return;
+        }
+        remove(key);
+        // the reader becomes the cached listing as user of the directory
+        listings.put(key, listing);
+        watchedDir.cached++;
+        currentEntries += entries.size();
+        currentBytes += listing.bytes;
+        // never get() while iterating: the map is access ordered
+        Iterator<Map.Entry<String, CachedListing>> iterator = listings.entrySet().iterator();
+        while ((currentEntries > maxEntries || currentBytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<String, CachedListing> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                continue;
+            }
+            CachedListing evicted = eldest.getValue();
+            iterator.remove();
+            removed(evicted);
+        }
+    }
+
+    /**
+     * Give up a prepared directory which will not be put in cache
+     * 
+     * @param dir
+     */
+    public synchronized void cancel(File dir) {
+        String path = dir.getAbsolutePath();
+        WatchedDir watchedDir = watchedDirs.get(path);
+        if (watchedDir != null) {
+            release(path, watchedDir);
+        }
+    }
+
+    /**
+     * Invalidate the listings of the directory
+     * 
+     * @param dir
+     */
+    public void invalidate(File dir) {
+        if (dir == null) {
+            return;
+        }
+        invalidate(dir.getAbsolutePath());
+    }
+
+    private synchronized void invalidate(String path) {
+        WatchedDir watchedDir = watchedDirs.get(path);
+        if (watchedDir == null) {
+            // neither read nor cached
+            return;
+        }
+        watchedDir.generation++;
+        if (watchedDir.cached > 0) {
+            Iterator<CachedListing> iterator = listings.values().iterator();
+            while (iterator.hasNext()) {
+                CachedListing listing = iterator.next();
+                if (listing.dir.equals(path)) {
+                    iterator.remove();
+                    removed(listing);
+                }
+            }
+        }
+    }
+
+    private void remove(String key) {
+        CachedListing listing = listings.remove(key);
+        if (listing != null) {
+            removed(listing);
+        }
+    }
+
+    /**
+     * Update counters once a listing is removed
+     * 
+     * @param listing
+     */
+    private void removed(CachedListing listing) {
+        currentEntries -= listing.entries.size();
+        currentBytes -= listing.bytes;
+        WatchedDir watchedDir = watchedDirs.get(listing.dir);
+        if (watchedDir != null) {
+            watchedDir.cached--;
+            release(listing.dir, watchedDir);
+        }
+    }
+
+    /**
+     * One user less for this directory: stop watching it if it was the last one
+     * 
+     * @param path
+     * @param watchedDir
+     */
+    private void release(String path, WatchedDir watchedDir) {
+        watchedDir.users--;
+        if (watchedDir.users <= 0) {
+            watchedDirs.remove(path);
+            if (watchedDir.watchKey != null) {
+                watchedDir.watchKey.cancel();
+            }
+        }
+    }
+
+    /**
+     * Watcher loop
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+            // Any event (including overflow) invalidates the directory
+            key.pollEvents();
+            Path dir = (Path) key.watchable();
+            String path = dir.toFile().getAbsolutePath();
+            invalidate(path);
+            if (!key.reset()) {
+                synchronized (this) {
+                    WatchedDir watchedDir = watchedDirs.get(path);
+                    if (watchedDir != null && watchedDir.watchKey == key) {
+                        // no more watched: next listings will not be kept
+                        watchedDir.watchKey = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop watching and clear the cache
+     */
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            listings.clear();
+            watchedDirs.clear();
+            currentEntries = 0;
+            currentBytes = 0;
+        }
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+    }
+
+    /**
+     * @return the maximum number of entries kept for all directories
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @return the number of listings served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of listings read from the filesystem
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return a short status of the cache
+     */
+    public synchronized String getStatus() {
+        return "Listing cache: " + listings.size() + " directories, " + currentEntries +
+                " entries, " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+}
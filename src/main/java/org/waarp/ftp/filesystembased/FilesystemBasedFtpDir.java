@@ -17,10 +17,26 @@
  */
 package org.waarp.ftp.filesystembased;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 import org.waarp.common.command.exception.CommandAbstractException;
+import org.waarp.common.command.exception.Reply550Exception;
 import org.waarp.common.file.filesystembased.FilesystemBasedDirImpl;
 import org.waarp.common.file.filesystembased.FilesystemBasedOptsMLSxImpl;
+import org.waarp.common.logging.WaarpLogger;
+import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.file.FtpDir;
+import org.waarp.ftp.core.file.FtpDirListing;
+import org.waarp.ftp.core.file.FtpDirListingList;
+import org.waarp.ftp.core.file.FtpDirListingSource;
 import org.waarp.ftp.core.file.FtpFile;
 import org.waarp.ftp.core.session.FtpSession;
 
@@ -30,7 +46,19 @@ import org.waarp.ftp.core.session.FtpSession;
  * @author Frederic Bregier
  * 
  */
-public abstract class FilesystemBasedFtpDir extends FilesystemBasedDirImpl implements FtpDir {
+public abstract class FilesystemBasedFtpDir extends FilesystemBasedDirImpl implements FtpDir,
+        FtpDirListingSource {
+    /**
+     * Internal Logger
+     */
+    private static final WaarpLogger logger = WaarpLoggerFactory
+            .getLogger(FilesystemBasedFtpDir.class);
+
+    /**
+     * Optional server wide listing cache
+     */
+    private static volatile FilesystemBasedDirListingCache listingCache = null;
+
     /**
      * 
      * @param session
@@ -39,6 +67,58 @@ public abstract class FilesystemBasedFtpDir extends FilesystemBasedDirImpl imple
         super(session, new FilesystemBasedOptsMLSxImpl());
     }
 
+    /**
+     * @return the listing cache if any
+     */
+    public static FilesystemBasedDirListingCache getListingCache() {
+        return listingCache;
+    }
+
+    /**
+     * @param cache
+     *            the listing cache to use, null to disable it (the previous one is closed)
+     */
+    public static void setListingCache(FilesystemBasedDirListingCache cache) {
+        FilesystemBasedDirListingCache old = listingCache;
+        listingCache = cache;
+        if (old != null && old != cache) {
+            old.close();
+        }
+    }
+
+    /**
+     * Invalidate the cached listing of the directory containing this file or directory (to be
+     * called once the server changed it)
+     * 
+     * @param file
+     */
+    public static void invalidateListing(File file) {
+        FilesystemBasedDirListingCache cache = listingCache;
+        if (cache != null && file != null) {
+            cache.invalidate(file.getAbsoluteFile().getParentFile());
+        }
+    }
+
+    @Override
+    public String mkdir(String directory) throws CommandAbstractException {
+        String newdir = super.mkdir(directory);
+        if (listingCache != null) {
+            invalidateListing(getFileFromPath(newdir));
+        }
+        return newdir;
+    }
+
+    @Override
+    public String rmdir(String directory) throws CommandAbstractException {
+        String olddir = super.rmdir(directory);
+        if (listingCache != null) {
+            File dir = getFileFromPath(olddir);
+            listingCache.invalidate(dir.getAbsoluteFile());
+            invalidateListing(dir);
+        }
+        return olddir;
+    }
+
     public FtpFile setUniqueFile()
             throws CommandAbstractException {
         return (FtpFile) super.setUniqueFile();
@@ -48,4 +128,217 @@ public abstract class FilesystemBasedFtpDir extends FilesystemBasedDirImpl imple
             boolean append) throws CommandAbstractException {
         return (FtpFile) super.setFile(path, append);
     }
+
+    public FtpDirListing openListing(String path, boolean full, boolean lsFormat)
+            throws CommandAbstractException {
+        File dir = getListedDirectory(path);
+        if (dir == null) {
+            // wildcards or single file: no directory to scan
+            if (!full) {
+                return new FtpDirListingList(list(path));
+            }
+            return new FtpDirListingList(listFull(path, lsFormat));
+        }
+        boolean listAllFiles = isListAllFiles(path);
+        if (!full) {
+            // names only: never cached
+            return new DirectoryStreamListing(openDirectoryStream(dir, path, null), listAllFiles,
+                    false, false);
+        }
+        FilesystemBasedDirListingCache cache = listingCache;
+        String key = null;
+        long lastModified = 0;
+        long generation = 0;
+        if (cache != null) {
+            key = FilesystemBasedDirListingCache.getKey(dir, lsFormat, listAllFiles,
+                    lsFormat ? null : getOptsMLSx().getFeat());
+            List<String> cached = cache.get(dir, key);
+            if (cached != null) {
+                return new FtpDirListingList(cached);
+            }
+            lastModified = dir.lastModified();
+            generation = cache.prepare(dir);
+        }
+        DirectoryStreamListing listing = new DirectoryStreamListing(
+                openDirectoryStream(dir, path, cache), listAllFiles, true, lsFormat);
+        if (cache != null) {
+            listing.setCache(cache, dir, key, lastModified, generation);
+        }
+        return listing;
+    }
+
+    /**
+     * 
+     * @param path
+     *            the argument of the listing command
+     * @return True if the hidden files are to be listed (-a or -A option)
+     */
+    private static boolean isListAllFiles(String path) {
+        return path != null && (path.startsWith("-a") || path.startsWith("-A"));
+    }
+
+    /**
+     * Resolve the argument of a listing command as {@link #list(String)} and
+     * {@link #listFull(String, boolean)} do (option, current directory, validation of the path
+     * and wildcards)
+     * 
+     * @param path
+     *            the argument of the listing command
+     * @return the directory to list, or null if the argument is not exactly one directory
+     * @throws CommandAbstractException
+     */
+    private File getListedDirectory(String path) throws CommandAbstractException {
+        checkIdentify();
+        String newpath = path;
+        if (isListAllFiles(newpath)) {
+            String[] args = newpath.split(" ");
+            newpath = args.length > 1 ? args[1] : null;
+        }
+        if (newpath == null || newpath.length() == 0) {
+            newpath = getPwd();
+        }
+        List<String> paths = wildcardFiles(consolidatePath(newpath));
+        if (paths.size() != 1) {
+            return null;
+        }
+        File dir = getFileFromPath(paths.get(0));
+        return dir.isDirectory() ? dir : null;
+    }
+
+    /**
+     * 
+     * @param dir
+     * @param path
+     *            the argument of the listing command
+     * @param cache
+     *            the cache prepared for this directory if any
+     * @return the DirectoryStream of this directory
+     * @throws Reply550Exception
+     */
+    private static DirectoryStream<Path> openDirectoryStream(File dir, String path,
+            FilesystemBasedDirListingCache cache) throws Reply550Exception {
+        try {
+            return Files.newDirectoryStream(dir.toPath());
+        } catch (IOException e) {
+            if (cache != null) {
+                cache.cancel(dir);
+            }
+            throw new Reply550Exception("Cannot list directory: " + path);
+        }
+    }
+
+    /**
+     * Listing read from a DirectoryStream, one entry at a time
+     * 
+     * @author Frederic Bregier
+     * 
+     */
+    private class DirectoryStreamListing implements FtpDirListing {
+        private final DirectoryStream<Path> stream;
+
+        private final Iterator<Path> iterator;
+
+        private final boolean listAllFiles;
+
+        /**
+         * False for names only (NLST)
+         */
+        private final boolean full;
+
+        private final boolean lsFormat;
+
+        /**
+         * When the listing is to be cached: entries read so far
+         */
+        private FilesystemBasedDirListingCache cache = null;
+
+        private List<String> entries = null;
+
+        private File dir;
+
+        private String key;
+
+        private long lastModified;
+
+        private long generation;
+
+        private DirectoryStreamListing(DirectoryStream<Path> stream, boolean listAllFiles,
+                boolean full, boolean lsFormat) {
+            this.stream = stream;
+            this.iterator = stream.iterator();
+            this.listAllFiles = listAllFiles;
+            this.full = full;
+            this.lsFormat = lsFormat;
+        }
+
+        private void setCache(FilesystemBasedDirListingCache cache, File dir, String key,
+                long lastModified, long generation) {
+            this.cache = cache;
+            this.entries = new ArrayList<String>();
+            this.dir = dir;
+            this.key = key;
+            this.lastModified = lastModified;
+            this.generation = generation;
+        }
+
+        @Override
+        public String nextEntry() throws IOException {
+            try {
+                while (iterator.hasNext()) {
+                    File file = iterator.next().toFile();
+                    if (!listAllFiles && file.getName().startsWith(".")) {
+                        continue;
+                    }
+                    String entry;
+                    if (!full) {
+                        // same relative path as list()
+                        entry = ((FtpSession) getSession()).getAuth().getRelativePath(
+                                normalizePath(file.getAbsolutePath()));
+                    } else if (lsFormat) {
+                        entry = lsInfo(file);
+                    } else {
+                        entry = mlsxInfo(file);
+                    }
+                    if (entries != null) {
+                        if (entries.size() < cache.getMaxEntries()) {
+                            entries.add(entry);
+                        } else {
+                            // too big to be cached
+                            cache.cancel(dir);
+                            cache = null;
+                            entries = null;
+                        }
+                    }
+                    return entry;
+                }
+            } catch (DirectoryIteratorException e) {
+                // never seen as a normal end: the listing would be incomplete
+                logger.warn("Listing interrupted: {}", e.getMessage());
+                entries = null;
+                throw e.getCause();
+            }
+            if (entries != null) {
+                // fully read: could be cached
+                cache.put(dir, key, lastModified, generation, entries);
+                entries = null;
+                cache = null;
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            if (cache != null) {
+                // not fully read
+                cache.cancel(dir);
+                cache = null;
+                entries = null;
+            }
+            try {
+                stream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
 }
@@ -17,10 +17,19 @@
  */
 package org.waarp.ftp.filesystembased;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
 
 import org.waarp.common.command.exception.CommandAbstractException;
 import org.waarp.common.exception.FileEndOfTransferException;
@@ -29,6 +38,7 @@ import org.waarp.common.file.DataBlock;
 import org.waarp.common.file.filesystembased.FilesystemBasedFileImpl;
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.ftp.core.data.FtpTransferControl;
 import org.waarp.ftp.core.exception.FtpNoConnectionException;
 import org.waarp.ftp.core.file.FtpFile;
 import org.waarp.ftp.core.session.FtpSession;
@@ -77,6 +87,37 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
         return length;
     }
 
+    @Override
+    public boolean closeFile() throws CommandAbstractException {
+        boolean written = FilesystemBasedFtpDir.getListingCache() != null && isInWriting();
+        boolean result = super.closeFile();
+        if (written) {
+            FilesystemBasedFtpDir.invalidateListing(getFileFromPath(getFile()));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean delete() throws CommandAbstractException {
+        File file = getFileFromPath(getFile());
+        boolean result = super.delete();
+        if (result) {
+            FilesystemBasedFtpDir.invalidateListing(file);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean renameTo(String path) throws CommandAbstractException {
+        File file = getFileFromPath(getFile());
+        boolean result = super.renameTo(path);
+        if (result) {
+            FilesystemBasedFtpDir.invalidateListing(file);
+            FilesystemBasedFtpDir.invalidateListing(getFileFromPath(getFile()));
+        }
+        return result;
+    }
+
     /**
      * Launch retrieve operation (internal method, should not be called directly)
      * 
@@ -111,6 +152,14 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
                         .setPreEndOfTransfer();
                 return;
             }
+            if (((FtpSession) session).getDataConn().isFileStreamImageWithoutSsl()) {
+                trueRetrieveFileRegion(channel);
+                return;
+            }
+            // Pipelined writes: blocks are read while previous ones are still being sent,
+            // within the window allowed by the data channel
+            FtpTransferControl transferControl = ((FtpSession) session).getDataConn()
+                    .getFtpTransferControl();
             DataBlock block = null;
             try {
                 block = readDataBlock();
@@ -118,65 +167,67 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
                 // Last block (in fact, previous block was the last one,
                 // but it could be aligned with the block size so not
                 // detected)
-                closeFile();
-                ((FtpSession) session).getDataConn().getFtpTransferControl()
-                        .setPreEndOfTransfer();
-                return;
+                block = null;
             }
             if (block == null) {
-                // Last block (in fact, previous block was the last one,
-                // but it could be aligned with the block size so not
-                // detected)
+                // Empty file
                 closeFile();
+                if (!((FtpSession) session).getDataConn().isStreamFile()) {
+                    ChannelFuture future = writeEndOfFileBlock(transferControl, channel);
+                    if (future == null) {
+                        throw new FileTransferException("File transfer in error");
+                    }
+                    future.awaitUninterruptibly();
+                }
                 ((FtpSession) session).getDataConn().getFtpTransferControl()
                         .setPreEndOfTransfer();
                 return;
             }
-            // While not last block
             ChannelFuture future = null;
-            while (block != null && !block.isEOF()) {
-                future = channel.writeAndFlush(block);
+            boolean last = false;
+            while (block != null) {
+                last = block.isEOF();
                 try {
-                    future.await();
+                    future = transferControl.writeDataBlock(channel, block);
                 } catch (InterruptedException e) {
+                    future = null;
                 }
-                if (!future.isSuccess()) {
+                if (future == null || (future.isDone() && !future.isSuccess())) {
                     closeFile();
                     throw new FileTransferException("File transfer in error");
                 }
+                if (last) {
+                    break;
+                }
                 try {
                     block = readDataBlock();
                 } catch (FileEndOfTransferException e) {
-                    closeFile();
-                    // Wait for last write
-                    if (future.isSuccess()) {
-                        ((FtpSession) session).getDataConn()
-                                .getFtpTransferControl().setPreEndOfTransfer();
-                    } else {
-                        throw new FileTransferException("File transfer in error");
-                    }
-                    return;
+                    // Last block (in fact, previous block was the last one,
+                    // but it could be aligned with the block size so not
+                    // detected)
+                    block = null;
                 }
             }
-            // Last block
             closeFile();
-            if (block != null) {
-                logger.debug("Write " + block.getByteCount());
-                future = channel.writeAndFlush(block);
-            }
-            // Wait for last write
-            if (future != null) {
-                try {
-                    future.await();
-                } catch (InterruptedException e) {
-                }
-                if (future.isSuccess()) {
-                    ((FtpSession) session).getDataConn().getFtpTransferControl()
-                            .setPreEndOfTransfer();
-                } else {
-                    throw new FileTransferException("Write is not successful");
+            if (!last && !((FtpSession) session).getDataConn().isStreamFile()) {
+                // Block mode: the end of file must be marked since the data connection is kept
+                // open (last block was aligned with the block size)
+                future = writeEndOfFileBlock(transferControl, channel);
+                if (future == null) {
+                    throw new FileTransferException("File transfer in error");
                 }
             }
+            // Wait for last write (writes are done in order so all previous ones are done too)
+            try {
+                future.await();
+            } catch (InterruptedException e) {
+            }
+            if (future.isSuccess()) {
+                ((FtpSession) session).getDataConn().getFtpTransferControl()
+                        .setPreEndOfTransfer();
+            } else {
+                throw new FileTransferException("Write is not successful");
+            }
         } catch (FileTransferException e) {
             // An error occurs!
             ((FtpSession) session).getDataConn().getFtpTransferControl()
@@ -189,4 +240,142 @@ public abstract class FilesystemBasedFtpFile extends FilesystemBasedFileImpl imp
             retrieveLock.unlock();
         }
     }
+
+    /**
+     * Write an empty block with the EOF descriptor, ending the file when the data connection is
+     * kept open (Block mode)
+     * 
+     * @param transferControl
+     * @param channel
+     * @return the future of the write, or null if the data channel is in error
+     */
+    private ChannelFuture writeEndOfFileBlock(FtpTransferControl transferControl,
+            Channel channel) {
+        DataBlock block = new DataBlock();
+        block.setBlock(Unpooled.EMPTY_BUFFER);
+        block.setEOF(true);
+        ChannelFuture future = null;
+        try {
+            future = transferControl.writeDataBlock(channel, block);
+        } catch (InterruptedException e) {
+            return null;
+        }
+        if (future == null || (future.isDone() && !future.isSuccess())) {
+            return null;
+        }
+        return future;
+    }
+
+    /**
+     * Zero-copy version of the retrieve operation, sending the file as is through FileRegions
+     * (only valid in Image + Stream + File mode without SSL, since no codec is involved)
+     * 
+     * @param channel
+     * @throws FileTransferException
+     * @throws CommandAbstractException
+     */
+    private void trueRetrieveFileRegion(Channel channel)
+            throws FileTransferException, CommandAbstractException {
+        FtpTransferControl transferControl = ((FtpSession) session).getDataConn()
+                .getFtpTransferControl();
+        File file = getFileFromPath(getFile());
+        long position = 0;
+        try {
+            // Position as set by a previous REST command
+            position = getPosition();
+        } catch (Exception e) {
+            closeFile();
+            throw new FileTransferException("Cannot get the position in file");
+        }
+        long length = file.length();
+        // Chunks keep the traffic shaping and the in-flight window effective, but they all share
+        // the same opened file
+        long chunk = (long) getSession().getBlockSize() *
+                ((FtpSession) session).getConfiguration().getBlocksInFlight();
+        SharedFileChannel shared = null;
+        try {
+            shared = new SharedFileChannel(new RandomAccessFile(file, "r").getChannel());
+        } catch (FileNotFoundException e) {
+            closeFile();
+            throw new FileTransferException("File cannot be read");
+        }
+        ChannelFuture future = null;
+        try {
+            while (position < length) {
+                long count = Math.min(chunk, length - position);
+                FileRegion region = new SharedFileRegion(shared, position, count);
+                try {
+                    future = transferControl.writeFileRegion(channel, region);
+                } catch (InterruptedException e) {
+                    region.release();
+                    future = null;
+                }
+                if (future == null || (future.isDone() && !future.isSuccess())) {
+                    closeFile();
+                    throw new FileTransferException("File transfer in error");
+                }
+                position += count;
+            }
+        } finally {
+            // the file is closed once the last region is released
+            shared.release();
+        }
+        closeFile();
+        if (future != null) {
+            // Wait for last write (writes are done in order so all previous ones are done too)
+            try {
+                future.await();
+            } catch (InterruptedException e) {
+            }
+            if (!future.isSuccess()) {
+                throw new FileTransferException("Write is not successful");
+            }
+        }
+        transferControl.setPreEndOfTransfer();
+    }
+
+    /**
+     * One opened file shared by the FileRegions of one retrieve, closed once the retrieve and all
+     * its regions released it
+     */
+    private static final class SharedFileChannel {
+        private final FileChannel fileChannel;
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+
+        private SharedFileChannel(FileChannel fileChannel) {
+            this.fileChannel = fileChannel;
+        }
+
+        private void retain() {
+            refCnt.incrementAndGet();
+        }
+
+        private void release() {
+            if (refCnt.decrementAndGet() == 0) {
+                try {
+                    fileChannel.close();
+                } catch (IOException e) {
+                    logger.debug("Cannot close file", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * FileRegion on a shared file: releasing it does not close the file unless it is the last user
+     */
+    private static final class SharedFileRegion extends DefaultFileRegion {
+        private final SharedFileChannel shared;
+
+        private SharedFileRegion(SharedFileChannel shared, long position, long count) {
+            super(shared.fileChannel, position, count);
+            shared.retain();
+            this.shared = shared;
+        }
+
+        @Override
+        protected void deallocate() {
+            shared.release();
+        }
+    }
 }
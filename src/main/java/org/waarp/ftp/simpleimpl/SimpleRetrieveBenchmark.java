@@ -0,0 +1,214 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.simpleimpl;
+
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import org.waarp.common.file.DataBlock;
+import org.waarp.common.file.filesystembased.FilesystemBasedFileParameterImpl;
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.logging.WaarpSlf4JLoggerFactory;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferMode;
+import org.waarp.ftp.core.command.FtpArgumentCode.TransferStructure;
+import org.waarp.ftp.core.data.FtpTransferControl;
+import org.waarp.ftp.core.data.handler.FtpDataInitializer;
+import org.waarp.ftp.core.data.handler.FtpDataModeCodec;
+import org.waarp.ftp.core.session.FtpSession;
+import org.waarp.ftp.simpleimpl.config.FileBasedConfiguration;
+import org.waarp.ftp.simpleimpl.control.SimpleBusinessHandler;
+import org.waarp.ftp.simpleimpl.data.FileSystemBasedDataBusinessHandler;
+
+/**
+ * Compare on a loopback connection the previous retrieve sender (write one block and wait for it
+ * before reading the next one) with the current one, {@link FtpTransferControl#writeDataBlock}
+ * (blocks read while previous ones are still sent, within a number of blocks in flight, the
+ * channel writability and the global memory). Both send the given file block by block through
+ * the STREAM mode codec of the data connections, to a receiver discarding the data.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class SimpleRetrieveBenchmark {
+    /**
+     * Number of transfers by sender
+     */
+    private static final int DEFAULT_ROUNDS = 5;
+
+    /**
+     * Total bytes received by the discarding side
+     */
+    private static final AtomicLong received = new AtomicLong();
+
+    /**
+     * 
+     * @param args
+     *            file [blocksize] [blocksinflight] [rounds]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: " + SimpleRetrieveBenchmark.class.getName() +
+                    " <file> [blocksize] [blocksinflight] [rounds]");
+            return;
+        }
+        WaarpLoggerFactory.setDefaultFactory(new WaarpSlf4JLoggerFactory(null));
+        String filename = args[0];
+        int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 0x10000;
+        int blocksInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_ROUNDS;
+        // Only the block size, the blocks in flight and the (unlimited) global memory are used
+        FileBasedConfiguration configuration = new FileBasedConfiguration(
+                SimpleRetrieveBenchmark.class, SimpleBusinessHandler.class,
+                FileSystemBasedDataBusinessHandler.class,
+                new FilesystemBasedFileParameterImpl());
+        configuration.setBLOCKSIZE(blockSize);
+        configuration.setBlocksInFlight(blocksInFlight);
+        EventLoopGroup group = new NioEventLoopGroup(2);
+        try {
+            ServerBootstrap serverBootstrap = new ServerBootstrap();
+            serverBootstrap.group(group).channel(NioServerSocketChannel.class)
+                    .childHandler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                                @Override
+                                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                    received.addAndGet(((ByteBuf) msg).readableBytes());
+                                    ReferenceCountUtil.release(msg);
+                                }
+                            });
+                        }
+                    });
+            Channel server = serverBootstrap.bind(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)).sync().channel();
+            for (int i = 0; i < rounds; i++) {
+                double awaited = retrieve(group, server, configuration, filename, false);
+                double windowed = retrieve(group, server, configuration, filename, true);
+                System.out.println(String.format(
+                        "round %d: write and await %.1f MB/s, %d blocks in flight %.1f MB/s",
+                        i + 1, awaited, blocksInFlight, windowed));
+            }
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * Send the file on a new connection
+     * 
+     * @param group
+     * @param server
+     * @param configuration
+     * @param filename
+     * @param inFlight
+     *            False for the previous sender (write and await each block), True for
+     *            {@link FtpTransferControl#writeDataBlock}
+     * @return the MB by second received
+     */
+    private static double retrieve(EventLoopGroup group, Channel server,
+            final FileBasedConfiguration configuration, String filename, boolean inFlight)
+            throws Exception {
+        // the transfer control of a data connection, as used by trueRetrieve
+        final FtpTransferControl transferControl = new FtpTransferControl(
+                new FtpSession(configuration, null));
+        final FtpDataModeCodec modeCodec = new FtpDataModeCodec(TransferMode.STREAM,
+                TransferStructure.FILE);
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group).channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .handler(new FtpDataInitializer(FileSystemBasedDataBusinessHandler.class,
+                        configuration, true) {
+                    @Override
+                    public void initChannel(SocketChannel ch) throws Exception {
+                        // same water marks as the data connections
+                        setWriteBufferWaterMarks(ch);
+                        ch.pipeline().addLast(CODEC_MODE, modeCodec);
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelWritabilityChanged(ChannelHandlerContext ctx)
+                                    throws Exception {
+                                transferControl.setDataChannelWritabilityChanged();
+                                super.channelWritabilityChanged(ctx);
+                            }
+                        });
+                    }
+                });
+        Channel channel = bootstrap.connect(server.localAddress()).sync().channel();
+        modeCodec.setCodecReady();
+        int blockSize = configuration.getBLOCKSIZE();
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        FileChannel fileChannel = file.getChannel();
+        long length = fileChannel.size();
+        long start = System.nanoTime();
+        long base = received.get();
+        try {
+            ChannelFuture future = null;
+            long position = 0;
+            while (position < length) {
+                int size = (int) Math.min(blockSize, length - position);
+                ByteBuf buffer = channel.alloc().buffer(size);
+                buffer.writeBytes(fileChannel, size);
+                position += size;
+                DataBlock block = new DataBlock();
+                block.setBlock(buffer);
+                block.setEOF(position >= length);
+                if (inFlight) {
+                    future = transferControl.writeDataBlock(channel, block);
+                } else {
+                    future = channel.writeAndFlush(block).await();
+                }
+                if (future == null || (future.isDone() && !future.isSuccess())) {
+                    throw new IllegalStateException("Write in error");
+                }
+            }
+            if (future != null) {
+                future.await();
+            }
+            while (received.get() - base < length) {
+                Thread.sleep(1);
+            }
+        } finally {
+            fileChannel.close();
+            file.close();
+            channel.close().sync();
+        }
+        long elapsed = System.nanoTime() - start;
+        return length * 1000000000.0 / elapsed / (1024 * 1024);
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * This file is part of Waarp Project.
+ * 
+ * Copyright 2009, Frederic Bregier, and individual contributors by the @author tags. See the
+ * COPYRIGHT.txt in the distribution for a full listing of individual contributors.
+ * 
+ * All Waarp Project is free software: you can redistribute it and/or modify it under the terms of
+ * the GNU General Public License as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ * 
+ * Waarp is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Waarp . If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+package org.waarp.ftp.simpleimpl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.ReferenceCountUtil;
+
+import org.waarp.common.logging.WaarpLoggerFactory;
+import org.waarp.common.logging.WaarpSlf4JLoggerFactory;
+import org.waarp.ftp.core.control.ftps.FtpsInitializer;
+import org.waarp.ftp.core.control.ftps.FtpsSslEngineFactory;
+import org.waarp.ftp.simpleimpl.config.FileBasedSslConfiguration;
+
+/**
+ * Compare the SSL engines available to the FTPS server (see {@link FtpsSslEngineFactory}): full
+ * and resumed handshakes per second, and bulk throughput, all in memory and in one thread (so per
+ * core). Both the client and the server ends run in this thread with the same engine, and the
+ * client does not authenticate, so the SSL configuration must not require client
+ * authentication.
+ * 
+ * @author Frederic Bregier
+ * 
+ */
+public class SimpleSslEngineBenchmark {
+    /**
+     * Size of the network and application buffers
+     */
+    private static final int BUFFER_SIZE = 0x10000;
+
+    /**
+     * Size of one bulk write (one full TLS record)
+     */
+    private static final int BULK_SIZE = 0x4000;
+
+    /**
+     * Maximum number of exchanges during one handshake
+     */
+    private static final int MAX_HANDSHAKE_STEPS = 100;
+
+    /**
+     * 
+     * @param args
+     *            ssl-config-file [duration in seconds by measure]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: " +
+                    SimpleSslEngineBenchmark.class.getName() + " <ssl-config-file> [seconds]");
+            return;
+        }
+        WaarpLoggerFactory.setDefaultFactory(new WaarpSlf4JLoggerFactory(null));
+        long duration = (args.length > 1 ? Long.parseLong(args[1]) : 5) * 1000000000L;
+        if (!FileBasedSslConfiguration.setConfigurationServerFromXml(null, args[0])) {
+            System.err.println("Bad Ssl configuration");
+            return;
+        }
+        for (FtpsSslEngineFactory.Engine engine : FtpsSslEngineFactory.Engine.values()) {
+            FtpsSslEngineFactory factory = new FtpsSslEngineFactory(
+                    FtpsInitializer.waarpSslContextFactory, FtpsInitializer.waarpSecureKeyStore,
+                    engine, 0, 0);
+            if (factory.getEngine() != engine) {
+                System.out.println(engine.name() + ": not available");
+                continue;
+            }
+            SslContext client = SslContextBuilder.forClient()
+                    .sslProvider(engine == FtpsSslEngineFactory.Engine.OPENSSL ?
+                            SslProvider.OPENSSL : SslProvider.JDK)
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+            Handshakes full = handshakes(factory, client, duration, false);
+            Handshakes resumed = handshakes(factory, client, duration, true);
+            double bulk = bulk(factory, client, duration);
+            System.out.println(String.format(
+                    "%s: %.1f full handshakes/s, %.1f resumed handshakes/s (%d of %d really "
+                            + "resumed), %.1f MB/s",
+                    engine.name(), full.rate, resumed.rate, resumed.resumed, resumed.count, bulk));
+            if (resumed.resumed < resumed.count / 2) {
+                System.out.println(engine.name() + ": most sessions were not resumed, "
+                        + "the resumed handshakes/s is not significant (check the session cache)");
+            }
+        }
+    }
+
+    /**
+     * Result of a handshake measure
+     */
+    private static class Handshakes {
+        /**
+         * Number of handshakes by second
+         */
+        double rate;
+        /**
+         * Number of handshakes
+         */
+        long count;
+        /**
+         * Number of handshakes that resumed a previous session
+         */
+        long resumed;
+    }
+
+    /**
+     * 
+     * @param factory
+     * @param client
+     * @param duration
+     *            in ns
+     * @param resume
+     *            True to let the client resume its previous session
+     * @return the number of handshakes by second, and how many really resumed a session
+     * @throws SSLException
+     */
+    private static Handshakes handshakes(FtpsSslEngineFactory factory, SslContext client,
+            long duration, boolean resume) throws SSLException {
+        ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+        Handshakes handshakes = new Handshakes();
+        byte[] previousId = null;
+        long start = System.nanoTime();
+        long end = start + duration;
+        long now;
+        do {
+            SSLEngine clientEngine;
+            SSLEngine serverEngine;
+            if (resume) {
+                // same peer for the client and the server caches
+                clientEngine = client.newEngine(alloc, "benchmark", 21);
+                serverEngine = factory.newServerHandler(alloc, "benchmark", 21).engine();
+            } else {
+                clientEngine = client.newEngine(alloc);
+                serverEngine = factory.newServerHandler(alloc).engine();
+            }
+            long handshakeStart = System.currentTimeMillis();
+            try {
+                handshake(clientEngine, serverEngine);
+                // resumed if the server reused the previous session, or one created before
+                SSLSession session = serverEngine.getSession();
+                byte[] id = session.getId();
+                if ((id.length > 0 && Arrays.equals(id, previousId))
+                        || session.getCreationTime() < handshakeStart) {
+                    handshakes.resumed++;
+                }
+                previousId = id;
+            } finally {
+                ReferenceCountUtil.release(clientEngine);
+                ReferenceCountUtil.release(serverEngine);
+            }
+            handshakes.count++;
+            now = System.nanoTime();
+        } while (now < end);
+        handshakes.rate = handshakes.count * 1000000000.0 / (now - start);
+        return handshakes;
+    }
+
+    /**
+     * 
+     * @param factory
+     * @param client
+     * @param duration
+     *            in ns
+     * @return the MB (encrypted by the client and decrypted by the server) by second
+     * @throws SSLException
+     */
+    private static double bulk(FtpsSslEngineFactory factory, SslContext client, long duration)
+            throws SSLException {
+        ByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+        SSLEngine clientEngine = client.newEngine(alloc);
+        SSLEngine serverEngine = factory.newServerHandler(alloc).engine();
+        try {
+            handshake(clientEngine, serverEngine);
+            ByteBuffer data = ByteBuffer.allocate(BULK_SIZE);
+            ByteBuffer net = ByteBuffer.allocate(BUFFER_SIZE);
+            ByteBuffer app = ByteBuffer.allocate(BUFFER_SIZE);
+            long start = System.nanoTime();
+            long end = start + duration;
+            long bytes = 0;
+            long now;
+            do {
+                data.clear();
+                net.clear();
+                while (data.hasRemaining()) {
+                    clientEngine.wrap(data, net);
+                }
+                net.flip();
+                while (net.hasRemaining()) {
+                    app.clear();
+                    SSLEngineResult result = serverEngine.unwrap(net, app);
+                    bytes += result.bytesProduced();
+                }
+                now = System.nanoTime();
+            } while (now < end);
+            return bytes * 1000000000.0 / (now - start) / (1024 * 1024);
+        } finally {
+            ReferenceCountUtil.release(clientEngine);
+            ReferenceCountUtil.release(serverEngine);
+        }
+    }
+
+    /**
+     * Run a full handshake in memory between the two engines
+     * 
+     * @param client
+     * @param server
+     * @throws SSLException
+     */
+    private static void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientToServer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer serverToClient = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer clientIn = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer serverIn = ByteBuffer.allocate(BUFFER_SIZE);
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < MAX_HANDSHAKE_STEPS; i++) {
+            client.wrap(empty, clientToServer);
+            runDelegatedTasks(client);
+            server.wrap(empty, serverToClient);
+            runDelegatedTasks(server);
+            clientToServer.flip();
+            serverToClient.flip();
+            client.unwrap(serverToClient, clientIn);
+            runDelegatedTasks(client);
+            server.unwrap(clientToServer, serverIn);
+            runDelegatedTasks(server);
+            clientToServer.compact();
+            serverToClient.compact();
+            if (client.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+                    server.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+                    clientToServer.position() == 0 && serverToClient.position() == 0) {
+                return;
+            }
+        }
+        throw new SSLException("Handshake not finished");
+    }
+
+    /**
+     * 
+     * @param engine
+     */
+    private static void runDelegatedTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
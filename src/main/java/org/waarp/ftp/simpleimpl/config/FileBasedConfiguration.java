@@ -36,8 +36,13 @@ import org.waarp.common.file.filesystembased.specific.FilesystemBasedDirJdkAbstr
 import org.waarp.common.logging.WaarpLogger;
 import org.waarp.common.logging.WaarpLoggerFactory;
 import org.waarp.ftp.core.config.FtpConfiguration;
+import org.waarp.ftp.core.config.FtpThreadTopology;
 import org.waarp.ftp.core.control.BusinessHandler;
+import org.waarp.ftp.core.data.FtpPassivePortAllocator;
 import org.waarp.ftp.core.data.handler.DataBusinessHandler;
+import org.waarp.ftp.core.utils.FtpNettyTransport;
+import org.waarp.ftp.filesystembased.FilesystemBasedDirListingCache;
+import org.waarp.ftp.filesystembased.FilesystemBasedFtpDir;
 import org.waarp.ftp.simpleimpl.file.SimpleAuth;
 
 /**
@@ -117,6 +122,86 @@ public class FileBasedConfiguration extends FtpConfiguration {
      */
     private static final String XML_BLOCKSIZE = "/config/blocksize";
 
+    /**
+     * Number of blocks that could be in flight on a data connection during a retrieve
+     */
+    private static final String XML_BLOCKSINFLIGHT = "/config/blocksinflight";
+
+    /**
+     * Maximum memory used by data blocks of all transfers (0 for no limit)
+     */
+    private static final String XML_MAX_GLOBAL_MEMORY = "/config/maxglobalmemory";
+
+    /**
+     * Netty transport: AUTO (epoll when available, else NIO), NIO or EPOLL
+     */
+    private static final String XML_TRANSPORT = "/config/transport";
+
+    /**
+     * Number of acceptor channels by listening address with epoll (0 for server threads)
+     */
+    private static final String XML_ACCEPTORS = "/config/acceptors";
+
+    /**
+     * Thread topology profile: LEGACY, SHARED or ISOLATED
+     */
+    private static final String XML_THREAD_PROFILE = "/config/threadprofile";
+
+    /**
+     * Number of I/O threads for SHARED and ISOLATED profiles (0 for available processors)
+     */
+    private static final String XML_IO_THREAD = "/config/iothread";
+
+    /**
+     * Number of threads for blocking handlers for SHARED and ISOLATED profiles
+     */
+    private static final String XML_BLOCKING_THREAD = "/config/blockingthread";
+
+    /**
+     * Number of threads running transfers (0 means same as client threads)
+     */
+    private static final String XML_TRANSFER_THREAD = "/config/transferthread";
+
+    /**
+     * Maximum number of transfers waiting for a thread
+     */
+    private static final String XML_TRANSFER_QUEUE = "/config/transferqueue";
+
+    /**
+     * Should waiting transfers be served by user in a round robin way
+     */
+    private static final String XML_TRANSFER_FAIRNESS = "/config/transferfairness";
+
+    /**
+     * Should ASCII/EBCDIC transfers convert end of lines between CRLF and LF
+     */
+    private static final String XML_ASCII_EOL = "/config/asciieol";
+
+    /**
+     * Idle timeout in ms of a control connection before login (0 for none)
+     */
+    private static final String XML_IDLE_LOGIN = "/config/idletimeout/login";
+
+    /**
+     * Idle timeout in ms of a control connection after login (0 for none)
+     */
+    private static final String XML_IDLE_CONTROL = "/config/idletimeout/control";
+
+    /**
+     * Idle timeout in ms of a data connection (0 for none)
+     */
+    private static final String XML_IDLE_DATA = "/config/idletimeout/data";
+
+    /**
+     * Listing cache: maximum number of entries (0 for no cache)
+     */
+    private static final String XML_LISTING_CACHE_ENTRIES = "/config/listingcache/entries";
+
+    /**
+     * Listing cache: maximum size in bytes (0 for no limit other than entries)
+     */
+    private static final String XML_LISTING_CACHE_BYTES = "/config/listingcache/bytes";
+
     /**
      * RANGE of PORT for Passive Mode
      */
@@ -127,6 +212,12 @@ public class FileBasedConfiguration extends FtpConfiguration {
      */
     private static final String XML_RANGE_PORT_MAX = "/config/rangeport/max";
 
+    /**
+     * Number of ports from the beginning of the RANGE binded at startup (0 for none), the range
+     * being then limited to them
+     */
+    private static final String XML_RANGE_PORT_PREBIND = "/config/rangeport/prebind";
+
     /**
      * Authentication
      */
@@ -160,7 +251,12 @@ public class FileBasedConfiguration extends FtpConfiguration {
     /**
      * RANGE of PORT for Passive Mode
      */
-    private CircularIntValue RANGE_PORT = null;
+    private FtpPassivePortAllocator RANGE_PORT = null;
+
+    /**
+     * Is the RANGE of PORT binded at startup
+     */
+    private boolean PREBIND_RANGE_PORT = false;
 
     /**
      * All authentications
@@ -296,6 +392,75 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (node != null) {
             setBLOCKSIZE(Integer.parseInt(node.getText()));
         }
+        node = document.selectSingleNode(XML_BLOCKSINFLIGHT);
+        if (node != null) {
+            setBlocksInFlight(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_MAX_GLOBAL_MEMORY);
+        if (node != null) {
+            setMaxGlobalMemory(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_TRANSPORT);
+        if (node != null) {
+            setTransport(FtpNettyTransport.Transport.getTransport(node.getText()));
+        }
+        node = document.selectSingleNode(XML_ACCEPTORS);
+        if (node != null) {
+            setAcceptors(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_THREAD_PROFILE);
+        if (node != null) {
+            setThreadProfile(FtpThreadTopology.Profile.getProfile(node.getText()));
+        }
+        node = document.selectSingleNode(XML_IO_THREAD);
+        if (node != null) {
+            setIoThreads(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_BLOCKING_THREAD);
+        if (node != null) {
+            setBlockingThreads(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_TRANSFER_THREAD);
+        if (node != null) {
+            setTransferThreads(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_TRANSFER_QUEUE);
+        if (node != null) {
+            setTransferQueueSize(Integer.parseInt(node.getText()));
+        }
+        node = document.selectSingleNode(XML_TRANSFER_FAIRNESS);
+        if (node != null) {
+            setTransferFairness(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_ASCII_EOL);
+        if (node != null) {
+            setAsciiEndOfLineConversion(Integer.parseInt(node.getText()) == 1 ? true : false);
+        }
+        node = document.selectSingleNode(XML_IDLE_LOGIN);
+        if (node != null) {
+            setLoginIdleTimeout(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_IDLE_CONTROL);
+        if (node != null) {
+            setControlIdleTimeout(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_IDLE_DATA);
+        if (node != null) {
+            setDataIdleTimeout(Long.parseLong(node.getText()));
+        }
+        node = document.selectSingleNode(XML_LISTING_CACHE_ENTRIES);
+        if (node != null) {
+            int entries = Integer.parseInt(node.getText());
+            if (entries > 0) {
+                long bytes = 0;
+                node = document.selectSingleNode(XML_LISTING_CACHE_BYTES);
+                if (node != null) {
+                    bytes = Long.parseLong(node.getText());
+                }
+                FilesystemBasedFtpDir.setListingCache(new FilesystemBasedDirListingCache(entries,
+                        bytes));
+            }
+        }
         node = document.selectSingleNode(XML_RANGE_PORT_MIN);
         int min = 100;
         if (node != null) {
@@ -306,7 +471,17 @@ public class FileBasedConfiguration extends FtpConfiguration {
         if (node != null) {
             max = Integer.parseInt(node.getText());
         }
-        CircularIntValue rangePort = new CircularIntValue(min, max);
+        node = document.selectSingleNode(XML_RANGE_PORT_PREBIND);
+        if (node != null) {
+            int prebind = Integer.parseInt(node.getText());
+            if (prebind > 0) {
+                PREBIND_RANGE_PORT = true;
+                if (max > min + prebind - 1) {
+                    max = min + prebind - 1;
+                }
+            }
+        }
+        FtpPassivePortAllocator rangePort = new FtpPassivePortAllocator(min, max);
         setRangePort(rangePort);
         // We use Apache Commons IO
         FilesystemBasedDirJdkAbstract.ueApacheCommonsIo = true;
@@ -384,7 +559,34 @@ public class FileBasedConfiguration extends FtpConfiguration {
      */
     @Override
     public int getNextRangePort() {
-        return RANGE_PORT.getNext();
+        return RANGE_PORT.lease();
+    }
+
+    @Override
+    public void releaseRangePort(int port) {
+        if (RANGE_PORT != null) {
+            RANGE_PORT.release(port);
+        }
+    }
+
+    @Override
+    public int[] getPrebindPassivePorts() {
+        if (!PREBIND_RANGE_PORT || RANGE_PORT == null) {
+            return super.getPrebindPassivePorts();
+        }
+        int[] ports = new int[RANGE_PORT.getSize()];
+        for (int i = 0; i < ports.length; i++) {
+            ports[i] = RANGE_PORT.getFirstPort() + i;
+        }
+        return ports;
+    }
+
+    @Override
+    public String getRangePortStatus() {
+        if (RANGE_PORT == null) {
+            return super.getRangePortStatus();
+        }
+        return RANGE_PORT.getStatus();
     }
 
     /**
@@ -392,10 +594,16 @@ public class FileBasedConfiguration extends FtpConfiguration {
      * @param rangePort
      *            the range of available ports for Passive connections
      */
-    private void setRangePort(CircularIntValue rangePort) {
+    private void setRangePort(FtpPassivePortAllocator rangePort) {
         RANGE_PORT = rangePort;
     }
 
+    @Override
+    public void releaseResources() {
+        super.releaseResources();
+        FilesystemBasedFtpDir.setListingCache(null);
+    }
+
     @Override
     public void inShutdownProcess() {
         // nothing to do
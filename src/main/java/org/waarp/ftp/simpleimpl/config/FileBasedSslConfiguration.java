@@ -32,6 +32,7 @@ import org.waarp.common.xml.XmlUtil;
 import org.waarp.common.xml.XmlValue;
 import org.waarp.ftp.core.config.FtpConfiguration;
 import org.waarp.ftp.core.control.ftps.FtpsInitializer;
+import org.waarp.ftp.core.control.ftps.FtpsSslEngineFactory;
 
 /**
  * FtpConfiguration based on a XML file
@@ -76,6 +77,26 @@ public class FileBasedSslConfiguration {
      */
     private static final String XML_USECLIENT_AUTHENT = "trustuseclientauthenticate";
 
+    /**
+     * SERVER SSL engine: JDK or OPENSSL
+     */
+    private static final String XML_SSL_ENGINE = "sslengine";
+
+    /**
+     * SERVER SSL session cache size (OpenSSL only)
+     */
+    private static final String XML_SSL_SESSION_CACHE_SIZE = "sessioncachesize";
+
+    /**
+     * SERVER SSL session timeout in seconds (OpenSSL only)
+     */
+    private static final String XML_SSL_SESSION_TIMEOUT = "sessiontimeout";
+
+    /**
+     * SERVER SSL data connections must resume a TLS session
+     */
+    private static final String XML_SSL_REQUIRE_REUSE = "requiresessionreuse";
+
     /**
      * Structure of the Configuration file
      * 
@@ -87,7 +108,11 @@ public class FileBasedSslConfiguration {
             new XmlDecl(XmlType.STRING, XML_PATH_KEYPASS),
             new XmlDecl(XmlType.STRING, XML_PATH_TRUSTKEYPATH),
             new XmlDecl(XmlType.STRING, XML_PATH_TRUSTKEYSTOREPASS),
-            new XmlDecl(XmlType.BOOLEAN, XML_USECLIENT_AUTHENT)
+            new XmlDecl(XmlType.BOOLEAN, XML_USECLIENT_AUTHENT),
+            new XmlDecl(XmlType.STRING, XML_SSL_ENGINE),
+            new XmlDecl(XmlType.LONG, XML_SSL_SESSION_CACHE_SIZE),
+            new XmlDecl(XmlType.LONG, XML_SSL_SESSION_TIMEOUT),
+            new XmlDecl(XmlType.BOOLEAN, XML_SSL_REQUIRE_REUSE)
     };
     /**
      * Overall structure of the Configuration file
@@ -188,6 +213,30 @@ public class FileBasedSslConfiguration {
         FtpsInitializer.waarpSslContextFactory =
                 new WaarpSslContextFactory(
                         FtpsInitializer.waarpSecureKeyStore);
+        // SSL engine
+        FtpsSslEngineFactory.Engine engine = FtpsSslEngineFactory.Engine.JDK;
+        value = hashConfig.get(XML_SSL_ENGINE);
+        if (value != null && (!value.isEmpty())) {
+            engine = FtpsSslEngineFactory.Engine.getEngine(value.getString());
+        }
+        long sessionCacheSize = 0;
+        value = hashConfig.get(XML_SSL_SESSION_CACHE_SIZE);
+        if (value != null && (!value.isEmpty())) {
+            sessionCacheSize = value.getLong();
+        }
+        long sessionTimeout = 0;
+        value = hashConfig.get(XML_SSL_SESSION_TIMEOUT);
+        if (value != null && (!value.isEmpty())) {
+            sessionTimeout = value.getLong();
+        }
+        value = hashConfig.get(XML_SSL_REQUIRE_REUSE);
+        if (config != null && value != null && (!value.isEmpty())) {
+            config.setRequireSslSessionReuse(value.getBoolean());
+        }
+        FtpsInitializer.sslEngineFactory =
+                new FtpsSslEngineFactory(FtpsInitializer.waarpSslContextFactory,
+                        FtpsInitializer.waarpSecureKeyStore, engine, sessionCacheSize,
+                        sessionTimeout);
         return true;
     }
 
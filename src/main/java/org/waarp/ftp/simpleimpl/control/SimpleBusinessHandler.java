@@ -131,6 +131,8 @@ public class SimpleBusinessHandler extends BusinessHandler {
             if (args[0].equalsIgnoreCase(FtpCommandCode.MLST.name()) ||
                     args[0].equalsIgnoreCase(FtpCommandCode.MLSD.name())) {
                 return getMLSxOptsMessage(args);
+            } else if (args[0].equalsIgnoreCase(FtpCommandCode.MODE.name())) {
+                return getModeZOptsMessage(args);
             }
             throw new Reply502Exception("OPTS not implemented for " + args[0]);
         }